@@ -1,16 +1,21 @@
 package io.github.barmoury.api.config;
 
+import io.github.barmoury.asynchronous.ManagedExecutor;
+import io.github.barmoury.asynchronous.Threading;
+import io.github.barmoury.asynchronous.WriteBehindQueue;
 import io.github.barmoury.crypto.pgp.PgpTranslateHttpMessageConverter;
 import io.github.barmoury.eloquent.QueryArmoury;
 import io.github.barmoury.eloquent.sqlinterface.MySqlInterface;
 import io.github.barmoury.eloquent.sqlinterface.PostgresInterface;
 import jakarta.persistence.EntityManager;
+import io.micrometer.tracing.Tracer;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.DependsOn;
 import org.springframework.context.annotation.Primary;
 import org.springframework.core.env.Environment;
 import org.springframework.http.HttpMethod;
@@ -48,6 +53,9 @@ public class WebSecurityConfig implements WebMvcConfigurer {
     @Autowired
     AutowireCapableBeanFactory autowireCapableBeanFactory;
 
+    @Autowired(required = false)
+    Tracer tracer;
+
     @Value("${barmoury.crypto.pgp.payload.translate:false}") boolean pgpPayloadTranslate;
 
     @Bean
@@ -114,6 +122,27 @@ public class WebSecurityConfig implements WebMvcConfigurer {
         }
     }
 
+    // the executor of the background tasks is drained when the application context closes, it depends on the
+    // entity manager factory so the tasks still reach it while they drain
+    @Bean(destroyMethod = "close")
+    @DependsOn("entityManagerFactory")
+    @ConditionalOnMissingBean(name = "managedExecutor")
+    ManagedExecutor managedExecutor() {
+        ManagedExecutor managedExecutor = new ManagedExecutor();
+        managedExecutor.setTracer(tracer);
+        Threading.setExecutor(managedExecutor);
+        return managedExecutor;
+    }
+
+    // the queue of the asynchronous writes depends on the entity manager factory so it is drained before the
+    // factory is closed
+    @Bean(destroyMethod = "close")
+    @DependsOn("entityManagerFactory")
+    @ConditionalOnMissingBean(name = "writeBehindQueue")
+    WriteBehindQueue writeBehindQueue() {
+        return WriteBehindQueue.shared();
+    }
+
     @Bean("mysql")
     @ConditionalOnMissingBean(name = "mySqlQueryArmoury")
     QueryArmoury mySqlQueryArmoury() {
@@ -1,5 +1,10 @@
 package io.github.barmoury.api.controller;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.github.barmoury.api.MutableHttpServletRequest;
 import io.github.barmoury.api.ValidationGroups;
 import io.github.barmoury.api.exception.ConstraintViolationException;
@@ -8,43 +13,90 @@ import io.github.barmoury.api.model.ApiResponse;
 import io.github.barmoury.api.model.Model;
 import io.github.barmoury.api.model.UserDetails;
 import io.github.barmoury.api.model.modelling.IdModel;
+import io.github.barmoury.asynchronous.SingleFlight;
+import io.github.barmoury.asynchronous.WriteBehindQueue;
 import io.github.barmoury.audit.Auditor;
 import io.github.barmoury.copier.Copier;
 import io.github.barmoury.eloquent.QueryArmoury;
+import io.github.barmoury.eloquent.page.CountStrategy;
+import io.github.barmoury.util.CsvUtil;
 import io.github.barmoury.util.FieldUtil;
+import jakarta.persistence.CascadeType;
+import jakarta.persistence.ElementCollection;
 import jakarta.persistence.Entity;
+import jakarta.persistence.EntityListeners;
 import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityNotFoundException;
+import jakarta.persistence.PersistenceUnitUtil;
+import jakarta.persistence.ManyToMany;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.OneToMany;
+import jakarta.persistence.OneToOne;
 import jakarta.persistence.PersistenceContext;
+import jakarta.persistence.PersistenceException;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import jakarta.persistence.PreRemove;
+import jakarta.persistence.PreUpdate;
+import jakarta.persistence.Version;
+import jakarta.persistence.metamodel.Attribute;
+import jakarta.persistence.metamodel.EntityType;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.validation.ConstraintViolation;
 import jakarta.validation.Valid;
+import jakarta.validation.ValidationException;
 import jakarta.validation.Validator;
 import jakarta.validation.constraints.NotEmpty;
 import lombok.Data;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.hibernate.Session;
+import org.hibernate.annotations.SQLDelete;
+import org.hibernate.annotations.SoftDelete;
+import org.hibernate.exception.JDBCConnectionException;
 import org.hibernate.validator.HibernateValidatorFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.GenericTypeResolver;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.AccessDeniedException;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.ClassUtils;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.validation.beanvalidation.LocalValidatorFactoryBean;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.*;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
 import java.text.ParseException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.Callable;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
 
 // TODO validate list of entity for multiple
+@Slf4j
 public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
 
     String fineName;
@@ -53,9 +105,34 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
     @Getter @Setter boolean storeAsynchronously;
     @Getter @Setter boolean updateAsynchronously;
     @Getter @Setter boolean deleteAsynchronously;
+    @Getter @Setter long exportRowLimit = 100000;
+    @Getter @Setter int importChunkSize = 1000;
+    @Getter @Setter int jdbcBatchSize = 100;
+    @Getter @Setter int deleteChunkSize = 1000;
+    Boolean partialUpdateSupported;
+    Boolean bulkDeleteSupported;
+    @Autowired(required = false) @Setter WriteBehindQueue writeBehindQueue;
+    @Getter @Setter boolean coalesceReads;
+    final SingleFlight<ReadKey, ResponseEntity<?>> readFlight = new SingleFlight<>();
     @Autowired @Getter QueryArmoury queryArmoury;
     @PersistenceContext EntityManager entityManager;
+    @Autowired ObjectMapper objectMapper;
+    @Autowired PlatformTransactionManager transactionManager;
     @Autowired LocalValidatorFactoryBean localValidatorFactoryBean;
+    final WriteBehindQueue.BatchWriter<T1> storeWriter = resources -> saveInBatch(copiesOf(resources), false);
+    final WriteBehindQueue.BatchWriter<T1> deleteWriter = resources -> {
+        new TransactionTemplate(transactionManager).executeWithoutResult(status -> repository.deleteAll(resources));
+        return null;
+    };
+    final WriteBehindQueue.BatchWriter<ChangedResource<T1>> updateWriter = changedResources ->
+            new TransactionTemplate(transactionManager).execute(status -> {
+                List<T1> savedResources = new ArrayList<>();
+                for (ChangedResource<T1> changedResource : changedResources) {
+                    savedResources.add(saveChangedFields(changedResource.resource(),
+                            new ArrayList<>(changedResource.changedFields())));
+                }
+                return savedResources;
+            });
     public static final String NO_RESOURCE_FORMAT_STRING = "No %s found with the specified id %s";
     static final String ACCESS_DENIED = "Access denied. You do not have the required role to access this endpoint";
 
@@ -90,6 +167,14 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
     public boolean skipRecursiveSubEntities() {
         return true;
     }
+    // index pages are always keyset pages, the first page does not need an empty cursor parameter
+    public boolean cursorPagination() {
+        return false;
+    }
+    // null leaves the strategy to the count_strategy request parameter and the QueryArmoury default
+    public CountStrategy countStrategy() {
+        return null;
+    }
     public void postGetResourceById(HttpServletRequest request, Authentication authentication, T1 entity) {}
     public HttpServletRequest preQuery(MutableHttpServletRequest request, Authentication authentication) { return request; }
     public void preCreate(HttpServletRequest request, Authentication authentication, T1 entity, T2 entityRequest) {}
@@ -156,6 +241,11 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
     }
 
     public void validateRouteAccess(HttpServletRequest request, RouteMethod routeMethod, String errMessage) {
+        if (routeMethod != null) {
+            for (RouteMethod baseRouteMethod : routeMethod.getBaseRouteMethods()) {
+                validateRouteAccess(request, baseRouteMethod, errMessage);
+            }
+        }
         if (shouldNotHonourMethod(routeMethod)) {
             throw new RouteMethodNotSupportedException(errMessage);
         }
@@ -193,8 +283,10 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
     @RequestMapping(value = "/stat", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> stat(HttpServletRequest request, Authentication authentication) throws ParseException {
         this.validateRouteAccess(request, RouteMethod.STAT, "The GET '**/stat' route is not supported for this resource");
-        request = preQuery(sanitizeAndGetRequestParameters(request, authentication), authentication);
-        return processResponse(request, authentication, HttpStatus.OK, queryArmoury.statWithQuery(request, entityClass), String.format("%s stat fetched successfully", this.fineName));
+        HttpServletRequest queryRequest = preQuery(sanitizeAndGetRequestParameters(request, authentication), authentication);
+        return coalesceRead(queryRequest, authentication, null, () -> processResponse(queryRequest, authentication,
+                HttpStatus.OK, queryArmoury.statWithQuery(queryRequest, entityClass),
+                String.format("%s stat fetched successfully", this.fineName)));
     }
 
     protected ResponseEntity<?> sIndex(HttpServletRequest request, Authentication authentication, Pageable pageable,
@@ -203,19 +295,139 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
             this.validateRouteAccess(request, RouteMethod.INDEX,
                     "The GET '**/' route is not supported for this resource");
         }
-        request = preQuery(sanitizeAndGetRequestParameters(request, authentication), authentication);
-        Page<T1> resources = queryArmoury.pageQuery(request, pageable, entityClass, resolveSubEntities(),
-                skipRecursiveSubEntities());
-        this.preResponses(request, authentication, resources);
-        return processResponse(request, authentication, HttpStatus.OK, resources, String.format("%s list fetched successfully",
-                this.fineName));
+        MutableHttpServletRequest mutableHttpServletRequest = sanitizeAndGetRequestParameters(request, authentication);
+        if (cursorPagination() && mutableHttpServletRequest.getParameter(QueryArmoury.CURSOR_PARAMETER_KEY) == null) {
+            mutableHttpServletRequest.addParameter(QueryArmoury.CURSOR_PARAMETER_KEY, "");
+        }
+        HttpServletRequest queryRequest = preQuery(mutableHttpServletRequest, authentication);
+        return coalesceRead(queryRequest, authentication, pageable, () -> {
+            Page<T1> resources = queryArmoury.pageQuery(queryRequest, pageable, entityClass, resolveSubEntities(),
+                    skipRecursiveSubEntities(), countStrategy(), cachePages());
+            this.preResponses(queryRequest, authentication, resources);
+            return processResponse(queryRequest, authentication, HttpStatus.OK, resources,
+                    String.format("%s list fetched successfully", this.fineName));
+        });
     }
 
+    // the cached pages are shared by every request reading them, the pages of a controller whose pre response
+    // hooks can change the entities are read past the cache
+    public boolean cachePages() {
+        return !(overrides("preResponses", Page.class)
+                || overrides("preResponses", HttpServletRequest.class, Authentication.class, Page.class)
+                || overrides("preResponse", Model.class)
+                || overrides("preResponse", HttpServletRequest.class, Authentication.class, Model.class));
+    }
+
+    // with coalesceReads identical reads in flight at the same time share the response of the first one, the
+    // key is the path, the parameters after preQuery and the principal with its authorities
+    @SneakyThrows
+    protected ResponseEntity<?> coalesceRead(HttpServletRequest request, Authentication authentication, Object extra,
+                                             Callable<ResponseEntity<?>> read) {
+        if (!coalesceReads) return read.call();
+        return readFlight.execute(readKey(request, authentication, extra), read);
+    }
+
+    // the parts of the key are kept apart so no parameter value can make it equal to the key of another principal
+    protected ReadKey readKey(HttpServletRequest request, Authentication authentication, Object extra) {
+        Map<String, List<String>> parameters = new TreeMap<>();
+        for (Map.Entry<String, String[]> parameter : request.getParameterMap().entrySet()) {
+            parameters.put(parameter.getKey(), List.of(parameter.getValue()));
+        }
+        String principal = null;
+        Set<String> authorities = new TreeSet<>();
+        if (authentication != null) {
+            principal = authentication.getName();
+            for (GrantedAuthority authority : authentication.getAuthorities()) authorities.add(authority.getAuthority());
+        }
+        return new ReadKey(request.getRequestURI().replaceAll("/+$", ""), parameters, principal, authorities, extra);
+    }
+
+    protected record ReadKey(String path, Map<String, List<String>> parameters, String principal,
+                             Set<String> authorities, Object extra) {}
+
     @RequestMapping(method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> index(HttpServletRequest request, Authentication authentication, Pageable pageable) {
         return sIndex(request, authentication, pageable, false);
     }
 
+    // the filtered rows written as NDJSON, or CSV with format=csv, from the database cursor to the response as
+    // they are read, gzipped if the client accepts it and capped at exportRowLimit or the lower export_limit
+    @RequestMapping(value = "/export", method = RequestMethod.GET)
+    public ResponseEntity<StreamingResponseBody> export(HttpServletRequest request, Authentication authentication,
+                                                        Sort sort) {
+        this.validateRouteAccess(request, RouteMethod.EXPORT,
+                "The GET '**/export' route is not supported for this resource");
+        HttpServletRequest queryRequest = preQuery(sanitizeAndGetRequestParameters(request, authentication),
+                authentication);
+        boolean csv = "csv".equalsIgnoreCase(request.getParameter("format"));
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        long rowLimit = exportRowLimit;
+        String exportLimit = request.getParameter("export_limit");
+        if (exportLimit != null && !exportLimit.isBlank()) {
+            try {
+                rowLimit = Math.min(rowLimit, Math.max(0, Long.parseLong(exportLimit.trim())));
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(String.format("Invalid export limit '%s', expected a number",
+                        exportLimit));
+            }
+        }
+        long finalRowLimit = rowLimit;
+        StreamingResponseBody body = outputStream -> {
+            GZIPOutputStream gzipOutputStream = gzip ? new GZIPOutputStream(outputStream) : null;
+            Writer writer = new BufferedWriter(new OutputStreamWriter(gzip ? gzipOutputStream : outputStream,
+                    StandardCharsets.UTF_8));
+            TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+            transactionTemplate.setReadOnly(true);
+            transactionTemplate.executeWithoutResult(status -> {
+                try (Stream<T1> resources = queryArmoury.streamQuery(queryRequest, sort, entityClass,
+                        resolveSubEntities(), skipRecursiveSubEntities())) {
+                    writeExport(queryRequest, authentication, resources, writer, csv, finalRowLimit);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            writer.flush();
+            if (gzipOutputStream != null) gzipOutputStream.finish();
+        };
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .contentType(csv ? new MediaType("text", "csv", StandardCharsets.UTF_8) : MediaType.APPLICATION_NDJSON)
+                .header(HttpHeaders.CONTENT_DISPOSITION, String.format("attachment; filename=\"%s.%s\"",
+                        fineName.toLowerCase(), csv ? "csv" : "ndjson"));
+        if (gzip) response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        return response.body(body);
+    }
+
+    // the csv columns are the properties of the first row, nested values are written as json
+    public void writeExport(HttpServletRequest request, Authentication authentication, Stream<T1> resources,
+                            Writer writer, boolean csv, long rowLimit) throws IOException {
+        List<String> columns = null;
+        long count = 0;
+        Iterator<T1> iterator = resources.iterator();
+        while (count < rowLimit && iterator.hasNext()) {
+            T1 resource = iterator.next();
+            preResponse(request, authentication, resource);
+            count++;
+            if (!csv) {
+                writer.write(objectMapper.writeValueAsString(resource));
+                writer.write('\n');
+                continue;
+            }
+            JsonNode row = objectMapper.valueToTree(resource);
+            if (columns == null) {
+                columns = new ArrayList<>();
+                row.fieldNames().forEachRemaining(columns::add);
+                CsvUtil.writeRow(writer, columns);
+            }
+            List<String> values = new ArrayList<>();
+            for (String column : columns) {
+                JsonNode value = row.get(column);
+                values.add(value == null || value.isNull() ? "" : value.isValueNode() ? value.asText() : value.toString());
+            }
+            CsvUtil.writeRow(writer, values);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     @RequestMapping(method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> store(HttpServletRequest httpServletRequest, Authentication authentication,
@@ -230,19 +442,11 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
         String msg = validateBeforeCommit(resource);
         if (msg != null) throw new IllegalArgumentException(msg);
         if (this.isStoreAsynchronously()) {
-            AtomicReference<T1> atomicResource = new AtomicReference<>(resource);
-            new Thread(() -> {
-                try {
-                    T1 savedResource = repository.saveAndFlush(atomicResource.get());
-                    this.postCreate(httpServletRequest, authentication, savedResource);
-                } catch (Exception ex) {
-                    this.onAsynchronousError("Store", atomicResource.get(), ex);
-                }
-            }).start();
+            submitStore(httpServletRequest, authentication, resource);
             return processResponse(httpServletRequest, authentication, HttpStatus.ACCEPTED, null, String.format("%s is being created", this.fineName));
         }
         resource = repository.saveAndFlush(resource);
-        this.postCreate(httpServletRequest, authentication, resource);
+        afterCreate(httpServletRequest, authentication, resource);
         preResponse(httpServletRequest, authentication, resource);
         return processResponse(httpServletRequest, authentication, HttpStatus.CREATED, resource, String.format("%s created successfully", this.fineName));
     }
@@ -258,7 +462,6 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
         this.validateRouteAccess(httpServletRequest, RouteMethod.STORE_MULTIPLE,
                 "The POST '**/multiple' route is not supported for this resource");
         List<T1> resources = new ArrayList<>();
-        List<Object> results = new ArrayList<>();
         for (T2 entityRequest : entityRequests) {
             Validator validator = localValidatorFactoryBean.unwrap(HibernateValidatorFactory.class )
                     .usingContext().getValidator();
@@ -273,45 +476,123 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
             if (msg != null) throw new IllegalArgumentException(msg);
             resources.add(resource);
         }
+        if (this.isStoreAsynchronously()) {
+            for (T1 resource : resources) submitStore(httpServletRequest, authentication, resource);
+            return processResponse(httpServletRequest, authentication, HttpStatus.ACCEPTED, null, String.format("%ss are being created", this.fineName));
+        }
+        List<Object> results = storeInBatch(httpServletRequest, authentication, resources);
+        return processResponse(httpServletRequest, authentication, HttpStatus.CREATED, results,
+                String.format("The %s(s) are created successfully", this.fineName));
+    }
+
+    // the records of a JSON array, NDJSON or a CSV body with a header row are read one at a time and saved per
+    // chunk of importChunkSize in its own transaction, the response is a summary per chunk
+    @RequestMapping(value = "/import", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> importResources(HttpServletRequest httpServletRequest, Authentication authentication)
+            throws IOException {
+
+        this.validateRouteAccess(httpServletRequest, RouteMethod.IMPORT,
+                "The POST '**/import' route is not supported for this resource");
+        ImportSession importSession = new ImportSession(httpServletRequest, authentication, resolveRequestClass());
+        String contentType = httpServletRequest.getContentType();
+        InputStream inputStream = httpServletRequest.getInputStream();
+        if (contentType != null && contentType.contains("csv")) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+            List<String> columns = CsvUtil.readRow(reader);
+            List<String> values;
+            while (columns != null && (values = CsvUtil.readRow(reader)) != null) {
+                if (values.size() == 1 && values.get(0).isEmpty()) continue;
+                ObjectNode record = objectMapper.createObjectNode();
+                for (int index = 0; index < columns.size() && index < values.size(); index++) {
+                    String value = values.get(index);
+                    if (value.isEmpty()) record.putNull(columns.get(index));
+                    else record.put(columns.get(index), value);
+                }
+                importSession.accept(record);
+            }
+        } else {
+            try (JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+                JsonToken token = parser.nextToken();
+                if (token == JsonToken.START_ARRAY) token = parser.nextToken();
+                while (token != null && token != JsonToken.END_ARRAY) {
+                    importSession.accept(parser.readValueAsTree());
+                    token = parser.nextToken();
+                }
+            }
+        }
+        importSession.flush();
+        return processResponse(httpServletRequest, authentication, HttpStatus.CREATED, importSession.summaries,
+                String.format("The %s(s) are imported", this.fineName));
+    }
+
+    // saved in one transaction with JDBC batching, the persistence context can be cleared after the flush so a
+    // chunk is not kept in memory. Hibernate inserts entities with IDENTITY ids one by one whatever the batch size
+    public List<T1> saveInBatch(List<T1> resources, boolean clearAfterFlush) {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        return transactionTemplate.execute(status -> {
+            entityManager.unwrap(Session.class).setJdbcBatchSize(jdbcBatchSize);
+            List<T1> savedResources = repository.saveAll(resources);
+            entityManager.flush();
+            if (clearAfterFlush) entityManager.clear();
+            return savedResources;
+        });
+    }
+
+    @SneakyThrows
+    List<T1> copiesOf(List<T1> resources) {
+        List<T1> copies = new ArrayList<>();
         for (T1 resource : resources) {
-            try {
-                if (this.isStoreAsynchronously()) {
-                    AtomicReference<T1> atomicResource = new AtomicReference<>(resource);
-                    new Thread(() -> {
-                        try {
-                            T1 savedResource = repository.saveAndFlush(atomicResource.get());
-                            this.postCreate(httpServletRequest, authentication, savedResource);
-                        } catch (Exception ex) {
-                            this.onAsynchronousError("Store", atomicResource.get(), ex);
-                        }
-                    }).start();
+            T1 copy = entityClass.getDeclaredConstructor().newInstance();
+            Copier.copyBlindly(copy, resource);
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    // copies of the entities are saved as one batch so a failed batch leaves the entities as they were, it is
+    // rolled back and every entity is then saved on its own to report the failing ones in their position
+    public List<Object> storeInBatch(HttpServletRequest httpServletRequest, Authentication authentication,
+                                     List<T1> resources) {
+        List<T1> savedResources = null;
+        try {
+            savedResources = saveInBatch(copiesOf(resources), false);
+        } catch (DataAccessException | PersistenceException | TransactionException | ValidationException exception) {
+            if (!isEntityFailure(exception)) throw exception;
+            log.warn("The batch of {} {}s failed and is stored one at a time: {}", resources.size(), fineName,
+                    exception.getMessage());
+        }
+        List<Object> results = new ArrayList<>();
+        for (int index = 0; index < resources.size(); index++) {
+            T1 resource;
+            if (savedResources != null) {
+                resource = savedResources.get(index);
+            } else {
+                try {
+                    resource = repository.saveAndFlush(resources.get(index));
+                } catch (Exception exception) {
+                    results.add(exception.getMessage());
                     continue;
                 }
-                resource = repository.saveAndFlush(resource);
-            } catch (Exception exception) {
-                results.add(exception.getMessage());
-                continue;
             }
-            this.postCreate(httpServletRequest, authentication, resource);
+            afterCreate(httpServletRequest, authentication, resource);
             preResponse(httpServletRequest, authentication, resource);
             results.add(resource);
         }
-        if (this.isStoreAsynchronously()) {
-            return processResponse(httpServletRequest, authentication, HttpStatus.ACCEPTED, null, String.format("%ss are being created", this.fineName));
-        }
-        return processResponse(httpServletRequest, authentication, HttpStatus.CREATED, results,
-                String.format("The %s(s) are created successfully", this.fineName));
+        return results;
     }
 
     @RequestMapping(value = "/{id}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> show(HttpServletRequest request, Authentication authentication, @PathVariable Object id) {
         this.validateRouteAccess(request, RouteMethod.SHOW,
                 "The GET '**/{id}' route is not supported for this resource");
-        request = preQuery(sanitizeAndGetRequestParameters(request, authentication), authentication);
-        T1 resource = getResourceById(id, authentication, request);
-        postGetResourceById(request, authentication, resource);
-        preResponse(request, authentication, resource);
-        return processResponse(request, authentication, HttpStatus.OK, resource, String.format("%s fetch successfully", this.fineName));
+        HttpServletRequest queryRequest = preQuery(sanitizeAndGetRequestParameters(request, authentication), authentication);
+        return coalesceRead(queryRequest, authentication, id, () -> {
+            T1 resource = getResourceById(id, authentication, queryRequest);
+            postGetResourceById(queryRequest, authentication, resource);
+            preResponse(queryRequest, authentication, resource);
+            return processResponse(queryRequest, authentication, HttpStatus.OK, resource,
+                    String.format("%s fetch successfully", this.fineName));
+        });
     }
 
     @SneakyThrows
@@ -348,24 +629,398 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
         resource.resolve(request, queryArmoury, userDetails);
         String msg = validateBeforeCommit(resource);
         if (msg != null) throw new IllegalArgumentException(msg);
+        List<String> changedFields = Copier.changedFields(previousResource, resource);
+        // nothing is written when no field changed but the post hook still sees the update
+        if (changedFields.isEmpty()) {
+            this.postUpdate(httpServletRequest, authentication, previousResource, resource);
+            preResponse(httpServletRequest, authentication, resource);
+            return processResponse(httpServletRequest, authentication, HttpStatus.OK, resource, String.format("%s updated successfully", this.fineName));
+        }
         if (this.isUpdateAsynchronously()) {
-            AtomicReference<T1> atomicResource = new AtomicReference<>(resource);
-            new Thread(() -> {
-                try {
-                    T1 savedResource = repository.saveAndFlush(atomicResource.get());
-                    this.postUpdate(httpServletRequest, authentication, previousResource, savedResource);
-                } catch (Exception ex) {
-                    this.onAsynchronousError("Update", atomicResource.get(), ex);
-                }
-            }).start();
+            T1 changedResource = resource;
+            writeBehindQueue().submit(new WriteBehindQueue.Write<>(writeKey(previousResource), updateWriter,
+                    new ChangedResource<>(changedResource, new LinkedHashSet<>(changedFields)), this::coalesceChanges,
+                    savedResource -> afterUpdate(httpServletRequest, authentication, previousResource,
+                            entityClass.cast(savedResource)),
+                    ex -> this.onAsynchronousError("Update", changedResource, ex)));
             return processResponse(httpServletRequest, authentication, HttpStatus.ACCEPTED, null, String.format("%s is being updated", this.fineName));
         }
-        resource = repository.saveAndFlush(resource);
-        this.postUpdate(httpServletRequest, authentication, previousResource, resource);
+        resource = saveChangedFields(resource, changedFields);
+        afterUpdate(httpServletRequest, authentication, previousResource, resource);
         preResponse(httpServletRequest, authentication, resource);
         return processResponse(httpServletRequest, authentication, HttpStatus.OK, resource, String.format("%s updated successfully", this.fineName));
     }
 
+    public WriteBehindQueue writeBehindQueue() {
+        if (writeBehindQueue == null) writeBehindQueue = WriteBehindQueue.shared();
+        return writeBehindQueue;
+    }
+
+    // the cached query results of the entity are dropped before the post hook of every write runs
+    void afterCreate(HttpServletRequest request, Authentication authentication, T1 resource) {
+        queryArmoury.recordRollupWrite(entityClass, resource);
+        queryArmoury.invalidateQueryResults(entityClass);
+        this.postCreate(request, authentication, resource);
+    }
+
+    void afterUpdate(HttpServletRequest request, Authentication authentication, T1 previousResource, T1 resource) {
+        queryArmoury.recordRollupWrite(entityClass, previousResource, resource);
+        queryArmoury.invalidateQueryResults(entityClass);
+        this.postUpdate(request, authentication, previousResource, resource);
+    }
+
+    void afterDelete(HttpServletRequest request, Authentication authentication, T1 resource) {
+        queryArmoury.recordRollupWrite(entityClass, resource);
+        queryArmoury.invalidateQueryResults(entityClass);
+        this.postDelete(request, authentication, resource);
+    }
+
+    // writes to the same entity share a key so they are written in order
+    Object writeKey(T1 resource) {
+        Object id = entityManager.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(resource);
+        return id != null ? List.of(entityClass, id) : null;
+    }
+
+    void submitStore(HttpServletRequest httpServletRequest, Authentication authentication, T1 resource) {
+        writeBehindQueue().submit(new WriteBehindQueue.Write<>(null, storeWriter, resource, null,
+                savedResource -> afterCreate(httpServletRequest, authentication, entityClass.cast(savedResource)),
+                ex -> this.onAsynchronousError("Store", resource, ex)));
+    }
+
+    // a later pending update of the same entity is applied over the earlier one so the changes of both are written
+    ChangedResource<T1> coalesceChanges(ChangedResource<T1> pending, ChangedResource<T1> next) {
+        for (String fieldName : next.changedFields()) {
+            Field field = FieldUtil.getDeclaredField(entityClass, fieldName);
+            try {
+                field.setAccessible(true);
+                field.set(pending.resource(), field.get(next.resource()));
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        pending.changedFields().addAll(next.changedFields());
+        return pending;
+    }
+
+    record ChangedResource<T>(T resource, Set<String> changedFields) {}
+
+    // an UPDATE setting only the columns of the changed fields, the entity is saved whole if it is versioned,
+    // has lifecycle callbacks or a changed field is not a single valued attribute
+    public T1 saveChangedFields(T1 resource, List<String> changedFields) {
+        Object id = entityManager.getEntityManagerFactory().getPersistenceUnitUtil().getIdentifier(resource);
+        Map<String, Object> values = changedValues(resource, changedFields);
+        if (id == null || values == null) return repository.saveAndFlush(resource);
+        EntityType<T1> entityType = entityManager.getMetamodel().entity(entityClass);
+        StringBuilder assignments = new StringBuilder();
+        for (String fieldName : values.keySet()) {
+            if (!assignments.isEmpty()) assignments.append(", ");
+            assignments.append(String.format("e.%s = :%s", fieldName, fieldName));
+        }
+        String queryString = String.format("UPDATE %s e SET %s WHERE e.id = :id", entityType.getName(), assignments);
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        Integer updatedRows = transactionTemplate.execute(status -> {
+            jakarta.persistence.Query query = entityManager.createQuery(queryString);
+            for (Map.Entry<String, Object> value : values.entrySet()) query.setParameter(value.getKey(), value.getValue());
+            query.setParameter("id", id);
+            return query.executeUpdate();
+        });
+        if (updatedRows == null || updatedRows == 0) {
+            throw new EntityNotFoundException(String.format(NO_RESOURCE_FORMAT_STRING, fineName, id));
+        }
+        return resource;
+    }
+
+    // the values of the changed fields, null when the entity should be saved whole
+    Map<String, Object> changedValues(T1 resource, List<String> changedFields) {
+        if (!supportsPartialUpdate()) return null;
+        EntityType<T1> entityType = entityManager.getMetamodel().entity(entityClass);
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (String fieldName : changedFields) {
+            Attribute<? super T1, ?> attribute;
+            try {
+                attribute = entityType.getAttribute(fieldName);
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+            Field field = FieldUtil.getDeclaredField(entityClass, fieldName);
+            if (attribute.isCollection() || field == null) return null;
+            try {
+                field.setAccessible(true);
+                values.put(fieldName, field.get(resource));
+            } catch (IllegalAccessException ex) {
+                return null;
+            }
+        }
+        return values;
+    }
+
+    // a JPQL update skips the optimistic lock check and the entity callbacks, the entity class is inspected once
+    public boolean supportsPartialUpdate() {
+        if (partialUpdateSupported != null) return partialUpdateSupported;
+        boolean supported = true;
+        for (Class<?> type = entityClass; supported && type != null && type != Object.class; type = type.getSuperclass()) {
+            if (type.isAnnotationPresent(EntityListeners.class)) supported = false;
+            for (Field field : type.getDeclaredFields()) {
+                if (field.isAnnotationPresent(Version.class)) supported = false;
+            }
+            for (Method method : type.getDeclaredMethods()) {
+                if (method.isAnnotationPresent(PreUpdate.class) || method.isAnnotationPresent(PostUpdate.class)) {
+                    supported = false;
+                }
+            }
+        }
+        return partialUpdateSupported = supported;
+    }
+
+    // a JPQL delete skips the cascades, orphan removal, soft deletes and the entity callbacks, the entity class
+    // is inspected once
+    public boolean supportsBulkDelete() {
+        if (bulkDeleteSupported != null) return bulkDeleteSupported;
+        boolean supported = true;
+        for (Class<?> type = entityClass; supported && type != null && type != Object.class; type = type.getSuperclass()) {
+            if (type.isAnnotationPresent(EntityListeners.class) || type.isAnnotationPresent(SQLDelete.class)
+                    || type.isAnnotationPresent(SoftDelete.class)) supported = false;
+            for (Field field : type.getDeclaredFields()) {
+                if (field.isAnnotationPresent(ElementCollection.class) || cascadesRemove(field)) supported = false;
+            }
+            for (Method method : type.getDeclaredMethods()) {
+                if (method.isAnnotationPresent(PreRemove.class) || method.isAnnotationPresent(PostRemove.class)) {
+                    supported = false;
+                }
+            }
+        }
+        return bulkDeleteSupported = supported;
+    }
+
+    static boolean cascadesRemove(Field field) {
+        CascadeType[] cascadeTypes = null;
+        boolean orphanRemoval = false;
+        OneToMany oneToMany = field.getAnnotation(OneToMany.class);
+        OneToOne oneToOne = field.getAnnotation(OneToOne.class);
+        ManyToMany manyToMany = field.getAnnotation(ManyToMany.class);
+        ManyToOne manyToOne = field.getAnnotation(ManyToOne.class);
+        if (oneToMany != null) {
+            cascadeTypes = oneToMany.cascade();
+            orphanRemoval = oneToMany.orphanRemoval();
+        } else if (oneToOne != null) {
+            cascadeTypes = oneToOne.cascade();
+            orphanRemoval = oneToOne.orphanRemoval();
+        } else if (manyToMany != null) {
+            cascadeTypes = manyToMany.cascade();
+        } else if (manyToOne != null) {
+            cascadeTypes = manyToOne.cascade();
+        }
+        if (orphanRemoval) return true;
+        if (cascadeTypes == null) return false;
+        for (CascadeType cascadeType : cascadeTypes) {
+            if (cascadeType == CascadeType.REMOVE || cascadeType == CascadeType.ALL) return true;
+        }
+        return false;
+    }
+
+    // a list of {id, changes}, the targets are loaded with one IN query and the entities that changed are written
+    // in one transaction grouped by their changed fields, the result of each item is the entity or the error
+    @SneakyThrows
+    @RequestMapping(value = "/multiple", method = RequestMethod.PATCH, produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<?> updateMultiple(HttpServletRequest httpServletRequest, Authentication authentication,
+                                            @Valid @NotEmpty(message = "The request list cannot be empty") @RequestBody
+                                            List<JsonNode> entityRequests) {
+
+        this.validateRouteAccess(httpServletRequest, RouteMethod.UPDATE_MULTIPLE,
+                "The PATCH '**/multiple' route is not supported for this resource");
+        UserDetails<?> userDetails = null;
+        if (authentication != null && authentication.getPrincipal() != null && authentication.getPrincipal() instanceof UserDetails secondUserDetails) {
+            userDetails = secondUserDetails;
+        }
+        Class<T2> requestClass = resolveRequestClass();
+        int size = entityRequests.size();
+        List<Object> results = new ArrayList<>(Collections.nCopies(size, null));
+        List<Long> ids = new ArrayList<>(Collections.nCopies(size, null));
+        for (int index = 0; index < size; index++) {
+            JsonNode id = entityRequests.get(index).get("id");
+            if (id == null || !id.canConvertToLong()) results.set(index, "The id of the entry is missing or invalid");
+            else ids.set(index, id.asLong());
+        }
+        Map<Long, T1> previousResources = findResourcesByIds(ids.stream().filter(Objects::nonNull).distinct().toList(),
+                authentication, httpServletRequest);
+        List<T1> previous = new ArrayList<>(Collections.nCopies(size, null));
+        List<T1> updated = new ArrayList<>(Collections.nCopies(size, null));
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int index = 0; index < size; index++) {
+            if (results.get(index) != null) continue;
+            Long id = ids.get(index);
+            T1 previousResource = previousResources.get(id);
+            if (previousResource == null) {
+                results.set(index, String.format(NO_RESOURCE_FORMAT_STRING, fineName, id));
+                continue;
+            }
+            try {
+                postGetResourceById(httpServletRequest, authentication, previousResource);
+                T2 request = objectMapper.treeToValue(entityRequests.get(index).path("changes"), requestClass);
+                request.___BARMOURY_UPDATE_ENTITY_ID___ = id;
+                Validator validator = localValidatorFactoryBean.unwrap(HibernateValidatorFactory.class )
+                        .usingContext()
+                        .constraintValidatorPayload(id)
+                        .getValidator();
+                Set<? extends ConstraintViolation<?>> errors = validator
+                        .validate(request, ValidationGroups.Update.class);
+                if (!errors.isEmpty()) {
+                    throw new ConstraintViolationException(request.getClass(), errors);
+                }
+                entityManager.detach(previousResource);
+                T1 resource = entityClass.getDeclaredConstructor()
+                        .newInstance();
+                Copier.copyBlindly(resource, previousResource);
+                this.preUpdate(httpServletRequest, authentication, resource, request);
+                resource.resolve(request, queryArmoury, userDetails);
+                String msg = validateBeforeCommit(resource);
+                if (msg != null) throw new IllegalArgumentException(msg);
+                List<String> changedFields = Copier.changedFields(previousResource, resource);
+                if (changedFields.isEmpty()) {
+                    this.postUpdate(httpServletRequest, authentication, previousResource, resource);
+                    preResponse(httpServletRequest, authentication, resource);
+                    results.set(index, resource);
+                    continue;
+                }
+                previous.set(index, previousResource);
+                updated.set(index, resource);
+                groups.computeIfAbsent(String.join(",", changedFields), k -> new ArrayList<>()).add(index);
+            } catch (Exception exception) {
+                results.set(index, exception.getMessage());
+            }
+        }
+        List<Integer> indexes = new ArrayList<>();
+        List<T1> resources = new ArrayList<>();
+        List<List<String>> groupFields = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            groupFields.add(List.of(group.getKey().split(",")));
+            for (Integer index : group.getValue()) {
+                indexes.add(index);
+                resources.add(updated.get(index));
+            }
+        }
+        List<Object> savedResources = updateInBatch(resources, groups.values().stream().map(List::size).toList(),
+                groupFields);
+        for (int position = 0; position < indexes.size(); position++) {
+            int index = indexes.get(position);
+            Object savedResource = savedResources.get(position);
+            results.set(index, savedResource);
+            if (!entityClass.isInstance(savedResource)) continue;
+            afterUpdate(httpServletRequest, authentication, previous.get(index), entityClass.cast(savedResource));
+            preResponse(httpServletRequest, authentication, entityClass.cast(savedResource));
+        }
+        return processResponse(httpServletRequest, authentication, HttpStatus.OK, results,
+                String.format("The %s(s) are updated successfully", this.fineName));
+    }
+
+    // the groups are written in order in one transaction, the rows of a group set the same fields so every
+    // jdbcBatchSize of them are written with a single UPDATE of those columns, a group is merged whole when the
+    // entity does not support partial updates, a failed transaction is rolled back and every entity is then
+    // saved on its own with the error message in the place of a failing one
+    public List<Object> updateInBatch(List<T1> resources, List<Integer> groupSizes, List<List<String>> groupFields) {
+        List<Object> results = new ArrayList<>();
+        if (resources.isEmpty()) return results;
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        try {
+            List<T1> savedResources = transactionTemplate.execute(status -> {
+                entityManager.unwrap(Session.class).setJdbcBatchSize(jdbcBatchSize);
+                List<T1> writtenResources = new ArrayList<>();
+                int start = 0;
+                for (int groupIndex = 0; groupIndex < groupSizes.size(); groupIndex++) {
+                    List<T1> group = resources.subList(start, start + groupSizes.get(groupIndex));
+                    start += group.size();
+                    for (int chunkStart = 0; chunkStart < group.size(); chunkStart += jdbcBatchSize) {
+                        List<T1> chunk = group.subList(chunkStart, Math.min(group.size(), chunkStart + jdbcBatchSize));
+                        writtenResources.addAll(updateChangedFields(chunk, groupFields.get(groupIndex)));
+                    }
+                }
+                entityManager.flush();
+                return writtenResources;
+            });
+            if (savedResources != null) return new ArrayList<>(savedResources);
+        } catch (DataAccessException | PersistenceException | TransactionException | ValidationException exception) {
+            if (!isEntityFailure(exception)) throw exception;
+            log.warn("The batch of {} {}s failed and is updated one at a time: {}", resources.size(), fineName,
+                    exception.getMessage());
+        }
+        int start = 0;
+        for (int groupIndex = 0; groupIndex < groupSizes.size(); groupIndex++) {
+            for (T1 resource : resources.subList(start, start + groupSizes.get(groupIndex))) {
+                try {
+                    results.add(saveChangedFields(resource, groupFields.get(groupIndex)));
+                } catch (Exception exception) {
+                    results.add(exception.getMessage());
+                }
+            }
+            start += groupSizes.get(groupIndex);
+        }
+        return results;
+    }
+
+    // a batch is written again one entity at a time when an entity of it was rejected, a lost connection would
+    // fail every entity as well so it is rethrown
+    static boolean isEntityFailure(Exception exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof DataAccessResourceFailureException || cause instanceof JDBCConnectionException
+                    || cause instanceof SQLTransientConnectionException
+                    || cause instanceof SQLNonTransientConnectionException) return false;
+        }
+        return true;
+    }
+
+    // UPDATE ... SET e.field = CASE e.id WHEN :id_0 THEN :field_0 ... END WHERE e.id IN :ids for entities with
+    // the same changed fields, they are merged instead when the entity must be saved whole, the last write of an
+    // id repeated in the chunk is the one written
+    List<T1> updateChangedFields(List<T1> resources, List<String> changedFields) {
+        PersistenceUnitUtil persistenceUnitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        Map<Object, Map<String, Object>> idValues = new LinkedHashMap<>();
+        for (T1 resource : resources) {
+            Map<String, Object> resourceValues = changedValues(resource, changedFields);
+            Object id = persistenceUnitUtil.getIdentifier(resource);
+            if (resourceValues == null || id == null) {
+                List<T1> mergedResources = new ArrayList<>();
+                for (T1 mergedResource : resources) mergedResources.add(entityManager.merge(mergedResource));
+                return mergedResources;
+            }
+            idValues.put(id, resourceValues);
+        }
+        List<Object> ids = new ArrayList<>(idValues.keySet());
+        List<Map<String, Object>> values = new ArrayList<>(idValues.values());
+        StringBuilder assignments = new StringBuilder();
+        for (int field = 0; field < changedFields.size(); field++) {
+            String fieldName = changedFields.get(field);
+            if (!assignments.isEmpty()) assignments.append(", ");
+            assignments.append(String.format("e.%s = CASE e.id", fieldName));
+            for (int row = 0; row < ids.size(); row++) {
+                assignments.append(String.format(" WHEN :id_%d THEN :value_%d_%d", row, row, field));
+            }
+            assignments.append(String.format(" ELSE e.%s END", fieldName));
+        }
+        jakarta.persistence.Query query = entityManager.createQuery(String.format(
+                "UPDATE %s e SET %s WHERE e.id IN :ids", entityManager.getMetamodel().entity(entityClass).getName(),
+                assignments));
+        for (int row = 0; row < ids.size(); row++) {
+            query.setParameter("id_" + row, ids.get(row));
+            for (int field = 0; field < changedFields.size(); field++) {
+                query.setParameter(String.format("value_%d_%d", row, field),
+                        values.get(row).get(changedFields.get(field)));
+            }
+        }
+        int updatedRows = query.setParameter("ids", ids).executeUpdate();
+        if (updatedRows != ids.size()) {
+            throw new EntityNotFoundException(String.format("%d of the %s ids were not found",
+                    ids.size() - updatedRows, fineName));
+        }
+        return resources;
+    }
+
+    @SuppressWarnings("unchecked")
+    Class<T2> resolveRequestClass() {
+        Class<?>[] typeArguments = GenericTypeResolver.resolveTypeArguments(getClass(), Controller.class);
+        if (typeArguments == null) throw new IllegalStateException("Could not resolve the request class");
+        return (Class<T2>) typeArguments[1];
+    }
+
     @RequestMapping(value = "/{id}", method = RequestMethod.DELETE, produces = MediaType.APPLICATION_JSON_VALUE)
     public ResponseEntity<?> destroy(HttpServletRequest request, Authentication authentication, @PathVariable Object id) {
         this.validateRouteAccess(request, RouteMethod.DESTROY,
@@ -374,18 +1029,13 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
         postGetResourceById(request, authentication, resource);
         this.preDelete(request, authentication, resource, id);
         if (this.isUpdateAsynchronously()) {
-            new Thread(() -> {
-                try {
-                    repository.delete(resource);
-                    this.postDelete(request, authentication, resource);
-                } catch (Exception ex) {
-                    this.onAsynchronousError("Delete", resource, ex);
-                }
-            }).start();
+            writeBehindQueue().submit(new WriteBehindQueue.Write<>(writeKey(resource), deleteWriter, resource,
+                    null, deletedResource -> afterDelete(request, authentication, resource),
+                    ex -> this.onAsynchronousError("Delete", resource, ex)));
             return processResponse(request, authentication, HttpStatus.ACCEPTED, null, String.format("%s is being deleted", this.fineName));
         }
         repository.delete(resource);
-        this.postDelete(request, authentication, resource);
+        afterDelete(request, authentication, resource);
         preResponse(request, authentication, resource);
         return new ResponseEntity<>(HttpStatus.NO_CONTENT);
     }
@@ -396,33 +1046,200 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
 
         this.validateRouteAccess(request, RouteMethod.DESTROY_MULTIPLE,
                 "The DELETE '**/multiple' route is not supported for this resource");
-        List<T1> resources = ids.stream().map((id) -> getResourceById(id, authentication, request)).toList();
+        List<Long> entityIds = ids.stream().map((id) -> Long.parseLong(id.toString())).distinct().toList();
+        boolean loadResources = loadBeforeDestroyMultiple();
+        List<T1> resources = loadResources ? getResourcesByIds(entityIds, authentication, request) : List.of();
         for (T1 resource : resources) {
             postGetResourceById(request, authentication, resource);
             this.preDelete(request, authentication, resource, (resource instanceof IdModel resourceId
                     ? resourceId.getId()
                     : 0));
-            if (this.isDeleteAsynchronously()) {
-                new Thread(() -> {
-                    try {
-                        repository.delete(resource);
-                        this.postDelete(request, authentication, resource);
-                    } catch (Exception ex) {
-                        this.onAsynchronousError("Delete", resource, ex);
-                    }
-                }).start();
-                continue;
-            }
-            repository.delete(resource);
-            this.postDelete(request, authentication, resource);
-            preResponse(request, authentication, resource);
         }
         if (this.isDeleteAsynchronously()) {
+            writeBehindQueue().submit(new WriteBehindQueue.Write<List<Long>>(null, values -> {
+                        for (List<Long> value : values) deleteInBatch(value, false);
+                        return null;
+                    }, entityIds, null,
+                    deletedResources -> {
+                        queryArmoury.invalidateQueryResults(entityClass);
+                        for (T1 resource : resources) afterDelete(request, authentication, resource);
+                    },
+                    ex -> this.onAsynchronousError("Delete", null, ex)));
             return processResponse(request, authentication, HttpStatus.ACCEPTED, null, String.format("%ss are being deleted", this.fineName));
         }
+        deleteInBatch(entityIds, !loadResources);
+        queryArmoury.invalidateQueryResults(entityClass);
+        for (T1 resource : resources) {
+            afterDelete(request, authentication, resource);
+            preResponse(request, authentication, resource);
+        }
         return new ResponseEntity<>(HttpStatus.NO_CONTENT);
     }
 
+    // the entities are loaded before a bulk delete only if the controller overrides a hook that could use them
+    public boolean loadBeforeDestroyMultiple() {
+        return overrides("getResourceById", Object.class)
+                || overrides("getResourceById", Object.class, Authentication.class)
+                || overrides("getResourceById", Object.class, Authentication.class, HttpServletRequest.class)
+                || overrides("postGetResourceById", HttpServletRequest.class, Authentication.class, Model.class)
+                || overrides("preDelete", HttpServletRequest.class, Authentication.class, Model.class, Object.class)
+                || overrides("postDelete", HttpServletRequest.class, Authentication.class, Model.class)
+                || overrides("preResponse", Model.class)
+                || overrides("preResponse", HttpServletRequest.class, Authentication.class, Model.class);
+    }
+
+    boolean overrides(String name, Class<?>... parameterTypes) {
+        try {
+            return ClassUtils.getUserClass(getClass()).getMethod(name, parameterTypes).getDeclaringClass()
+                    != Controller.class;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    public List<T1> getResourcesByIds(List<Long> ids, Authentication authentication, HttpServletRequest request) {
+        Map<Long, T1> foundResources = findResourcesByIds(ids, authentication, request);
+        List<T1> resources = new ArrayList<>();
+        for (Long id : ids) {
+            T1 resource = foundResources.get(id);
+            if (resource == null) {
+                throw new EntityNotFoundException(String.format(NO_RESOURCE_FORMAT_STRING, fineName, id));
+            }
+            resources.add(resource);
+        }
+        return resources;
+    }
+
+    // one IN query per chunk of deleteChunkSize ids, a custom getResourceById is still called per id and the ids
+    // it does not return are left out
+    public Map<Long, T1> findResourcesByIds(List<Long> ids, Authentication authentication, HttpServletRequest request) {
+        Map<Long, T1> resources = new HashMap<>();
+        boolean customLoad = overrides("getResourceById", Object.class)
+                || overrides("getResourceById", Object.class, Authentication.class)
+                || overrides("getResourceById", Object.class, Authentication.class, HttpServletRequest.class);
+        if (customLoad) {
+            for (Long id : ids) {
+                try {
+                    T1 resource = getResourceById(id, authentication, request);
+                    if (resource != null) resources.put(id, resource);
+                } catch (EntityNotFoundException ignored) {}
+            }
+            return resources;
+        }
+        PersistenceUnitUtil persistenceUnitUtil = entityManager.getEntityManagerFactory().getPersistenceUnitUtil();
+        for (int start = 0; start < ids.size(); start += deleteChunkSize) {
+            List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + deleteChunkSize));
+            for (T1 resource : repository.findAllById(chunk)) {
+                Object id = persistenceUnitUtil.getIdentifier(resource);
+                if (id instanceof Number number) resources.put(number.longValue(), resource);
+            }
+        }
+        return resources;
+    }
+
+    // one DELETE ... WHERE id IN per chunk in a single transaction, when the entities were not loaded a missing id
+    // rolls every chunk back like a failed getResourceById would have stopped the request, an entity the bulk
+    // delete would not remove like repository.delete does is loaded and deleted per chunk instead
+    public void deleteInBatch(List<Long> ids, boolean verifyCount) {
+        String entityName = entityManager.getMetamodel().entity(entityClass).getName();
+        boolean bulkDelete = supportsBulkDelete();
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.executeWithoutResult(status -> {
+            for (int start = 0; start < ids.size(); start += deleteChunkSize) {
+                List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + deleteChunkSize));
+                int deleted;
+                if (bulkDelete) {
+                    deleted = entityManager.createQuery(String.format("DELETE FROM %s e WHERE e.id IN :ids",
+                            entityName)).setParameter("ids", chunk).executeUpdate();
+                } else {
+                    List<T1> resources = repository.findAllById(chunk);
+                    repository.deleteAll(resources);
+                    deleted = resources.size();
+                }
+                if (verifyCount && deleted != chunk.size()) {
+                    throw new EntityNotFoundException(String.format("%d of the %s ids were not found",
+                            chunk.size() - deleted, fineName));
+                }
+            }
+        });
+    }
+
+    // the records of an import chunk, a record that fails to resolve or validate is reported and skipped while
+    // a failing save rolls the whole chunk back
+    class ImportSession {
+
+        final HttpServletRequest request;
+        final Authentication authentication;
+        final Class<T2> requestClass;
+        final Validator validator;
+        final List<Object> summaries = new ArrayList<>();
+        List<T1> resources = new ArrayList<>();
+        List<Object> errors = new ArrayList<>();
+        int index;
+        int received;
+
+        ImportSession(HttpServletRequest request, Authentication authentication, Class<T2> requestClass) {
+            this.request = request;
+            this.requestClass = requestClass;
+            this.authentication = authentication;
+            this.validator = localValidatorFactoryBean.unwrap(HibernateValidatorFactory.class)
+                    .usingContext().getValidator();
+        }
+
+        void accept(JsonNode record) {
+            int recordIndex = index++;
+            received++;
+            try {
+                T2 entityRequest = objectMapper.treeToValue(record, requestClass);
+                Set<? extends ConstraintViolation<?>> violations = validator
+                        .validate(entityRequest, ValidationGroups.Create.class);
+                if (!violations.isEmpty()) {
+                    throw new ConstraintViolationException(entityRequest.getClass(), violations);
+                }
+                T1 resource = resolveRequestPayload(authentication, entityRequest);
+                preCreate(request, authentication, resource, entityRequest);
+                String msg = validateBeforeCommit(resource);
+                if (msg != null) throw new IllegalArgumentException(msg);
+                resources.add(resource);
+            } catch (Exception exception) {
+                Map<String, Object> error = new LinkedHashMap<>();
+                error.put("index", recordIndex);
+                error.put("message", exception.getMessage());
+                errors.add(error);
+            }
+            if (received >= importChunkSize) flush();
+        }
+
+        void flush() {
+            if (received == 0) return;
+            int saved = 0;
+            if (!resources.isEmpty()) {
+                try {
+                    List<T1> savedResources = saveInBatch(resources, true);
+                    saved = savedResources.size();
+                    for (T1 savedResource : savedResources) afterCreate(request, authentication, savedResource);
+                } catch (Exception exception) {
+                    Map<String, Object> error = new LinkedHashMap<>();
+                    error.put("message", exception.getMessage());
+                    errors.add(error);
+                }
+            }
+            Map<String, Object> summary = new LinkedHashMap<>();
+            summary.put("chunk", summaries.size());
+            summary.put("from", index - received);
+            summary.put("received", received);
+            summary.put("saved", saved);
+            summary.put("failed", received - saved);
+            summary.put("errors", errors);
+            summaries.add(summary);
+            resources = new ArrayList<>();
+            errors = new ArrayList<>();
+            received = 0;
+        }
+
+    }
+
+    // a route built on other routes is only honoured and allowed where they all are
     public enum RouteMethod {
         STAT,
         SHOW,
@@ -431,7 +1248,16 @@ public abstract class Controller<T1 extends Model, T2 extends Model.Request> {
         UPDATE,
         DESTROY,
         STORE_MULTIPLE,
-        DESTROY_MULTIPLE
+        DESTROY_MULTIPLE,
+        EXPORT(INDEX),
+        IMPORT(STORE, STORE_MULTIPLE),
+        UPDATE_MULTIPLE(UPDATE);
+
+        @Getter final RouteMethod[] baseRouteMethods;
+
+        RouteMethod(RouteMethod... baseRouteMethods) {
+            this.baseRouteMethods = baseRouteMethods;
+        }
     }
 
 }
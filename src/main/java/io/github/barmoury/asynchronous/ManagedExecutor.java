@@ -0,0 +1,120 @@
+package io.github.barmoury.asynchronous;
+
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
+import lombok.Getter;
+import lombok.Setter;
+import org.slf4j.MDC;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// runs the background tasks of the library on virtual threads when the runtime has them, otherwise on a
+// bounded pool of named daemon threads whose full queue makes the caller run the task, the MDC of the
+// submitting thread and its current span when a tracer is set are carried into the task
+public class ManagedExecutor implements Executor, AutoCloseable {
+
+    @Getter final String name;
+    @Getter final boolean virtualThreads;
+    @Getter @Setter long drainTimeout = 30000;
+    @Getter @Setter Tracer tracer;
+    final ExecutorService executorService;
+    final ThreadPoolExecutor threadPoolExecutor;
+    final AtomicInteger activeTasks = new AtomicInteger();
+    final AtomicLong completedTasks = new AtomicLong();
+    final AtomicLong failedTasks = new AtomicLong();
+
+    public ManagedExecutor() {
+        this("barmoury", Math.max(4, Runtime.getRuntime().availableProcessors() * 2), 10000, true);
+    }
+
+    public ManagedExecutor(String name, int maxThreads, int queueCapacity, boolean preferVirtualThreads) {
+        this.name = name;
+        ExecutorService virtualThreadExecutor = preferVirtualThreads ? newVirtualThreadExecutor(name) : null;
+        this.virtualThreads = virtualThreadExecutor != null;
+        if (virtualThreads) {
+            this.threadPoolExecutor = null;
+            this.executorService = virtualThreadExecutor;
+            return;
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        this.threadPoolExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, String.format("%s-%d", name, threadCount.getAndIncrement()));
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        this.threadPoolExecutor.allowCoreThreadTimeOut(true);
+        this.executorService = threadPoolExecutor;
+    }
+
+    // Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory()) on JDK 21+
+    static ExecutorService newVirtualThreadExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        Map<String, String> context = MDC.getCopyOfContextMap();
+        Tracer tracer = this.tracer;
+        Span span = tracer != null ? tracer.currentSpan() : null;
+        executorService.execute(() -> {
+            Map<String, String> previousContext = MDC.getCopyOfContextMap();
+            if (context != null) MDC.setContextMap(context); else MDC.clear();
+            activeTasks.incrementAndGet();
+            try (Tracer.SpanInScope ignored = span != null ? tracer.withSpan(span) : null) {
+                task.run();
+                completedTasks.incrementAndGet();
+            } catch (RuntimeException | Error ex) {
+                failedTasks.incrementAndGet();
+                throw ex;
+            } finally {
+                activeTasks.decrementAndGet();
+                if (previousContext != null) MDC.setContextMap(previousContext); else MDC.clear();
+            }
+        });
+    }
+
+    // the tasks waiting for a thread, always 0 on virtual threads
+    public int getQueueDepth() {
+        return threadPoolExecutor != null ? threadPoolExecutor.getQueue().size() : 0;
+    }
+
+    public int getActiveTasks() {
+        return activeTasks.get();
+    }
+
+    public long getCompletedTasks() {
+        return completedTasks.get();
+    }
+
+    public long getFailedTasks() {
+        return failedTasks.get();
+    }
+
+    // no new task is accepted and the submitted ones get drainTimeout to finish, an interrupt cancels them
+    // and is kept on the closing thread
+    @Override
+    public void close() {
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(drainTimeout, TimeUnit.MILLISECONDS)) executorService.shutdownNow();
+        } catch (InterruptedException ex) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,42 @@
+package io.github.barmoury.asynchronous;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+// the first caller of a key runs the call and the callers that arrive while it runs wait for its result or
+// its exception instead of running it again, nothing is kept once the call completes
+public class SingleFlight<K, V> {
+
+    final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    public V execute(K key, Callable<V> callable) throws Exception {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> inFlightCall = calls.putIfAbsent(key, call);
+        if (inFlightCall != null) {
+            try {
+                return inFlightCall.get();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof Exception exception) throw exception;
+                if (ex.getCause() instanceof Error error) throw error;
+                throw ex;
+            }
+        }
+        try {
+            V value = callable.call();
+            call.complete(value);
+            return value;
+        } catch (Exception | Error ex) {
+            call.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    public int getInFlightCount() {
+        return calls.size();
+    }
+
+}
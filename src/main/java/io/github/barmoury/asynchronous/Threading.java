@@ -2,8 +2,25 @@ package io.github.barmoury.asynchronous;
 
 public class Threading {
 
+    static ManagedExecutor executor;
+
     public static void run(Runnable target) {
-        new Thread(target).start();
+        getExecutor().execute(target);
+    }
+
+    // the default executor is drained when the JVM shuts down, an executor declared as a bean is drained
+    // when the application context closes
+    public static synchronized ManagedExecutor getExecutor() {
+        if (executor == null) {
+            ManagedExecutor managedExecutor = new ManagedExecutor();
+            Runtime.getRuntime().addShutdownHook(new Thread(managedExecutor::close, "barmoury-executor-drain"));
+            executor = managedExecutor;
+        }
+        return executor;
+    }
+
+    public static synchronized void setExecutor(ManagedExecutor managedExecutor) {
+        executor = managedExecutor;
     }
 
 }
@@ -0,0 +1,323 @@
+package io.github.barmoury.asynchronous;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+
+// a bounded queue drained by a fixed set of workers, the writes with the same key always go to the same
+// worker so they are applied in order, consecutive writes of the same writer are written as one batch and a
+// pending write can absorb the later writes to its key, a caller only writes a write itself when no earlier
+// write of its key is queued or being written
+public class WriteBehindQueue implements AutoCloseable {
+
+    static WriteBehindQueue sharedQueue;
+
+    @Getter final int workers;
+    @Getter final int capacity;
+    @Getter final int batchSize;
+    @Getter final RejectionPolicy rejectionPolicy;
+    @Getter @Setter long drainTimeout = 30000;
+    final Partition[] partitions;
+    final Thread[] threads;
+    final AtomicInteger nextPartition = new AtomicInteger();
+    volatile boolean closed;
+
+    public enum RejectionPolicy {
+        BLOCK,
+        REJECT,
+        CALLER_RUNS,
+    }
+
+    // writes the values of one batch in order and returns the result of each, an exception fails the batch
+    // and the values are then written one at a time
+    public interface BatchWriter<T> {
+        List<?> write(List<T> values) throws Exception;
+    }
+
+    public WriteBehindQueue(int workers, int capacity, int batchSize, RejectionPolicy rejectionPolicy) {
+        if (workers < 1 || capacity < workers || batchSize < 1) {
+            throw new IllegalArgumentException("The workers, capacity and batch size must be positive and the " +
+                    "capacity must not be less than the workers");
+        }
+        this.workers = workers;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.rejectionPolicy = rejectionPolicy;
+        this.partitions = new Partition[workers];
+        this.threads = new Thread[workers];
+        for (int index = 0; index < workers; index++) {
+            partitions[index] = new Partition(capacity / workers);
+            startWorker(index);
+        }
+    }
+
+    // the shared queue is declared as a bean by the web config so it is drained when the application context
+    // closes, before the entity manager factory its writes use
+    public static synchronized WriteBehindQueue shared() {
+        if (sharedQueue == null) {
+            int workers = Math.max(2, Runtime.getRuntime().availableProcessors());
+            sharedQueue = new WriteBehindQueue(workers, workers * 1000, 100, RejectionPolicy.BLOCK);
+        }
+        return sharedQueue;
+    }
+
+    void startWorker(int index) {
+        Thread thread = new Thread(() -> drain(index), "barmoury-write-behind-" + index);
+        thread.setDaemon(true);
+        threads[index] = thread;
+        thread.start();
+    }
+
+    public <T> void submit(Write<T> write) {
+        if (closed) throw new RejectedExecutionException("The write behind queue is closed");
+        Partition partition = partitions[write.key != null
+                ? Math.floorMod(write.key.hashCode(), workers)
+                : Math.floorMod(nextPartition.getAndIncrement(), workers)];
+        if (partition.offer(write, rejectionPolicy)) return;
+        try {
+            flush(List.of(write));
+        } finally {
+            partition.finish(List.of(write));
+        }
+    }
+
+    public int getPendingCount() {
+        int count = 0;
+        for (Partition partition : partitions) count += partition.size();
+        return count;
+    }
+
+    // a worker stopped by an interrupt or an unexpected error is replaced while the queue is open so the
+    // producers waiting on its partition are never stuck
+    void drain(int index) {
+        Partition partition = partitions[index];
+        try {
+            while (true) {
+                List<Write<?>> writes = partition.take(batchSize);
+                if (writes.isEmpty()) return;
+                try {
+                    int start = 0;
+                    while (start < writes.size()) {
+                        int end = start + 1;
+                        while (end < writes.size() && writes.get(end).writer == writes.get(start).writer) end++;
+                        flush(writes.subList(start, end));
+                        start = end;
+                    }
+                } finally {
+                    partition.finish(writes);
+                }
+            }
+        } finally {
+            if (!partition.isClosed()) startWorker(index);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> void flush(List<? extends Write<?>> writes) {
+        BatchWriter<T> writer = (BatchWriter<T>) writes.get(0).writer;
+        List<T> values = new ArrayList<>();
+        for (Write<?> write : writes) values.add((T) write.value);
+        List<?> results;
+        try {
+            results = writer.write(values);
+        } catch (Exception ex) {
+            if (writes.size() == 1) {
+                writes.get(0).failed(ex);
+                return;
+            }
+            for (Write<?> write : writes) flush(List.of(write));
+            return;
+        }
+        for (int index = 0; index < writes.size(); index++) {
+            writes.get(index).written(results != null && index < results.size() ? results.get(index) : null);
+        }
+    }
+
+    // no more writes are accepted and the workers get drainTimeout to write what is pending, an interrupt
+    // stops the wait and is kept on the closing thread
+    @Override
+    public void close() {
+        closed = true;
+        for (Partition partition : partitions) partition.close();
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        try {
+            for (Thread thread : threads) thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Getter
+    public static class Write<T> {
+
+        final Object key;
+        final BatchWriter<T> writer;
+        T value;
+        final BinaryOperator<T> coalescer;
+        final List<Consumer<Object>> onWritten = new ArrayList<>();
+        final List<Consumer<Exception>> onError = new ArrayList<>();
+
+        // a null key never coalesces, a null coalescer keeps the write apart from the pending ones
+        public Write(Object key, BatchWriter<T> writer, T value, BinaryOperator<T> coalescer,
+                     Consumer<Object> onWritten, Consumer<Exception> onError) {
+            this.key = key;
+            this.writer = writer;
+            this.value = value;
+            this.coalescer = coalescer;
+            if (onWritten != null) this.onWritten.add(onWritten);
+            if (onError != null) this.onError.add(onError);
+        }
+
+        @SuppressWarnings("unchecked")
+        void absorb(Write<?> write) {
+            value = coalescer.apply(value, (T) write.value);
+            onWritten.addAll(write.onWritten);
+            onError.addAll(write.onError);
+        }
+
+        void written(Object result) {
+            for (Consumer<Object> consumer : onWritten) {
+                try {
+                    consumer.accept(result);
+                } catch (Exception ex) {
+                    failed(ex);
+                }
+            }
+        }
+
+        void failed(Exception exception) {
+            for (Consumer<Exception> consumer : onError) consumer.accept(exception);
+        }
+
+    }
+
+    static class Partition {
+
+        final int capacity;
+        final ArrayDeque<Write<?>> writes = new ArrayDeque<>();
+        final Map<Object, Write<?>> pendingWrites = new HashMap<>();
+        final Map<Object, Integer> activeKeys = new HashMap<>();
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition notEmpty = lock.newCondition();
+        final Condition notFull = lock.newCondition();
+        boolean closed;
+
+        Partition(int capacity) {
+            this.capacity = capacity;
+        }
+
+        // false if the caller should write it itself
+        boolean offer(Write<?> write, RejectionPolicy rejectionPolicy) {
+            lock.lock();
+            try {
+                if (write.key != null) {
+                    Write<?> pendingWrite = pendingWrites.get(write.key);
+                    if (pendingWrite != null && pendingWrite.writer == write.writer && write.coalescer != null) {
+                        pendingWrite.absorb(write);
+                        return true;
+                    }
+                }
+                while (writes.size() >= capacity) {
+                    if (rejectionPolicy == RejectionPolicy.REJECT || closed) {
+                        throw new RejectedExecutionException("The write behind queue is full");
+                    }
+                    if (rejectionPolicy == RejectionPolicy.CALLER_RUNS
+                            && (write.key == null || !activeKeys.containsKey(write.key))) {
+                        activate(write);
+                        return false;
+                    }
+                    notFull.awaitUninterruptibly();
+                }
+                writes.add(write);
+                activate(write);
+                if (write.key != null) pendingWrites.put(write.key, write);
+                notEmpty.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // waits for at least one write, empty once closed and drained
+        List<Write<?>> take(int maxWrites) {
+            lock.lock();
+            try {
+                while (writes.isEmpty()) {
+                    if (closed) return List.of();
+                    try {
+                        notEmpty.await(1, TimeUnit.SECONDS);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return List.of();
+                    }
+                }
+                List<Write<?>> taken = new ArrayList<>();
+                while (!writes.isEmpty() && taken.size() < maxWrites) {
+                    Write<?> write = writes.poll();
+                    if (write.key != null) pendingWrites.remove(write.key, write);
+                    taken.add(write);
+                }
+                notFull.signalAll();
+                return taken;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // the queued or being written writes of a key, the caller waits for them instead of writing its own
+        void activate(Write<?> write) {
+            if (write.key != null) activeKeys.merge(write.key, 1, Integer::sum);
+        }
+
+        void finish(List<? extends Write<?>> finishedWrites) {
+            lock.lock();
+            try {
+                for (Write<?> write : finishedWrites) {
+                    if (write.key != null) activeKeys.computeIfPresent(write.key, (key, count) -> count > 1 ? count - 1 : null);
+                }
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean isClosed() {
+            lock.lock();
+            try {
+                return closed;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size() {
+            lock.lock();
+            try {
+                return writes.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                closed = true;
+                notEmpty.signalAll();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+}
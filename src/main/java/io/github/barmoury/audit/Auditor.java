@@ -1,5 +1,6 @@
 package io.github.barmoury.audit;
 
+import io.github.barmoury.asynchronous.Threading;
 import io.github.barmoury.cache.Cache;
 import io.github.barmoury.util.Util;
 import org.springframework.stereotype.Component;
@@ -22,7 +23,7 @@ public abstract class Auditor<T> {
         if (Util.cacheWriteAlong(bufferSize, dateLastFlushed, getCache(), audit)) {
             bufferSize = 0;
             dateLastFlushed = new Date();
-            new Thread(this::flush).start();
+            Threading.run(this::flush);
         }
     }
 
@@ -2,9 +2,15 @@ package io.github.barmoury.copier;
 
 import io.github.barmoury.util.FieldUtil;
 
+import jakarta.persistence.ManyToMany;
+import jakarta.persistence.OneToMany;
+import jakarta.persistence.Transient;
+
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Objects;
 
 public class Copier {
 
@@ -27,6 +33,25 @@ public class Copier {
         }
     }
 
+    // the persisted fields whose values differ, collections and transient fields are not compared
+    public static <T> List<String> changedFields(T previous, T current) {
+        List<String> changedFields = new ArrayList<>();
+        for (Field field : FieldUtil.getAllFields(previous.getClass())) {
+            if (Modifier.isStatic(field.getModifiers()) || Modifier.isTransient(field.getModifiers())
+                    || field.isAnnotationPresent(Transient.class) || field.isAnnotationPresent(OneToMany.class)
+                    || field.isAnnotationPresent(ManyToMany.class) || changedFields.contains(field.getName())) {
+                continue;
+            }
+            try {
+                field.setAccessible(true);
+                if (!Objects.deepEquals(field.get(previous), field.get(current))) changedFields.add(field.getName());
+            } catch (IllegalAccessException | RuntimeException ex) {
+                throw new CopierException(String.format("Could not compare the property '%s'", field.getName()));
+            }
+        }
+        return changedFields;
+    }
+
     @SafeVarargs
     private static <T> void copyField(Field field, CopyProperty copyProperty, T target, T... sources) {
         String fieldName = field.getName();
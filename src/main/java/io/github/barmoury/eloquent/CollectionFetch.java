@@ -0,0 +1,18 @@
+package io.github.barmoury.eloquent;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// loads the OneToMany collection for a whole page with one query, the sub_entities.depth and
+// sub_entities.max_size request parameters can only lower the limits
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface CollectionFetch {
+
+    int depth() default 1;
+    int maxSize() default 50;
+    String orderBy() default "";
+
+}
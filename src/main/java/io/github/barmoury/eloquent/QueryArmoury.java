@@ -8,13 +8,30 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import io.github.barmoury.api.model.Model;
 import io.github.barmoury.api.model.modelling.IdModel;
-import io.github.barmoury.eloquent.impl.RequestParamFilterOperatorImpl;
+import io.github.barmoury.eloquent.filter.FilterPlan;
+import io.github.barmoury.eloquent.mapper.EntityRowMapper;
+import io.github.barmoury.eloquent.page.CountStrategy;
+import io.github.barmoury.eloquent.page.CountedPage;
+import io.github.barmoury.eloquent.page.Cursor;
+import io.github.barmoury.eloquent.page.CursorPage;
+import io.github.barmoury.eloquent.page.PageProbe;
+import io.github.barmoury.eloquent.stat.OccurrenceGroups;
+import io.github.barmoury.eloquent.stat.P2QuantileEstimator;
+import io.github.barmoury.eloquent.stat.StatAggregate;
+import io.github.barmoury.eloquent.stat.StatQueries;
+import io.github.barmoury.eloquent.stat.StatRollups;
+import io.github.barmoury.eloquent.stat.StatSample;
+import io.github.barmoury.eloquent.stat.StatSnapshots;
 import io.github.barmoury.util.FieldUtil;
 import jakarta.persistence.*;
 import jakarta.servlet.http.HttpServletRequest;
+import lombok.Getter;
 import lombok.Setter;
+import lombok.SneakyThrows;
 import org.apache.commons.collections4.MultiValuedMap;
 import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.annotations.NotFound;
 import org.hibernate.annotations.NotFoundAction;
 import org.hibernate.query.sql.internal.NativeQueryImpl;
@@ -22,7 +39,7 @@ import org.hibernate.transform.AliasToEntityMapResultTransformer;
 import org.springframework.beans.BeanUtils;
 import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
 import org.springframework.data.domain.Page;
-import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.JpaRepository;
@@ -39,19 +56,36 @@ import java.time.Month;
 import java.time.format.TextStyle;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 // TODO accept query class for custom query
 public class QueryArmoury {
 
     SqlInterface sqlInterface;
     @Setter boolean isSnakeCase;
+    @Setter int fetchSize = 1000;
+    @Setter int maxSubEntityDepth = 10;
+    @Setter int subEntityBatchSize = 500;
+    @Setter long countCap = 10000;
+    @Setter CountStrategy countStrategy = CountStrategy.EXACT;
+    @Getter @Setter QueryResultCache queryResultCache;
+    @Getter @Setter StatSnapshots statSnapshots = new StatSnapshots(1000, 2);
+    @Getter @Setter StatRollups statRollups;
     @Setter EntityManager entityManager;
     ObjectMapper mapper = new ObjectMapper();
     @Setter AutowireCapableBeanFactory autowireCapableBeanFactory;
+    Map<Class<?>, FilterPlan> filterPlans = new ConcurrentHashMap<>();
+    Map<Class<?>, EntityRowMapper<?>> rowMappers = new ConcurrentHashMap<>();
+    Map<Class<?>, Set<Class<?>>> embeddedClasses = new ConcurrentHashMap<>();
 
     final String INTERVAL_COLUMN_DATE_FORMAT = "yyyy-MM-dd HH:mm";
     final String PERCENTAGE_CHANGE_RELAY_KEY = "___percentage_change____";
+    static final String APPROXIMATE_PARAMETER = "stat.query.approximate";
     public static final String BARMOURY_RAW_SQL_PARAMETER_KEY = "___BARMOURY__RAW__SQL___";
+    public static final String CURSOR_PARAMETER_KEY = "cursor";
+    static final String PERIOD_START_PARAMETER_KEY = "barmoury_period_start";
 
     public QueryArmoury(SqlInterface sqlInterface) {
         this.sqlInterface = sqlInterface;
@@ -126,32 +160,246 @@ public class QueryArmoury {
     }
 
     public <T> Page<T> pageQuery(HttpServletRequest request, Pageable pageable, Class<T> clazz,
-                                 boolean resolveSubEntities, boolean skipRecursiveSubEntities) {
+                                 boolean resolveSubEntities, boolean skipRecursiveSubEntities,
+                                 CountStrategy countStrategy) {
+        return pageQuery(request, pageable, clazz, resolveSubEntities, skipRecursiveSubEntities, countStrategy, true);
+    }
+
+    // an uncached page is read for a caller that changes the entities of the page, a cached page is shared
+    public <T> Page<T> pageQuery(HttpServletRequest request, Pageable pageable, Class<T> clazz,
+                                 boolean resolveSubEntities, boolean skipRecursiveSubEntities,
+                                 CountStrategy countStrategy, boolean cached) {
+        if (queryResultCache == null || !cached) {
+            return queryPage(request, pageable, clazz, resolveSubEntities, skipRecursiveSubEntities, countStrategy);
+        }
+        return queryResultCache.get(clazz, embeddedClasses(clazz), String.format("page|%s|%s|%b|%b|%s|%b",
+                parametersKey(request), pageable, resolveSubEntities, skipRecursiveSubEntities, countStrategy,
+                isSnakeCase),
+                () -> queryPage(request, pageable, clazz, resolveSubEntities, skipRecursiveSubEntities, countStrategy));
+    }
+
+    <T> Page<T> queryPage(HttpServletRequest request, Pageable pageable, Class<T> clazz,
+                          boolean resolveSubEntities, boolean skipRecursiveSubEntities, CountStrategy countStrategy) {
         String tableName = FieldUtil.getTableName(clazz);
         Map<String, JoinColumn> joinTables = new HashMap<>();
         if (isSnakeCase) mapper.setPropertyNamingStrategy(PropertyNamingStrategies.SNAKE_CASE);
         MultiValuedMap<String, Object> requestFields = resolveQueryFields(clazz, request, joinTables,
                 false);
         String[] rawJoinWhereQueries = getRawSqlQueriesFromRequestParameter(request);
+        // a cursor parameter, even empty for the first page, switches to keyset pagination
+        String cursorToken = request.getParameter(CURSOR_PARAMETER_KEY);
+        Cursor cursor = cursorToken != null
+                ? Cursor.resolve(cursorToken, pageable.getSort(), pageable.getPageSize(), mapper) : null;
+        String rawWhereQuery = rawJoinWhereQueries[1];
+        if (cursor != null && cursor.buildPredicate() != null) {
+            rawWhereQuery += String.format("AND (%s)", cursor.buildPredicate());
+        }
         String queryString = String.format(" FROM %s entity %s %s ", tableName, rawJoinWhereQueries[0],
-                buildWhereFilter(requestFields, joinTables, rawJoinWhereQueries[1]));
-        Query countQuery = buildQueryObject(entityManager, String.format("SELECT COUNT(*) %s", queryString),
-                clazz, requestFields, false);
-        int totalElements = ((Number) countQuery.getSingleResult()).intValue();
+                buildWhereFilter(requestFields, joinTables, rawWhereQuery));
+        if (cursor != null) {
+            Query query = buildQueryObject(entityManager, String.format("SELECT entity.* %s %s %s ", queryString,
+                    cursor.buildOrderBy(), this.sqlInterface.limit(pageable.getPageSize() + 1)),
+                    clazz, requestFields, false);
+            for (Map.Entry<String, Object> parameter : cursor.parameters().entrySet()) {
+                query.setParameter(parameter.getKey(), parameter.getValue());
+            }
+            List<T> content = resolveTypedEntityList(query, clazz, resolveSubEntities, skipRecursiveSubEntities,
+                    resolveCollectionLimit(request, "depth"), resolveCollectionLimit(request, "maxSize"), cursor);
+            return new CursorPage<>(content, PageRequest.of(0, pageable.getPageSize(), pageable.getSort()),
+                    cursor.nextToken(mapper));
+        }
+
+        if (countStrategy == null) countStrategy = resolveCountStrategy(request);
+        long totalElements = 0;
+        boolean totalCapped = false;
+        if (countStrategy == CountStrategy.ESTIMATED) {
+            boolean unfiltered = requestFields.isEmpty() && rawJoinWhereQueries[0].isBlank()
+                    && rawWhereQuery.isBlank();
+            Long estimate = estimateCount(clazz, tableName, queryString, requestFields, unfiltered);
+            if (estimate != null) totalElements = estimate;
+            else countStrategy = CountStrategy.EXACT;
+        }
+        if (countStrategy == CountStrategy.CAPPED) {
+            Query countQuery = buildQueryObject(entityManager, String.format(
+                    "SELECT COUNT(*) FROM (SELECT 1 AS capped_row %s %s) capped_entity",
+                    queryString, this.sqlInterface.limit(countCap + 1)), clazz, requestFields, false);
+            totalElements = ((Number) countQuery.getSingleResult()).longValue();
+            totalCapped = totalElements > countCap;
+            if (totalCapped) totalElements = countCap;
+        }
+        if (countStrategy == CountStrategy.EXACT) {
+            Query countQuery = buildQueryObject(entityManager, String.format("SELECT COUNT(*) %s", queryString),
+                    clazz, requestFields, false);
+            totalElements = ((Number) countQuery.getSingleResult()).longValue();
+        }
+        PageProbe pageProbe = countStrategy == CountStrategy.HAS_NEXT ? new PageProbe(pageable.getPageSize()) : null;
         Query query = buildQueryObject(entityManager, String.format("SELECT entity.* %s %s", queryString,
-                buildPageFilter(pageable)), clazz, requestFields, false);
+                buildPageFilter(pageable, pageProbe != null ? pageable.getPageSize() + 1 : pageable.getPageSize())),
+                clazz, requestFields, false);
 
-        NativeQueryImpl<T> nativeQuery = (NativeQueryImpl<T>) query;
-        nativeQuery.setResultTransformer(AliasToEntityMapResultTransformer.INSTANCE);
-        List<T> content = resolveEntityList(query.getResultList(), clazz, resolveSubEntities, skipRecursiveSubEntities);
+        List<T> content = resolveTypedEntityList(query, clazz, resolveSubEntities, skipRecursiveSubEntities,
+                resolveCollectionLimit(request, "depth"), resolveCollectionLimit(request, "maxSize"), pageProbe);
+        if (countStrategy == CountStrategy.HAS_NEXT || countStrategy == CountStrategy.NONE) {
+            totalElements = pageable.getOffset() + content.size()
+                    + (pageProbe != null && pageProbe.isHasNext() ? 1 : 0);
+        }
+
+        return new CountedPage<>(content, pageable, totalElements, countStrategy, totalCapped);
+    }
 
-        return new PageImpl<>(content, pageable, totalElements);
+    public <T> Page<T> pageQuery(HttpServletRequest request, Pageable pageable, Class<T> clazz,
+                                 boolean resolveSubEntities, boolean skipRecursiveSubEntities) {
+        return pageQuery(request, pageable, clazz, resolveSubEntities, skipRecursiveSubEntities, null);
     }
 
     public <T> Page<T> pageQuery(HttpServletRequest request, Pageable pageable, Class<T> clazz) {
         return pageQuery(request, pageable, clazz, true, true);
     }
 
+    // the filtered rows read through a forward only cursor of fetchSize rows and mapped one at a time, the
+    // stream holds the database cursor until it is closed so it should be consumed in a transaction and
+    // closed with try-with-resources, the sub entities are not resolved when the dialect streams the rows
+    // on a connection no other query can use meanwhile, see MySqlInterface.setCursorFetch
+    public <T> Stream<T> streamQuery(HttpServletRequest request, Sort sort, Class<T> clazz,
+                                     boolean resolveSubEntities, boolean skipRecursiveSubEntities) {
+        String tableName = FieldUtil.getTableName(clazz);
+        Map<String, JoinColumn> joinTables = new HashMap<>();
+        if (isSnakeCase) mapper.setPropertyNamingStrategy(PropertyNamingStrategies.SNAKE_CASE);
+        MultiValuedMap<String, Object> requestFields = resolveQueryFields(clazz, request, joinTables,
+                false);
+        String[] rawJoinWhereQueries = getRawSqlQueriesFromRequestParameter(request);
+        Query query = buildQueryObject(entityManager, String.format("SELECT entity.* FROM %s entity %s %s %s",
+                tableName, rawJoinWhereQueries[0], buildWhereFilter(requestFields, joinTables, rawJoinWhereQueries[1]),
+                buildOrderBy(sort)), clazz, requestFields, false);
+        return streamEntities(query, clazz, resolveSubEntities && !this.sqlInterface.streamsHoldConnection(),
+                skipRecursiveSubEntities,
+                resolveCollectionLimit(request, "depth"), resolveCollectionLimit(request, "maxSize"));
+    }
+
+    public <T> Stream<T> streamQuery(HttpServletRequest request, Class<T> clazz) {
+        return streamQuery(request, Sort.unsorted(), clazz, true, true);
+    }
+
+    // the sub entities and collections are loaded per chunk of subEntityBatchSize rows, the cursor is closed
+    // when the rows are exhausted or the stream is closed
+    @SuppressWarnings("unchecked")
+    <T> Stream<T> streamEntities(Query query,
+                                 Class<T> tClass,
+                                 boolean resolveSubEntities,
+                                 boolean skipRecursiveSubEntities,
+                                 int maxCollectionDepth,
+                                 int maxCollectionSize) {
+        EntityRowMapper<T> rowMapper = getRowMapper(tClass);
+        Map<String, Object[]> joinColumnFields = resolveSubEntities && !rowMapper.isSupported()
+                ? FieldUtil.findJoinColumnFields(tClass) : null;
+        ScrollableResults<Object[]> results = ((org.hibernate.query.Query<Object[]>) query
+                .unwrap(org.hibernate.query.Query.class))
+                .setTupleTransformer((tuple, aliases) -> {
+                    if (!rowMapper.isSupported()) {
+                        Map<String, Object> row = new LinkedHashMap<>();
+                        for (int index = 0; index < tuple.length; index++) row.put(aliases[index], tuple[index]);
+                        return new Object[]{ mapper.convertValue(processSingleRow(row, joinColumnFields, tClass,
+                                resolveSubEntities, skipRecursiveSubEntities ? new HashSet<>() : null), tClass), null };
+                    }
+                    Object[] rowJoinValues = resolveSubEntities ? new Object[rowMapper.getJoinSlotList().size()] : null;
+                    return new Object[]{ mapRow(rowMapper, tuple, aliases, rowJoinValues), rowJoinValues };
+                })
+                .setFetchSize(this.sqlInterface.streamFetchSize(fetchSize))
+                .setReadOnly(true)
+                .scroll(ScrollMode.FORWARD_ONLY);
+        int chunkSize = resolveSubEntities && rowMapper.isSupported() ? subEntityBatchSize : 1;
+        Iterator<T> iterator = new Iterator<T>() {
+
+            final Deque<T> chunk = new ArrayDeque<>();
+            boolean exhausted;
+
+            @Override
+            public boolean hasNext() {
+                if (chunk.isEmpty() && !exhausted) fill();
+                return !chunk.isEmpty();
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return chunk.poll();
+            }
+
+            void fill() {
+                List<T> entities = new ArrayList<>();
+                List<Object[]> joinValues = new ArrayList<>();
+                while (entities.size() < chunkSize && results.next()) {
+                    Object[] row = results.get();
+                    entities.add((T) row[0]);
+                    joinValues.add((Object[]) row[1]);
+                }
+                if (entities.size() < chunkSize) {
+                    exhausted = true;
+                    results.close();
+                }
+                if (resolveSubEntities && rowMapper.isSupported() && !entities.isEmpty()) {
+                    Set<Class<?>> resolvedClasses = skipRecursiveSubEntities ? new HashSet<>() : null;
+                    hydrateSubEntities(rowMapper, entities, joinValues, resolvedClasses, 0);
+                    hydrateCollections(rowMapper, entities, resolvedClasses, 0, maxCollectionDepth, maxCollectionSize);
+                }
+                chunk.addAll(entities);
+            }
+
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(results::close);
+    }
+
+    // the count_strategy request parameter, the default count strategy if it is absent
+    CountStrategy resolveCountStrategy(HttpServletRequest request) {
+        String value = request.getParameter(isSnakeCase ? "count_strategy" : "countStrategy");
+        if (value == null || value.isBlank()) return countStrategy;
+        try {
+            return CountStrategy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException(String.format("Invalid count strategy '%s', expected one of %s",
+                    value, Arrays.toString(CountStrategy.values())));
+        }
+    }
+
+    // the planner row count of the table when nothing is filtered, the row estimate of the query plan otherwise,
+    // null when the dialect has no estimate and the rows should be counted
+    <T> Long estimateCount(Class<T> clazz,
+                           String tableName,
+                           String queryString,
+                           MultiValuedMap<String, Object> requestFields,
+                           boolean unfiltered) {
+        Long estimate = null;
+        String explainQuery = this.sqlInterface.explainQuery(String.format("SELECT entity.* %s", queryString));
+        if (unfiltered && this.sqlInterface.tableRowEstimateQuery() != null) {
+            List<?> rows = entityManager.createNativeQuery(this.sqlInterface.tableRowEstimateQuery())
+                    .setParameter("table", tableName)
+                    .getResultList();
+            if (!rows.isEmpty() && rows.get(0) instanceof Number number) estimate = number.longValue();
+        } else if (explainQuery != null) {
+            List<?> rows = buildQueryObject(entityManager, explainQuery, clazz, requestFields, false).getResultList();
+            if (!rows.isEmpty()) {
+                Object row = rows.get(0) instanceof Object[] columns ? columns[0] : rows.get(0);
+                if (row != null) estimate = this.sqlInterface.estimatedRows(row.toString());
+            }
+        }
+        return estimate != null && estimate >= 0 ? estimate : null;
+    }
+
+    // the sub_entities.depth and sub_entities.max_size request parameters, they can only lower the limits
+    // of the CollectionFetch annotations
+    int resolveCollectionLimit(HttpServletRequest request, String name) {
+        String value = request.getParameter(isSnakeCase
+                ? String.format("sub_entities.%s", FieldUtil.toSnakeCase(name))
+                : String.format("subEntities.%s", name));
+        if (value == null) return Integer.MAX_VALUE;
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException ex) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
     public String[] getRawSqlQueriesFromRequestParameter(HttpServletRequest request) {
         String[] result = new String[] { "", "" };
         List<String[]> queryParts = new ArrayList<>();
@@ -173,7 +421,53 @@ public class QueryArmoury {
         return result;
     }
 
+    // the request parameters in name order, the key of a cached query result
+    public String parametersKey(HttpServletRequest request) {
+        StringBuilder key = new StringBuilder();
+        for (Map.Entry<String, String[]> parameter : new TreeMap<>(request.getParameterMap()).entrySet()) {
+            key.append('&').append(parameter.getKey()).append('=').append(Arrays.toString(parameter.getValue()));
+        }
+        return key.toString();
+    }
+
+    public void invalidateQueryResults(Class<?> clazz) {
+        if (queryResultCache != null) queryResultCache.invalidate(clazz);
+        statSnapshots.invalidate(clazz);
+    }
+
     public <T> JsonNode statWithQuery(HttpServletRequest request, Class<T> clazz) throws ParseException {
+        StatQuery statQuery = FieldUtil.getAnnotation(clazz, StatQuery.class);
+        if (statQuery != null && statQuery.snapshot()) {
+            HttpServletRequest detachedRequest = StatSnapshots.detachedRequest(request.getParameterMap());
+            JsonNode stat = statSnapshots.get(clazz, String.format("%s|%b", parametersKey(request), isSnakeCase),
+                    statQuery.snapshotMaxStaleness(), () -> queryStat(detachedRequest, clazz));
+            return stat != null ? stat.deepCopy() : null;
+        }
+        if (queryResultCache == null) return queryStat(request, clazz);
+        JsonNode stat = queryResultCache.get(clazz, String.format("stat|%s|%b", parametersKey(request), isSnakeCase),
+                () -> queryStat(request, clazz));
+        return stat != null ? stat.deepCopy() : null;
+    }
+
+    // the stat of the request computed exactly or over a sample of the rows whatever the @StatQuery default is
+    public <T> JsonNode statWithQuery(HttpServletRequest request, Class<T> clazz, boolean approximate)
+            throws ParseException {
+        Map<String, String[]> parameters = new HashMap<>(request.getParameterMap());
+        parameters.put(APPROXIMATE_PARAMETER, new String[]{ String.valueOf(approximate) });
+        return statWithQuery(StatSnapshots.detachedRequest(parameters), clazz);
+    }
+
+    // the sample of an approximate stat, null for an exact one
+    StatSample resolveStatSample(HttpServletRequest request, StatQuery statQuery) {
+        if (statQuery == null) return null;
+        String approximate = request.getParameter(APPROXIMATE_PARAMETER);
+        if (!(approximate != null ? approximate.equalsIgnoreCase("true") : statQuery.approximate())) return null;
+        if (statQuery.approximateSampleRate() <= 0 || statQuery.approximateSampleRate() >= 1) return null;
+        return new StatSample(this.sqlInterface, statQuery.approximateSampleRate());
+    }
+
+    @SneakyThrows
+    <T> JsonNode queryStat(HttpServletRequest request, Class<T> clazz) {
         String tableName = FieldUtil.getTableName(clazz);
         Map<String, JoinColumn> joinTables = new HashMap<>();
         StatQuery statQuery = FieldUtil.getAnnotation(clazz, StatQuery.class);
@@ -184,68 +478,64 @@ public class QueryArmoury {
                 whereFilterString, statQuery, true, tableName, clazz);
     }
 
+    FilterPlan getFilterPlan(Class<?> clazz) {
+        FilterPlan filterPlan = filterPlans.get(clazz);
+        if (filterPlan == null || filterPlan.isSnakeCase() != isSnakeCase) {
+            filterPlan = FilterPlan.build(clazz, isSnakeCase);
+            filterPlans.put(clazz, filterPlan);
+        }
+        return filterPlan;
+    }
+
     <T> MultiValuedMap<String, Object> resolveQueryFields(Class<T> clazz, HttpServletRequest request,
                                                           Map<String, JoinColumn> joinTables,
                                                           boolean resolveStatQueryAnnotations) {
+        FilterPlan filterPlan = getFilterPlan(clazz);
+        if (resolveStatQueryAnnotations) return filterPlan.getStatFields();
         MultiValuedMap<String, Object> requestFields = new ArrayListValuedHashMap<>();
-        List<Field> fields = FieldUtil.getAllFields(clazz);
-        for (Field field : fields) {
-            String mainFieldName = field.getName();
-            String columnName = FieldUtil.getFieldColumnName(field);
-
-            RequestParamFilter[] requestParamFilters = field.getAnnotationsByType(RequestParamFilter.class);
-            int requestParamFiltersCount = requestParamFilters.length;
-            for (RequestParamFilter requestParamFilter : requestParamFilters) {
-                if (!requestParamFilter.column().isEmpty()) columnName = requestParamFilter.column();
-                if (requestParamFilter.columnIsSnakeCase()) columnName = FieldUtil.toSnakeCase(columnName);
-
-                String fieldName = mainFieldName;
-                if (requestParamFiltersCount > 1) {
-                    String operator = requestParamFilter.operator().name();
-                    fieldName = String.format("%s%s%c%s", fieldName,
-                            requestParamFilter.multiFilterSeparator().equals("__") && isSnakeCase
-                                    ? "_" : requestParamFilter.multiFilterSeparator(),
-                            operator.charAt(0),
-                            operator.substring(1).toLowerCase());
-                }
-                Set<String> extraFieldNames = new HashSet<>();
-                extraFieldNames.add(fieldName);
-                if (!resolveStatQueryAnnotations) {
-                    Collections.addAll(extraFieldNames, requestParamFilter.aliases());
-                    if (requestParamFilter.acceptSnakeCase()) {
-                        for (String extraFieldName : new ArrayList<>(extraFieldNames))
-                            extraFieldNames.add(FieldUtil.toSnakeCase(extraFieldName));
-                    }
-                    if (requestParamFilter.operator() == RequestParamFilter.Operator.RANGE) {
-                        Set<String> fromExtraFieldNames = new HashSet<>();
-                        Set<String> toExtraFieldNames = new HashSet<>();
-                        for (String extraFieldName : extraFieldNames) {
-                            fromExtraFieldNames.add(extraFieldName + (extraFieldName.contains("_") ? "_from" : "From"));
-                            toExtraFieldNames.add(extraFieldName + (extraFieldName.contains("_") ? "_to" : "To"));
-                        }
-                        RequestParamFilter fromRequestParamFilter2 =
-                                new RequestParamFilterOperatorImpl(requestParamFilter, RequestParamFilter.Operator.GT_EQ);
-                        RequestParamFilter toRequestParamFilter2 =
-                                new RequestParamFilterOperatorImpl(requestParamFilter, RequestParamFilter.Operator.LT_EQ);
-                        resolveQueryForSingleField(requestFields, fromRequestParamFilter2, false,
-                                joinTables, request, fromExtraFieldNames, columnName, field);
-                        resolveQueryForSingleField(requestFields, toRequestParamFilter2, false,
-                                joinTables, request, toExtraFieldNames, columnName, field);
-                        continue;
-                    }
-                }
-                resolveQueryForSingleField(requestFields, requestParamFilter, resolveStatQueryAnnotations,
-                        joinTables, request, extraFieldNames, columnName, field);
-            }
-            // for stat query
-            if (resolveStatQueryAnnotations && requestParamFiltersCount == 0) {
-                Set<String> extraFieldNames = new HashSet<>(); extraFieldNames.add(mainFieldName);
-                resolveQueryForSingleField(requestFields, null, resolveStatQueryAnnotations,
-                        joinTables, request, extraFieldNames, columnName, field);
+        Map<Integer, Map.Entry<String, String[]>> matches = filterPlan.match(request.getParameterMap());
+        List<FilterPlan.Entry> entries = filterPlan.getEntries();
+        for (Integer index : filterPlan.resolvedIndexes(matches)) {
+            resolveQueryForSingleField(requestFields, entries.get(index), matches.get(index), joinTables);
+        }
+        return requestFields;
+    }
+
+    void resolveQueryForSingleField(MultiValuedMap<String, Object> requestFields,
+                                    FilterPlan.Entry entry,
+                                    Map.Entry<String, String[]> match,
+                                    Map<String, JoinColumn> joinTables) {
+        String[] values = new String[]{null};
+        String queryParam = entry.getQueryParam();
+        String columnName = entry.getColumnName();
+        RequestParamFilter requestParamFilter = entry.getRequestParamFilter();
+        if (match != null) {
+            values = entry.resolveValues(match.getValue());
+            queryParam = (entry.isObjectFilter() && requestParamFilter.columnObjectFieldsIsSnakeCase()
+                    ? FieldUtil.toSnakeCase(match.getKey())
+                    : match.getKey());
+        }
+        if (requestFields.containsKey(queryParam)) {
+            return;
+        }
+        Entity entity = entry.getFieldEntity();
+        if (entry.isEntity()) {
+            if (entity != null) {
+                columnName = String.format("%s_entity.%s", entity.name(),
+                        queryParam.substring(queryParam.indexOf(".")+1));
             }
+            String[] nameParts = queryParam.split("\\.");
+            requestParamFilter = entry.resolveSubFieldFilter(nameParts[nameParts.length-1]);
+        }
 
+        requestFields.put(queryParam, columnName);
+        requestFields.put(queryParam, match != null);
+        requestFields.put(queryParam, requestParamFilter);
+        requestFields.put(queryParam, values);
+        if (entry.isEntity() && entity != null) {
+            requestFields.put(queryParam, entry.getFieldClass());
+            joinTables.put(entity.name(), entry.getJoinColumn());
         }
-        return requestFields;
     }
 
     public boolean hasStatQueryCapability(HttpServletRequest request, StatQuery statQuery, String capability) {
@@ -273,28 +563,7 @@ public class QueryArmoury {
         String newStartDateStr = null;
         ObjectNode stat = mapper.createObjectNode();
 
-        Map<String, StatQuery.MedianQuery[]> medianQueries = new HashMap<>();
-        Map<String, StatQuery.ColumnQuery[]> columnQueries = new HashMap<>();
-        Map<String, StatQuery.AverageQuery[]> averageQueries = new HashMap<>();
-        Map<String, StatQuery.OccurrenceQuery[]> occurrenceQueries = new HashMap<>();
-        Map<String, StatQuery.PercentageChangeQuery[]> percentageChangeQueries = new HashMap<>();
-
-        for (String fieldName : statRequestFields.keySet()) {
-            Object[] values = statRequestFields.get(fieldName).toArray();
-            String columnName = (String) values[0];
-            if (statQuery != null && statQuery.columnsAreSnakeCase()) columnName = FieldUtil.toSnakeCase(columnName);
-
-            if (((StatQuery.MedianQuery[]) values[4]).length > 0)
-                medianQueries.put(columnName, (StatQuery.MedianQuery[]) values[4]);
-            if (((StatQuery.ColumnQuery[]) values[5]).length > 0)
-                columnQueries.put(columnName, (StatQuery.ColumnQuery[]) values[5]);
-            if (((StatQuery.AverageQuery[]) values[6]).length > 0)
-                averageQueries.put(columnName, (StatQuery.AverageQuery[]) values[6]);
-            if (((StatQuery.OccurrenceQuery[]) values[7]).length > 0)
-                occurrenceQueries.put(columnName, (StatQuery.OccurrenceQuery[]) values[7]);
-            if (((StatQuery.PercentageChangeQuery[]) values[8]).length > 0)
-                percentageChangeQueries.put(columnName, (StatQuery.PercentageChangeQuery[]) values[8]);
-        }
+        StatQueries statQueries = resolveStatQueries(statRequestFields, statQuery, request);
 
         String to = null;
         String from = null;
@@ -352,36 +621,89 @@ public class QueryArmoury {
             newEndDateStr = new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(newEndDate); //lol - reuse
             newStartDateStr = new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(newStartDate); //lol - reuse
         }
-        long totalCount =
-                resolveColumnQueries(request, clazz, stat, tableName, statQuery, whereFilterString,
-                        entityManager, requestFields, columnQueries);
-
-        if (!medianQueries.isEmpty() && hasStatQueryCapability(request, statQuery, "process_medians")) {
-            resolveMedianQueries(clazz, stat, tableName, whereFilterString, entityManager, requestFields,
-                    medianQueries);
+        Map<String, Long> percentageMap = null;
+        if (!statQueries.getPercentageChangeQueries().isEmpty()) percentageMap = new HashMap<>();
+        List<StatAggregate> aggregates = resolveStatAggregates(tableName, statQuery, statQueries.getColumnQueries(),
+                statQueries.getAverageQueries(), statQueries.getPercentageChangeQueries());
+        // a sampled stat reads the same rows for the aggregates, percentiles and occurrences
+        StatSample sample = resolveStatSample(request, statQuery);
+        String scanFilterString = whereFilterString;
+        List<StatAggregate> scanAggregates = aggregates;
+        if (sample != null) {
+            scanFilterString = sample.whereFilterString(whereFilterString);
+            scanAggregates = new ArrayList<>(aggregates);
+            scanAggregates.addAll(sample.errorAggregates(aggregates));
         }
-        if (!averageQueries.isEmpty() && hasStatQueryCapability(request, statQuery, "process_averages")) {
-            resolveAverageQueries(clazz, stat, tableName, whereFilterString, entityManager, requestFields,
-                    averageQueries);
+        double occurrenceScale = sample != null ? sample.getScale() : 1;
+        boolean processPreviousInSingleScan = processPrevious && statQuery.fetchPreviousInSingleScan() &&
+                hasStatQueryCapability(request, statQuery, "fetch_previous_in_single_scan");
+        for (StatAggregate aggregate : aggregates) {
+            if (!aggregate.isAggregate()) processPreviousInSingleScan = false;
         }
-        if (!occurrenceQueries.isEmpty() && hasStatQueryCapability(request, statQuery, "process_occurrences")) {
-            resolveOccurrenceQueries(clazz, stat, totalCount, tableName, whereFilterString, entityManager, requestFields,
-                    occurrenceQueries);
+        long totalCount;
+        long previousTotalCount = 0;
+        ObjectNode previous = null;
+        Map<String, Long> previousPercentageMap = null;
+        if (processPreviousInSingleScan) {
+            // one scan over both periods, each side of the start date is split by the aggregate conditions
+            previous = mapper.createObjectNode();
+            if (percentageMap != null) previousPercentageMap = new HashMap<>();
+            // the start of the current period is bound like the interval filters
+            Object[] periodStart = requestFields.get(fromKey).toArray();
+            String intervalColumn = (String) periodStart[0];
+            periodStart[3] = new String[]{newEndDateStr};
+            requestFields.putAll(PERIOD_START_PARAMETER_KEY, Arrays.asList(periodStart));
+            setIntervalValues(requestFields, fromKey, toKey, newStartDateStr, to);
+            long[] totalCounts;
+            try {
+                totalCounts = resolveAggregateQueries(clazz, Arrays.asList(stat, previous), tableName,
+                        scanFilterString, entityManager, requestFields, scanAggregates,
+                        Arrays.asList(String.format("entity.%s >= :%s", intervalColumn, PERIOD_START_PARAMETER_KEY),
+                                String.format("entity.%s <= :%s", intervalColumn, PERIOD_START_PARAMETER_KEY)),
+                        Arrays.asList(percentageMap, previousPercentageMap));
+            } finally {
+                requestFields.remove(PERIOD_START_PARAMETER_KEY);
+                setIntervalValues(requestFields, fromKey, toKey, from, to);
+            }
+            totalCount = totalCounts[0];
+            previousTotalCount = totalCounts[1];
+        } else {
+            totalCount = resolveAggregateQueries(clazz, stat, tableName, scanFilterString, entityManager,
+                    requestFields, scanAggregates, percentageMap);
         }
 
-        Map<String, Long> percentageMap = null;
-        if (!percentageChangeQueries.isEmpty()
-                && hasStatQueryCapability(request, statQuery, "process_percentage_changes")) {
-            percentageMap = resolvePercentageChangeQueries(clazz, tableName, whereFilterString, entityManager,
-                    requestFields, percentageChangeQueries);
+        if (!statQueries.getMedianQueries().isEmpty() || !statQueries.getPercentileQueries().isEmpty()) {
+            resolvePercentileQueries(clazz, stat, tableName, scanFilterString, entityManager, requestFields,
+                    statQueries.getMedianQueries(), statQueries.getPercentileQueries());
+        }
+        if (!statQueries.getOccurrenceQueries().isEmpty()) {
+            resolveOccurrenceQueries(clazz, stat, totalCount, occurrenceScale, tableName, scanFilterString,
+                    entityManager, requestFields, statQueries.getOccurrenceQueries());
         }
+        if (sample != null) sample.apply(stat, aggregates, isSnakeCase);
+
         if (isMainStat && from != null) {
             stat.put("from", from);
             stat.put("to", to);
         }
 
-        ObjectNode previous = null;
-        if (processPrevious) {
+        if (processPreviousInSingleScan) {
+            setIntervalValues(requestFields, fromKey, toKey, newStartDateStr, newEndDateStr);
+            if (!statQueries.getMedianQueries().isEmpty() || !statQueries.getPercentileQueries().isEmpty()) {
+                resolvePercentileQueries(clazz, previous, tableName, scanFilterString, entityManager, requestFields,
+                        statQueries.getMedianQueries(), statQueries.getPercentileQueries());
+            }
+            if (!statQueries.getOccurrenceQueries().isEmpty()) {
+                resolveOccurrenceQueries(clazz, previous, previousTotalCount, occurrenceScale, tableName,
+                        scanFilterString, entityManager, requestFields, statQueries.getOccurrenceQueries());
+            }
+            if (sample != null) sample.apply(previous, aggregates, isSnakeCase);
+            if (percentageMap != null) {
+                previous.set(PERCENTAGE_CHANGE_RELAY_KEY,
+                        resolvePercentageChangeQueries(percentageMap, previousPercentageMap));
+            }
+            putStatInterval(previous, newStartDateStr, newEndDateStr, differentUnit, -different);
+        } else if (processPrevious) {
             previous = getStatBetweenDate(statRequestFields, requestFields, percentageMap, entityManager, request,
                     whereFilterString, statQuery, tableName, clazz,
                     fromKey, toKey,
@@ -437,6 +759,32 @@ public class QueryArmoury {
         return stat;
     }
 
+    // the stat queries of the entity without the ones the client turned off
+    StatQueries resolveStatQueries(MultiValuedMap<String, Object> statRequestFields,
+                                   StatQuery statQuery,
+                                   HttpServletRequest request) {
+        StatQueries statQueries = StatQueries.resolve(statRequestFields, statQuery);
+        if (!hasStatQueryCapability(request, statQuery, "process_column_queries")) {
+            statQueries.getColumnQueries().clear();
+        }
+        if (!hasStatQueryCapability(request, statQuery, "process_averages")) {
+            statQueries.getAverageQueries().clear();
+        }
+        if (!hasStatQueryCapability(request, statQuery, "process_medians")) {
+            statQueries.getMedianQueries().clear();
+        }
+        if (!hasStatQueryCapability(request, statQuery, "process_percentiles")) {
+            statQueries.getPercentileQueries().clear();
+        }
+        if (!hasStatQueryCapability(request, statQuery, "process_occurrences")) {
+            statQueries.getOccurrenceQueries().clear();
+        }
+        if (!hasStatQueryCapability(request, statQuery, "process_percentage_changes")) {
+            statQueries.getPercentageChangeQueries().clear();
+        }
+        return statQueries;
+    }
+
     <T> ObjectNode getStatBetweenDate(MultiValuedMap<String, Object> statRequestFields,
                                              MultiValuedMap<String, Object> requestFields,
                                              Map<String, Long> currentPercentageMap,
@@ -454,19 +802,499 @@ public class QueryArmoury {
 
                                              String differentUnit,
                                              long different) throws ParseException  {
-        Object[] modified = requestFields.remove(toKey).toArray(); modified[3] = new String[]{newEndStr};
-        requestFields.putAll(toKey, Arrays.asList(modified));
-        modified = requestFields.remove(fromKey).toArray(); modified[3] = new String[]{newStartStr};
-        requestFields.putAll(fromKey, Arrays.asList(modified));
+        setIntervalValues(requestFields, fromKey, toKey, newStartStr, newEndStr);
         ObjectNode result = getResourceStat(statRequestFields, requestFields, currentPercentageMap, entityManager, request,
                 whereFilterString, statQuery, false, tableName, clazz);
-        result.put("from", newStartStr);
-        result.put("to", newEndStr);
-        result.put(isSnakeCase ? "difference_unit" : "differenceUnit", differentUnit);
-        result.put(isSnakeCase ? "difference_from_present" : "differenceFromPresent", different);
+        putStatInterval(result, newStartStr, newEndStr, differentUnit, different);
         return result;
     }
 
+    void setIntervalValues(MultiValuedMap<String, Object> requestFields,
+                           String fromKey,
+                           String toKey,
+                           String from,
+                           String to) {
+        Object[] modified = requestFields.remove(toKey).toArray(); modified[3] = new String[]{to};
+        requestFields.putAll(toKey, Arrays.asList(modified));
+        modified = requestFields.remove(fromKey).toArray(); modified[3] = new String[]{from};
+        requestFields.putAll(fromKey, Arrays.asList(modified));
+    }
+
+    void putStatInterval(ObjectNode stat, String from, String to, String differentUnit, long different) {
+        stat.put("from", from);
+        stat.put("to", to);
+        stat.put(isSnakeCase ? "difference_unit" : "differenceUnit", differentUnit);
+        stat.put(isSnakeCase ? "difference_from_present" : "differenceFromPresent", different);
+    }
+
+    // the stat of each range, from the grouped bucket queries when the ranges are whole calendar buckets
+    // or a stat query per range otherwise
+    <T> ArrayNode fetchBuckets(MultiValuedMap<String, Object> statRequestFields,
+                               MultiValuedMap<String, Object> requestFields,
+                               EntityManager entityManager,
+                               HttpServletRequest request,
+                               String whereFilterString,
+                               StatQuery statQuery,
+                               String tableName,
+                               Class<T> clazz,
+
+                               String fromKey,
+                               String toKey,
+                               ChronoUnit unit,
+                               List<Date[]> ranges,
+                               List<Long> differences,
+                               String differentUnit) throws ParseException {
+        ArrayNode arrayNode = mapper.createArrayNode();
+        List<ObjectNode> bucketStats = getBucketStats(statRequestFields, requestFields, entityManager, request,
+                whereFilterString, statQuery, tableName, clazz, fromKey, toKey, unit, ranges);
+
+        for (int index = 0; index < ranges.size(); index++) {
+            String from = new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(ranges.get(index)[0]);
+            String to = new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(ranges.get(index)[1]);
+            if (bucketStats == null) {
+                arrayNode.add(getStatBetweenDate(statRequestFields, requestFields, null, entityManager, request,
+                        whereFilterString, statQuery, tableName, clazz,
+                        fromKey, toKey,
+                        from, to,
+                        differentUnit, differences.get(index)));
+                continue;
+            }
+            ObjectNode stat = bucketStats.get(index);
+            putStatInterval(stat, from, to, differentUnit, differences.get(index));
+            arrayNode.add(stat);
+        }
+
+        return arrayNode;
+    }
+
+    Calendar truncateToBucket(Date date, ChronoUnit unit) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        if (unit != ChronoUnit.HOURS) calendar.set(Calendar.HOUR_OF_DAY, 0);
+        if (unit == ChronoUnit.MONTHS || unit == ChronoUnit.YEARS) calendar.set(Calendar.DAY_OF_MONTH, 1);
+        if (unit == ChronoUnit.YEARS) calendar.set(Calendar.MONTH, Calendar.JANUARY);
+        return calendar;
+    }
+
+    // every bucket of a breakdown from one grouped query per kind of stat query, null when the dialect cannot
+    // group the interval column or a range is not a whole bucket
+    <T> List<ObjectNode> getBucketStats(MultiValuedMap<String, Object> statRequestFields,
+                                        MultiValuedMap<String, Object> requestFields,
+                                        EntityManager entityManager,
+                                        HttpServletRequest request,
+                                        String whereFilterString,
+                                        StatQuery statQuery,
+                                        String tableName,
+                                        Class<T> clazz,
+
+                                        String fromKey,
+                                        String toKey,
+                                        ChronoUnit unit,
+                                        List<Date[]> ranges) {
+        if (ranges.isEmpty()) return null;
+        String bucket = this.sqlInterface.timeBucket((String) requestFields.get(fromKey).toArray()[0], unit);
+        if (bucket == null) return null;
+        SimpleDateFormat dateFormat = new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT);
+        Map<String, Integer> bucketIndexes = new HashMap<>();
+        for (int index = 0; index < ranges.size(); index++) {
+            String bucketKey = dateFormat.format(truncateToBucket(ranges.get(index)[0], unit).getTime());
+            if (!bucketKey.equals(dateFormat.format(ranges.get(index)[0]))) return null;
+            bucketIndexes.put(bucketKey, index);
+        }
+
+        // the percentage changes are only relayed between the main stat and its previous period
+        StatQueries statQueries = resolveStatQueries(statRequestFields, statQuery, request);
+        List<StatAggregate> aggregates = resolveStatAggregates(tableName, statQuery, statQueries.getColumnQueries(),
+                statQueries.getAverageQueries(), Collections.emptyMap());
+        for (StatAggregate aggregate : aggregates) {
+            if (!aggregate.isAggregate()) return null;
+        }
+
+        Calendar calendar = truncateToBucket(ranges.get(ranges.size() - 1)[0], unit);
+        calendar.add(switch (unit) {
+            case HOURS -> Calendar.HOUR_OF_DAY;
+            case MONTHS -> Calendar.MONTH;
+            case YEARS -> Calendar.YEAR;
+            default -> Calendar.DATE;
+        }, 1);
+        setIntervalValues(requestFields, fromKey, toKey, dateFormat.format(ranges.get(0)[0]),
+                dateFormat.format(calendar.getTime()));
+
+        List<ObjectNode> stats = new ArrayList<>();
+        for (int index = 0; index < ranges.size(); index++) stats.add(mapper.createObjectNode());
+        StatRollups.Definition rollup = resolveRollup(clazz, statQuery, requestFields, fromKey, toKey, aggregates,
+                statQueries.getOccurrenceQueries());
+        long[] totalCounts = rollup != null
+                ? resolveRollupAggregateQueries(clazz, rollup, stats, bucketIndexes, unit, whereFilterString,
+                        entityManager, requestFields, aggregates)
+                : resolveBucketAggregateQueries(clazz, stats, bucketIndexes, bucket, tableName,
+                        whereFilterString, entityManager, requestFields, aggregates);
+        if (!statQueries.getMedianQueries().isEmpty() || !statQueries.getPercentileQueries().isEmpty()) {
+            resolveBucketPercentileQueries(clazz, stats, bucketIndexes, bucket, tableName, whereFilterString,
+                    entityManager, requestFields, statQueries.getMedianQueries(), statQueries.getPercentileQueries());
+        }
+        if (!statQueries.getOccurrenceQueries().isEmpty() && rollup != null) {
+            resolveRollupOccurrenceQueries(clazz, rollup, stats, totalCounts, bucketIndexes, unit, whereFilterString,
+                    entityManager, requestFields, statQueries.getOccurrenceQueries());
+        } else if (!statQueries.getOccurrenceQueries().isEmpty()) {
+            resolveBucketOccurrenceQueries(clazz, stats, totalCounts, bucketIndexes, bucket, tableName,
+                    whereFilterString, entityManager, requestFields, statQueries.getOccurrenceQueries());
+        }
+        return stats;
+    }
+
+    <T> long[] resolveBucketAggregateQueries(Class<T> clazz,
+                                             List<ObjectNode> stats,
+                                             Map<String, Integer> bucketIndexes,
+                                             String bucket,
+                                             String tableName,
+                                             String whereFilterString,
+                                             EntityManager entityManager,
+                                             MultiValuedMap<String, Object> requestFields,
+                                             List<StatAggregate> aggregates) {
+        List<String> columnQueryList = new ArrayList<>();
+        columnQueryList.add(bucket + " AS stat_bucket");
+        for (int index = 0; index < aggregates.size(); index++) {
+            columnQueryList.add(aggregates.get(index).expression(this.sqlInterface, null) + " AS stat_" + index);
+        }
+        List<Map<String, Object>> rows = queryListResultAsMap(clazz, "SELECT " + String.join(", ", columnQueryList)
+                + " FROM " + tableName + " entity " + whereFilterString + " GROUP BY " + bucket,
+                entityManager, requestFields);
+        return putBucketAggregates(stats, bucketIndexes, aggregates, rows);
+    }
+
+    long[] putBucketAggregates(List<ObjectNode> stats,
+                               Map<String, Integer> bucketIndexes,
+                               List<StatAggregate> aggregates,
+                               List<Map<String, Object>> rows) {
+        Map<Integer, Map<String, Object>> bucketRows = new HashMap<>();
+        for (Map<String, Object> row : rows) {
+            Integer bucketIndex = bucketIndexes.get((String) row.get("stat_bucket"));
+            if (bucketIndex != null) bucketRows.put(bucketIndex, row);
+        }
+
+        long[] totalCounts = new long[stats.size()];
+        for (int bucketIndex = 0; bucketIndex < stats.size(); bucketIndex++) {
+            Map<String, Object> row = bucketRows.get(bucketIndex);
+            for (int index = 0; index < aggregates.size(); index++) {
+                StatAggregate aggregate = aggregates.get(index);
+                Object value = row == null ? null : row.get("stat_" + index);
+                boolean isCount = aggregate.getType() == StatAggregate.Type.COUNT
+                        || aggregate.getSqlFunction().equalsIgnoreCase("COUNT");
+                if (value == null && isCount) value = 0L;
+                if (aggregate.getType() == StatAggregate.Type.COUNT) {
+                    totalCounts[bucketIndex] = ((Number) value).longValue();
+                }
+                putStatField(stats.get(bucketIndex), aggregate.getName(), value);
+            }
+        }
+        return totalCounts;
+    }
+
+    <T> void resolveBucketPercentileQueries(Class<T> clazz,
+                                            List<ObjectNode> stats,
+                                            Map<String, Integer> bucketIndexes,
+                                            String bucket,
+                                            String tableName,
+                                            String whereFilterString,
+                                            EntityManager entityManager,
+                                            MultiValuedMap<String, Object> requestFields,
+                                            Map<String, StatQuery.MedianQuery[]> medianQueries,
+                                            Map<String, StatQuery.PercentileQuery[]> percentileQueries) {
+
+        Map<List<String>, Map<String, Double>> scans = resolvePercentileScans(medianQueries, percentileQueries);
+        for (ObjectNode stat : stats) {
+            for (Map<String, Double> percentiles : scans.values()) {
+                for (String name : percentiles.keySet()) stat.putNull(name);
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        List<String> percentileQueryList = new ArrayList<>();
+        for (Map.Entry<List<String>, Map<String, Double>> scan : scans.entrySet()) {
+            String columnName = scan.getKey().get(0);
+            String fromClause = buildPercentileFromClause(tableName, whereFilterString, columnName,
+                    scan.getKey().get(1));
+
+            Map<String, Double> streamedPercentiles = new LinkedHashMap<>();
+            for (Map.Entry<String, Double> percentile : scan.getValue().entrySet()) {
+                String percentileQuery = this.sqlInterface.percentileQuery(columnName, percentile.getValue(),
+                        bucket, fromClause);
+                if (percentileQuery == null) {
+                    streamedPercentiles.put(percentile.getKey(), percentile.getValue());
+                    continue;
+                }
+                String alias = "percentile_" + names.size();
+                percentileQueryList.add(String.format("SELECT %d AS percentile_index, %s.percentile_bucket, " +
+                        "%s.percentile_value FROM (%s) %s", names.size(), alias, alias, percentileQuery, alias));
+                names.add(percentile.getKey());
+            }
+            if (!streamedPercentiles.isEmpty()) {
+                streamBucketPercentileQueries(clazz, stats, bucketIndexes, bucket, columnName, fromClause,
+                        entityManager, requestFields, streamedPercentiles);
+            }
+        }
+        if (percentileQueryList.isEmpty()) return;
+        List<Map<String, Object>> rows = queryListResultAsMap(clazz, String.join(" UNION ALL ", percentileQueryList),
+                entityManager, requestFields);
+        for (Map<String, Object> row : rows) {
+            Integer bucketIndex = bucketIndexes.get((String) row.get("percentile_bucket"));
+            if (bucketIndex == null) continue;
+            putStatField(stats.get(bucketIndex), names.get(((Number) row.get("percentile_index")).intValue()),
+                    row.get("percentile_value"));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> void streamBucketPercentileQueries(Class<T> clazz,
+                                           List<ObjectNode> stats,
+                                           Map<String, Integer> bucketIndexes,
+                                           String bucket,
+                                           String columnName,
+                                           String fromClause,
+                                           EntityManager entityManager,
+                                           MultiValuedMap<String, Object> requestFields,
+                                           Map<String, Double> percentiles) {
+        Map<Integer, Map<String, P2QuantileEstimator>> bucketEstimators = new HashMap<>();
+        Query query = buildQueryObject(entityManager, "SELECT " + bucket + ", entity." + columnName + fromClause,
+                clazz, requestFields, false);
+        try (ScrollableResults<Object[]> results = ((org.hibernate.query.Query<Object[]>) query
+                .unwrap(org.hibernate.query.Query.class))
+                .setFetchSize(this.sqlInterface.streamFetchSize(fetchSize))
+                .setReadOnly(true)
+                .scroll(ScrollMode.FORWARD_ONLY)) {
+            while (results.next()) {
+                Object[] row = results.get();
+                Integer bucketIndex = bucketIndexes.get((String) row[0]);
+                if (bucketIndex == null || !(row[1] instanceof Number value)) continue;
+                Map<String, P2QuantileEstimator> estimators = bucketEstimators.computeIfAbsent(bucketIndex, k -> {
+                    Map<String, P2QuantileEstimator> newEstimators = new LinkedHashMap<>();
+                    for (Map.Entry<String, Double> percentile : percentiles.entrySet()) {
+                        newEstimators.put(percentile.getKey(), new P2QuantileEstimator(percentile.getValue()));
+                    }
+                    return newEstimators;
+                });
+                for (P2QuantileEstimator estimator : estimators.values()) estimator.add(value.doubleValue());
+            }
+        }
+        for (Map.Entry<Integer, Map<String, P2QuantileEstimator>> estimators : bucketEstimators.entrySet()) {
+            for (Map.Entry<String, P2QuantileEstimator> estimator : estimators.getValue().entrySet()) {
+                putStatField(stats.get(estimators.getKey()), estimator.getKey(), estimator.getValue().estimate());
+            }
+        }
+    }
+
+    // the occurrences of every bucket are counted together, the top of each bucket is picked from the rows
+    <T> void resolveBucketOccurrenceQueries(Class<T> clazz,
+                                            List<ObjectNode> stats,
+                                            long[] totalCounts,
+                                            Map<String, Integer> bucketIndexes,
+                                            String bucket,
+                                            String tableName,
+                                            String whereFilterString,
+                                            EntityManager entityManager,
+                                            MultiValuedMap<String, Object> requestFields,
+                                            Map<String, StatQuery.OccurrenceQuery[]> occurrenceQueries) {
+
+        for (Map.Entry<String, StatQuery.OccurrenceQuery[]> entry : occurrenceQueries.entrySet()) {
+            String columnName = entry.getKey();
+            for (StatQuery.OccurrenceQuery occurrenceQuery : entry.getValue()) {
+                StringBuilder queryBuilder = new StringBuilder("SELECT ").append(bucket).append(" AS stat_bucket, ")
+                        .append("entity.").append(columnName).append(", ")
+                        .append("COUNT(entity.").append(columnName).append(") AS count")
+                        .append(" FROM ").append(tableName).append(" entity ");
+                String name = (!occurrenceQuery.name().isEmpty()
+                        ? String.format(occurrenceQuery.name(), columnName, occurrenceQuery.type().name().toLowerCase())
+                        : String.format(columnName, occurrenceQuery.type().name().toLowerCase()));
+                queryBuilder.append((whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND "))
+                        .append("entity.").append(columnName).append(" IS NOT NULL");
+                if (!occurrenceQuery.whereClause().isEmpty()) {
+                    queryBuilder.append(" AND ").append(String.format(occurrenceQuery.whereClause(), columnName));
+                }
+                queryBuilder.append(" GROUP BY ").append(bucket).append(", entity.").append(columnName);
+                List<Map<String, Object>> rows = queryListResultAsMap(clazz, topBucketRows(queryBuilder.toString(),
+                        occurrenceQuery.fetchCount()), entityManager, requestFields);
+                putBucketOccurrences(stats, totalCounts, bucketIndexes, name, columnName, occurrenceQuery, rows);
+            }
+        }
+
+    }
+
+    // the grouped rows ordered by count, only the first fetchCount of each stat_bucket are read when the
+    // dialect can rank them and the others are dropped in putBucketOccurrences otherwise
+    String topBucketRows(String groupedQuery, long fetchCount) {
+        if (!this.sqlInterface.supportsWindowFunctions()) return groupedQuery + " ORDER BY count DESC";
+        return String.format("SELECT ranked.* FROM (SELECT grouped.*, ROW_NUMBER() OVER (PARTITION BY " +
+                "grouped.stat_bucket ORDER BY grouped.count DESC) AS barmoury_row_number FROM (%s) grouped) ranked " +
+                "WHERE ranked.barmoury_row_number <= %d ORDER BY ranked.count DESC", groupedQuery, fetchCount);
+    }
+
+    // the rows are ordered by count so the first fetchCount rows of a bucket are its top occurrences
+    void putBucketOccurrences(List<ObjectNode> stats,
+                              long[] totalCounts,
+                              Map<String, Integer> bucketIndexes,
+                              String name,
+                              String columnName,
+                              StatQuery.OccurrenceQuery occurrenceQuery,
+                              List<Map<String, Object>> rows) {
+        long[] fetchedCounts = new long[stats.size()];
+        List<ObjectNode> occurrences = new ArrayList<>();
+        for (ObjectNode stat : stats) {
+            ObjectNode occurrence = mapper.createObjectNode();
+            stat.set(name, occurrence);
+            occurrences.add(occurrence);
+        }
+        for (Map<String, Object> row : rows) {
+            Integer bucketIndex = bucketIndexes.get((String) row.get("stat_bucket"));
+            Object key = row.get(columnName);
+            if (bucketIndex == null || key == null || fetchedCounts[bucketIndex]++ >= occurrenceQuery.fetchCount()) {
+                continue;
+            }
+            long count = ((Number) row.get("count")).longValue();
+            if (occurrenceQuery.type() == StatQuery.OccurrenceQuery.Type.PERCENTAGE) {
+                putStatField(occurrences.get(bucketIndex), key.toString(),
+                        ((count * 100) / (double) totalCounts[bucketIndex]));
+            } else {
+                putStatField(occurrences.get(bucketIndex), key.toString(), count);
+            }
+        }
+    }
+
+    // the rollup of the entity when every filter of the request is on the interval column or a rollup dimension
+    // and every requested aggregate and occurrence query is kept in it and it covers the requested range
+    StatRollups.Definition resolveRollup(Class<?> clazz,
+                                         StatQuery statQuery,
+                                         MultiValuedMap<String, Object> requestFields,
+                                         String fromKey,
+                                         String toKey,
+                                         List<StatAggregate> aggregates,
+                                         Map<String, StatQuery.OccurrenceQuery[]> occurrenceQueries) {
+        if (statRollups == null || statQuery == null || !statQuery.rollup()
+                || this.sqlInterface.truncateTime(statQuery.intervalColumn(), ChronoUnit.HOURS) == null
+                || this.sqlInterface.castAsText(statQuery.intervalColumn()) == null) return null;
+        StatRollups.Definition definition = rollupDefinition(clazz, statQuery);
+        if (!definition.getIntervalColumn().equals(requestFields.get(fromKey).toArray()[0])) return null;
+        for (String queryParam : requestFields.keySet()) {
+            if (queryParam.equals(fromKey) || queryParam.equals(toKey)) continue;
+            Object[] values = requestFields.get(queryParam).toArray();
+            RequestParamFilter requestParamFilter = (RequestParamFilter) values[2];
+            if (values.length > 4 || requestParamFilter == null
+                    || requestParamFilter.operator() == RequestParamFilter.Operator.ENTITY
+                    || requestParamFilter.operator().name().startsWith("OBJECT")
+                    || !definition.getDimensions().contains((String) values[0])) return null;
+        }
+        for (StatAggregate aggregate : aggregates) {
+            if (definition.measureIndex(aggregate.getName()) < 0) return null;
+        }
+        for (Map.Entry<String, StatQuery.OccurrenceQuery[]> entry : occurrenceQueries.entrySet()) {
+            for (StatQuery.OccurrenceQuery occurrenceQuery : entry.getValue()) {
+                if (definition.occurrenceIndex(entry.getKey(), occurrenceQuery) < 0) return null;
+            }
+        }
+        SimpleDateFormat dateFormat = new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT, Locale.ENGLISH);
+        try {
+            Date from = dateFormat.parse(((String[]) requestFields.get(fromKey).toArray()[3])[0]);
+            Date to = dateFormat.parse(((String[]) requestFields.get(toKey).toArray()[3])[0]);
+            if (!statRollups.covers(clazz, definition, this.sqlInterface, entityManager, from, to)) return null;
+        } catch (ParseException ex) {
+            return null;
+        }
+        return definition;
+    }
+
+    StatRollups.Definition rollupDefinition(Class<?> clazz, StatQuery statQuery) {
+        return statRollups.definition(clazz, () -> {
+            String tableName = FieldUtil.getTableName(clazz);
+            StatQueries statQueries = StatQueries.resolve(getFilterPlan(clazz).getStatFields(), statQuery);
+            Field intervalField = null;
+            for (Field field : FieldUtil.getAllFields(clazz)) {
+                if (FieldUtil.getFieldColumnName(field).equals(statQuery.intervalColumn())) intervalField = field;
+            }
+            return new StatRollups.Definition(tableName, statQuery.intervalColumn(), intervalField,
+                    Arrays.asList(statQuery.rollupDimensions()),
+                    resolveStatAggregates(tableName, statQuery, statQueries.getColumnQueries(),
+                            statQueries.getAverageQueries(), Collections.emptyMap()),
+                    statQueries.getOccurrenceQueries());
+        });
+    }
+
+    <T> long[] resolveRollupAggregateQueries(Class<T> clazz,
+                                             StatRollups.Definition definition,
+                                             List<ObjectNode> stats,
+                                             Map<String, Integer> bucketIndexes,
+                                             ChronoUnit unit,
+                                             String whereFilterString,
+                                             EntityManager entityManager,
+                                             MultiValuedMap<String, Object> requestFields,
+                                             List<StatAggregate> aggregates) {
+        List<Integer> measureIndexes = new ArrayList<>();
+        for (StatAggregate aggregate : aggregates) measureIndexes.add(definition.measureIndex(aggregate.getName()));
+        List<Map<String, Object>> rows = queryListResultAsMap(clazz, definition.bucketAggregateQuery(
+                this.sqlInterface, measureIndexes, unit, whereFilterString), entityManager, requestFields);
+        // the sums over the rollup rows come back as decimals where the raw aggregates are integers
+        for (Map<String, Object> row : rows) {
+            for (Map.Entry<String, Object> column : row.entrySet()) {
+                if (column.getValue() instanceof BigDecimal decimal) {
+                    column.setValue(decimal.stripTrailingZeros().scale() <= 0
+                            ? (Object) decimal.longValue() : (Object) decimal.doubleValue());
+                }
+            }
+        }
+        return putBucketAggregates(stats, bucketIndexes, aggregates, rows);
+    }
+
+    <T> void resolveRollupOccurrenceQueries(Class<T> clazz,
+                                            StatRollups.Definition definition,
+                                            List<ObjectNode> stats,
+                                            long[] totalCounts,
+                                            Map<String, Integer> bucketIndexes,
+                                            ChronoUnit unit,
+                                            String whereFilterString,
+                                            EntityManager entityManager,
+                                            MultiValuedMap<String, Object> requestFields,
+                                            Map<String, StatQuery.OccurrenceQuery[]> occurrenceQueries) {
+        for (Map.Entry<String, StatQuery.OccurrenceQuery[]> entry : occurrenceQueries.entrySet()) {
+            String columnName = entry.getKey();
+            for (StatQuery.OccurrenceQuery occurrenceQuery : entry.getValue()) {
+                String name = (!occurrenceQuery.name().isEmpty()
+                        ? String.format(occurrenceQuery.name(), columnName, occurrenceQuery.type().name().toLowerCase())
+                        : String.format(columnName, occurrenceQuery.type().name().toLowerCase()));
+                List<Map<String, Object>> rows = queryListResultAsMap(clazz, topBucketRows(
+                        definition.bucketOccurrenceQuery(this.sqlInterface, definition.occurrenceIndex(columnName,
+                                occurrenceQuery), columnName, unit, whereFilterString), occurrenceQuery.fetchCount()),
+                        entityManager, requestFields);
+                putBucketOccurrences(stats, totalCounts, bucketIndexes, name, columnName, occurrenceQuery, rows);
+            }
+        }
+    }
+
+    // re-aggregates the rollup of the entity over the days from from to to, for rows written outside the
+    // controllers or to rebuild it after its stat queries changed
+    public void catchUpRollup(Class<?> clazz, Date from, Date to) {
+        StatQuery statQuery = FieldUtil.getAnnotation(clazz, StatQuery.class);
+        if (statRollups == null || statQuery == null || !statQuery.rollup()) return;
+        statRollups.refresh(rollupDefinition(clazz, statQuery), this.sqlInterface, entityManager, from, to);
+    }
+
+    // the days of the interval values of the written entities are re-aggregated before the rollup is next read
+    public void recordRollupWrite(Class<?> clazz, Object... resources) {
+        if (statRollups == null) return;
+        StatQuery statQuery = FieldUtil.getAnnotation(clazz, StatQuery.class);
+        if (statQuery == null || !statQuery.rollup()) return;
+        Field intervalField = rollupDefinition(clazz, statQuery).getIntervalField();
+        if (intervalField == null) return;
+        for (Object resource : resources) {
+            if (resource == null) continue;
+            try {
+                intervalField.setAccessible(true);
+                statRollups.recordWrite(clazz, intervalField.get(resource));
+            } catch (IllegalAccessException ignored) {}
+        }
+    }
+
     <T> ArrayNode fetchHourly(MultiValuedMap<String, Object> statRequestFields,
                                      MultiValuedMap<String, Object> requestFields,
                                      EntityManager entityManager,
@@ -480,7 +1308,8 @@ public class QueryArmoury {
                                      String toKey,
                                      Date startDate,
                                      Date endDate) throws ParseException {
-        ArrayNode arrayNode = mapper.createArrayNode();
+        List<Date[]> ranges = new ArrayList<>();
+        List<Long> differences = new ArrayList<>();
         long different = ChronoUnit.HOURS.between(startDate.toInstant(), endDate.toInstant());
 
         while (different > 0) {
@@ -489,16 +1318,14 @@ public class QueryArmoury {
             calendar.add(Calendar.HOUR, 1);
             endDate = calendar.getTime();
             different--;
-            arrayNode.add(getStatBetweenDate(statRequestFields, requestFields, null, entityManager, request,
-                    whereFilterString, statQuery, tableName, clazz,
-                    fromKey, toKey,
-                    new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(startDate),
-                    new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(endDate),
-                    "hourly", different+1));
+            ranges.add(new Date[]{startDate, endDate});
+            differences.add(different+1);
             startDate = endDate;
         }
 
-        return arrayNode;
+        return fetchBuckets(statRequestFields, requestFields, entityManager, request,
+                whereFilterString, statQuery, tableName, clazz,
+                fromKey, toKey, ChronoUnit.HOURS, ranges, differences, "hourly");
     }
 
     <T> ArrayNode fetchMonthly(MultiValuedMap<String, Object> statRequestFields,
@@ -513,30 +1340,31 @@ public class QueryArmoury {
                                       String fromKey,
                                       String toKey,
                                       Date mainStartDate) throws ParseException {
-        ArrayNode arrayNode = mapper.createArrayNode();
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(mainStartDate);
+        List<Date[]> ranges = new ArrayList<>();
+        List<Long> differences = new ArrayList<>();
+        Calendar calendar = truncateToBucket(mainStartDate, ChronoUnit.MONTHS);
         int monthIndex = calendar.get(Calendar.MONTH);
-        calendar.set(Calendar.DAY_OF_YEAR, 1);
 
         for (int index = 0; index < 12; index++) {
             calendar.set(Calendar.MONTH, index);
             calendar.set(Calendar.DAY_OF_MONTH, 1);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
             Date startDate = calendar.getTime();
             calendar.set(Calendar.DAY_OF_MONTH, calendar.getActualMaximum(Calendar.DAY_OF_MONTH));
-            Date endDate = calendar.getTime();
+            calendar.set(Calendar.HOUR_OF_DAY, 23);
+            calendar.set(Calendar.MINUTE, 59);
+            ranges.add(new Date[]{startDate, calendar.getTime()});
+            differences.add((long)index - monthIndex);
+        }
 
-            ObjectNode stat = getStatBetweenDate(statRequestFields, requestFields, null, entityManager, request,
-                    whereFilterString, statQuery, tableName, clazz,
-                    fromKey, toKey,
-                    new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(startDate),
-                    new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(endDate),
-                    "monthly", (long)index - monthIndex);
-            stat.put(isSnakeCase ? "month_name" : "monthName", Month.of(index+1)
+        ArrayNode arrayNode = fetchBuckets(statRequestFields, requestFields, entityManager, request,
+                whereFilterString, statQuery, tableName, clazz,
+                fromKey, toKey, ChronoUnit.MONTHS, ranges, differences, "monthly");
+        for (int index = 0; index < 12; index++) {
+            ((ObjectNode) arrayNode.get(index)).put(isSnakeCase ? "month_name" : "monthName", Month.of(index+1)
                     .getDisplayName(TextStyle.FULL_STANDALONE, Locale.getDefault()));
-            arrayNode.add(stat);
         }
-
         return arrayNode;
     }
 
@@ -552,33 +1380,32 @@ public class QueryArmoury {
                                        String fromKey,
                                        String toKey,
                                        Date mainStartDate) throws ParseException {
-        ArrayNode arrayNode = mapper.createArrayNode();
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(mainStartDate);
+        List<Date[]> ranges = new ArrayList<>();
+        List<Long> differences = new ArrayList<>();
+        Calendar calendar = truncateToBucket(mainStartDate, ChronoUnit.DAYS);
         int monthIndex = calendar.get(Calendar.DAY_OF_WEEK);
         calendar.setFirstDayOfWeek(Calendar.SUNDAY);
         calendar.set(Calendar.DAY_OF_WEEK, calendar.getFirstDayOfWeek());
 
         for (int index = 0; index < 7; index++) {
             calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
             Date startDate = calendar.getTime();
             calendar.set(Calendar.HOUR_OF_DAY, 23);
             calendar.set(Calendar.MINUTE, 59);
-            Date endDate = calendar.getTime();
-
-            ObjectNode stat = getStatBetweenDate(statRequestFields, requestFields, null, entityManager, request,
-                    whereFilterString, statQuery, tableName, clazz,
-                    fromKey, toKey,
-                    new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(startDate),
-                    new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(endDate),
-                    isSnakeCase ? "week_day" : "weekDay", (long)index - monthIndex+1);
-            stat.put(isSnakeCase ? "week_day" : "weekDay", DayOfWeek.of(index == 0 ? 7 : index)
-                    .getDisplayName(TextStyle.FULL_STANDALONE, Locale.getDefault()));
-            arrayNode.add(stat);
+            ranges.add(new Date[]{startDate, calendar.getTime()});
+            differences.add((long)index - monthIndex+1);
 
             calendar.add(Calendar.DAY_OF_WEEK, 1);
         }
 
+        ArrayNode arrayNode = fetchBuckets(statRequestFields, requestFields, entityManager, request,
+                whereFilterString, statQuery, tableName, clazz,
+                fromKey, toKey, ChronoUnit.DAYS, ranges, differences, isSnakeCase ? "week_day" : "weekDay");
+        for (int index = 0; index < 7; index++) {
+            ((ObjectNode) arrayNode.get(index)).put(isSnakeCase ? "week_day" : "weekDay",
+                    DayOfWeek.of(index == 0 ? 7 : index).getDisplayName(TextStyle.FULL_STANDALONE, Locale.getDefault()));
+        }
         return arrayNode;
     }
 
@@ -594,32 +1421,29 @@ public class QueryArmoury {
                                         String fromKey,
                                         String toKey,
                                         Date mainStartDate) throws ParseException {
-        ArrayNode arrayNode = mapper.createArrayNode();
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(mainStartDate);
+        List<Date[]> ranges = new ArrayList<>();
+        List<Long> differences = new ArrayList<>();
+        Calendar calendar = truncateToBucket(mainStartDate, ChronoUnit.DAYS);
         int monthIndex = calendar.get(Calendar.DAY_OF_MONTH);
         int maxMonthDay = calendar.getActualMaximum(Calendar.DAY_OF_MONTH);
 
         for (int index = 1; index <= maxMonthDay; index++) {
             calendar.set(Calendar.DAY_OF_MONTH, index);
             calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
             Date startDate = calendar.getTime();
             calendar.set(Calendar.HOUR_OF_DAY, 23);
             calendar.set(Calendar.MINUTE, 59);
-            Date endDate = calendar.getTime();
-
-            ObjectNode stat = getStatBetweenDate(statRequestFields, requestFields, null, entityManager, request,
-                    whereFilterString, statQuery, tableName, clazz,
-                    fromKey, toKey,
-                    new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(startDate),
-                    new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(endDate),
-                    isSnakeCase ? "day_of_month" : "dayOfMonth", (long)index - monthIndex);
-            stat.put(isSnakeCase ? "day_of_month" : "dayOfMonth", index);
-            arrayNode.add(stat);
-
-            calendar.add(Calendar.DAY_OF_MONTH, 1);
+            ranges.add(new Date[]{startDate, calendar.getTime()});
+            differences.add((long)index - monthIndex);
         }
 
+        ArrayNode arrayNode = fetchBuckets(statRequestFields, requestFields, entityManager, request,
+                whereFilterString, statQuery, tableName, clazz,
+                fromKey, toKey, ChronoUnit.DAYS, ranges, differences, isSnakeCase ? "day_of_month" : "dayOfMonth");
+        for (int index = 1; index <= maxMonthDay; index++) {
+            ((ObjectNode) arrayNode.get(index - 1)).put(isSnakeCase ? "day_of_month" : "dayOfMonth", index);
+        }
         return arrayNode;
     }
 
@@ -651,31 +1475,34 @@ public class QueryArmoury {
                                      Date startDate,
                                      Date endDate) throws ParseException {
 
-        ArrayNode arrayNode = mapper.createArrayNode();
+        List<Date[]> ranges = new ArrayList<>();
+        List<Long> differences = new ArrayList<>();
+        List<Integer> years = new ArrayList<>();
         long different = getDiffYears(startDate, endDate)+1;
-        Calendar calendar = Calendar.getInstance();
-        calendar.setTime(startDate);
+        Calendar calendar = truncateToBucket(startDate, ChronoUnit.YEARS);
 
         for (int index = 0; index < different; index++) {
-            calendar.set(Calendar.MONTH, index);
             calendar.set(Calendar.DAY_OF_YEAR, 1);
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+            calendar.set(Calendar.MINUTE, 0);
             startDate = calendar.getTime();
             calendar.set(Calendar.MONTH, 11);
             calendar.set(Calendar.DAY_OF_MONTH, calendar.getActualMaximum(Calendar.DAY_OF_MONTH));
-            endDate = calendar.getTime();
-
-            ObjectNode stat = getStatBetweenDate(statRequestFields, requestFields, null, entityManager, request,
-                    whereFilterString, statQuery, tableName, clazz,
-                    fromKey, toKey,
-                    new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(startDate),
-                    new SimpleDateFormat(INTERVAL_COLUMN_DATE_FORMAT).format(endDate),
-                    "yearly", different - index - 1L);
-            stat.put("year", calendar.get(Calendar.YEAR));
-            arrayNode.add(stat);
+            calendar.set(Calendar.HOUR_OF_DAY, 23);
+            calendar.set(Calendar.MINUTE, 59);
+            ranges.add(new Date[]{startDate, calendar.getTime()});
+            differences.add(different - index - 1L);
+            years.add(calendar.get(Calendar.YEAR));
 
             calendar.add(Calendar.YEAR, 1);
         }
 
+        ArrayNode arrayNode = fetchBuckets(statRequestFields, requestFields, entityManager, request,
+                whereFilterString, statQuery, tableName, clazz,
+                fromKey, toKey, ChronoUnit.YEARS, ranges, differences, "yearly");
+        for (int index = 0; index < years.size(); index++) {
+            ((ObjectNode) arrayNode.get(index)).put("year", years.get(index));
+        }
         return arrayNode;
     }
 
@@ -690,197 +1517,280 @@ public class QueryArmoury {
         return nativeQuery.getResultList();
     }
 
+    // queryListResultAsMap through a forward only cursor, the stream should be closed to release it
     @SuppressWarnings("unchecked")
-    <T> long resolveColumnQueries(HttpServletRequest request,
-                                         Class<T> clazz,
-                                         ObjectNode stat,
-                                         String tableName,
-                                         StatQuery statQuery,
-                                         String whereFilterString,
-                                         EntityManager entityManager,
-                                         MultiValuedMap<String, Object> requestFields,
-                                         Map<String, StatQuery.ColumnQuery[]> columnQueries) {
-        List<String> columnQueryList = new ArrayList<>();
+    public <T> Stream<Map<String, Object>> streamQueryResultAsMap(Class<T> clazz,
+                                                                 String queryString,
+                                                                 EntityManager entityManager,
+                                                                 MultiValuedMap<String, Object> requestFields) {
+        Query query = buildQueryObject(entityManager, queryString, clazz, requestFields, false);
+        return ((org.hibernate.query.Query<Map<String, Object>>) query.unwrap(org.hibernate.query.Query.class))
+                .setTupleTransformer((tuple, aliases) -> {
+                    Map<String, Object> row = new LinkedHashMap<>();
+                    for (int index = 0; index < tuple.length; index++) row.put(aliases[index], tuple[index]);
+                    return row;
+                })
+                .setFetchSize(this.sqlInterface.streamFetchSize(fetchSize))
+                .setReadOnly(true)
+                .stream();
+    }
+
+    // the count, column, average and percentage change queries in the order they are put in the stat
+    List<StatAggregate> resolveStatAggregates(String tableName,
+                                              StatQuery statQuery,
+                                              Map<String, StatQuery.ColumnQuery[]> columnQueries,
+                                              Map<String, StatQuery.AverageQuery[]> averageQueries,
+                                              Map<String, StatQuery.PercentageChangeQuery[]> percentageChangeQueries) {
+        List<StatAggregate> aggregates = new ArrayList<>();
         String countName = statQuery != null && statQuery.columnsAreSnakeCase()
                 ? tableName + "_count"
                 : tableName + "Count";
-        columnQueryList.add(String.format("(SELECT COUNT(*) FROM %s entity %s) AS %s",
-                tableName, whereFilterString, countName));
-
-        if (hasStatQueryCapability(request, statQuery, "process_column_queries")) {
-            for (Map.Entry<String, StatQuery.ColumnQuery[]> entry : columnQueries.entrySet()) {
-                String columnName = entry.getKey();
-
-                for (StatQuery.ColumnQuery columnQuery : entry.getValue()) {
-                    StringBuilder queryBuilder = new StringBuilder("(SELECT ");
-                    boolean hasFunction = !columnQuery.sqlFunction().isEmpty();
-                    String name = !columnQuery.name().isEmpty()
-                            ? String.format(columnQuery.name(), columnName)
-                            : columnName;
-                    if (hasFunction) queryBuilder.append(columnQuery.sqlFunction()).append("(entity.");
-                    queryBuilder.append(columnName);
-                    if (hasFunction) queryBuilder.append(')');
-                    queryBuilder.append(" FROM ").append(tableName).append(" entity ");
-                    if (!columnQuery.whereClause().isEmpty()) {
-                        queryBuilder.append((whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND "))
-                                .append(String.format(columnQuery.whereClause(), columnName));
-                    } else if (!whereFilterString.trim().isEmpty()) {
-                        queryBuilder.append(whereFilterString);
-                    }
-                    queryBuilder.append(")").append(" AS ").append(name);
-                    columnQueryList.add(queryBuilder.toString());
-                }
+        aggregates.add(new StatAggregate(StatAggregate.Type.COUNT, countName, null, "", ""));
+        for (Map.Entry<String, StatQuery.ColumnQuery[]> entry : columnQueries.entrySet()) {
+            String columnName = entry.getKey();
+            for (StatQuery.ColumnQuery columnQuery : entry.getValue()) {
+                String name = !columnQuery.name().isEmpty()
+                        ? String.format(columnQuery.name(), columnName)
+                        : columnName;
+                aggregates.add(new StatAggregate(StatAggregate.Type.COLUMN, name, columnName,
+                        columnQuery.sqlFunction(), columnQuery.whereClause()));
             }
         }
-        StringBuilder columnQueryBuilder = new StringBuilder("SELECT ");
-        for (int index = 0; index < columnQueryList.size(); index++) {
-            String columnQuery = columnQueryList.get(index);
-            columnQueryBuilder.append(columnQuery);
-            if (index != columnQueryList.size()-1) {
-                columnQueryBuilder.append(", ");
+        for (Map.Entry<String, StatQuery.AverageQuery[]> entry : averageQueries.entrySet()) {
+            String columnName = entry.getKey();
+            for (StatQuery.AverageQuery averageQuery : entry.getValue()) {
+                String name = !averageQuery.name().isEmpty()
+                        ? String.format(averageQuery.name(), columnName)
+                        : columnName;
+                aggregates.add(new StatAggregate(StatAggregate.Type.AVERAGE, name, columnName,
+                        "AVG", averageQuery.whereClause()));
             }
         }
-        long totalCount = 0;
-        Map<String, Object> columns = singleQueryResultAsMap(clazz, columnQueryBuilder.toString(), entityManager,
-                requestFields);
-        for (Map.Entry<String, Object> column : columns.entrySet()) {
-            if (column.getKey().equals(countName)) totalCount = Long.parseLong(column.getValue().toString());
-            putStatField(stat, column.getKey(), column.getValue());
+        for (Map.Entry<String, StatQuery.PercentageChangeQuery[]> entry : percentageChangeQueries.entrySet()) {
+            String columnName = entry.getKey();
+            for (StatQuery.PercentageChangeQuery percentageQuery : entry.getValue()) {
+                String name = !percentageQuery.name().isEmpty()
+                        ? String.format(percentageQuery.name(), columnName)
+                        : columnName;
+                aggregates.add(new StatAggregate(StatAggregate.Type.PERCENTAGE_CHANGE, name, columnName,
+                        percentageQuery.sqlFunction(), percentageQuery.whereClause()));
+            }
         }
-        return totalCount;
+        return aggregates;
     }
 
-    @SuppressWarnings("unchecked")
-    <T> void resolveAverageQueries(Class<T> clazz,
-                                          ObjectNode stat,
-                                          String tableName,
-                                          String whereFilterString,
-                                          EntityManager entityManager,
-                                          MultiValuedMap<String, Object> requestFields,
-                                          Map<String, StatQuery.AverageQuery[]> averageQueries) {
+    // every aggregate is computed in a single scan of the table, each with its where clause as a filter
+    <T> long resolveAggregateQueries(Class<T> clazz,
+                                     ObjectNode stat,
+                                     String tableName,
+                                     String whereFilterString,
+                                     EntityManager entityManager,
+                                     MultiValuedMap<String, Object> requestFields,
+                                     List<StatAggregate> aggregates,
+                                     Map<String, Long> percentageMap) {
+        return resolveAggregateQueries(clazz, Collections.singletonList(stat), tableName, whereFilterString,
+                entityManager, requestFields, aggregates, Collections.singletonList(null),
+                Collections.singletonList(percentageMap))[0];
+    }
 
+    // the aggregates of several periods in the same scan, the condition of a period filters its rows from the others
+    <T> long[] resolveAggregateQueries(Class<T> clazz,
+                                       List<ObjectNode> stats,
+                                       String tableName,
+                                       String whereFilterString,
+                                       EntityManager entityManager,
+                                       MultiValuedMap<String, Object> requestFields,
+                                       List<StatAggregate> aggregates,
+                                       List<String> periodConditions,
+                                       List<Map<String, Long>> percentageMaps) {
         List<String> columnQueryList = new ArrayList<>();
-        for (Map.Entry<String, StatQuery.AverageQuery[]> entry : averageQueries.entrySet()) {
-            String columnName = entry.getKey();
-            for (StatQuery.AverageQuery averageQuery : entry.getValue()) {
-                String name = !averageQuery.name().isEmpty()
-                        ? String.format(averageQuery.name(), columnName)
-                        : columnName;
-                StringBuilder queryBuilder = new StringBuilder("(SELECT AVG(entity.");
-                queryBuilder.append(columnName).append(')');
-                queryBuilder.append(" FROM ").append(tableName).append(" entity ");
-                if (!averageQuery.whereClause().isEmpty()) {
-                    queryBuilder.append((whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND "))
-                            .append(String.format(averageQuery.whereClause(), columnName));
-                } else if (!whereFilterString.trim().isEmpty()) {
-                    queryBuilder.append(whereFilterString);
+        for (int period = 0; period < stats.size(); period++) {
+            for (int index = 0; index < aggregates.size(); index++) {
+                StatAggregate aggregate = aggregates.get(index);
+                String expression = aggregate.isAggregate()
+                        ? aggregate.expression(this.sqlInterface, periodConditions.get(period))
+                        : buildScalarColumnQuery(tableName, whereFilterString, aggregate);
+                columnQueryList.add(String.format("%s AS stat_%d_%d", expression, period, index));
+            }
+        }
+        Map<String, Object> columns = singleQueryResultAsMap(clazz, String.format("SELECT %s FROM %s entity %s",
+                String.join(", ", columnQueryList), tableName, whereFilterString), entityManager, requestFields);
+
+        long[] totalCounts = new long[stats.size()];
+        for (int period = 0; period < stats.size(); period++) {
+            Map<String, Long> percentageMap = percentageMaps.get(period);
+            for (int index = 0; index < aggregates.size(); index++) {
+                StatAggregate aggregate = aggregates.get(index);
+                Object value = columns.get(String.format("stat_%d_%d", period, index));
+                if (aggregate.getType() == StatAggregate.Type.COUNT) {
+                    totalCounts[period] = value == null ? 0 : ((Number) value).longValue();
+                }
+                if (aggregate.getType() == StatAggregate.Type.PERCENTAGE_CHANGE) {
+                    if (percentageMap != null) percentageMap.put(aggregate.getName(), value == null
+                            ? 0
+                            : ((Number) value).longValue());
+                    continue;
                 }
-                queryBuilder.append(")").append(" AS ").append(name);
-                columnQueryList.add(queryBuilder.toString());
+                putStatField(stats.get(period), aggregate.getName(), value);
             }
         }
-        StringBuilder columnQueryBuilder = new StringBuilder("SELECT ");
-        for (int index = 0; index < columnQueryList.size(); index++) {
-            String columnQuery = columnQueryList.get(index);
-            columnQueryBuilder.append(columnQuery);
-            if (index != columnQueryList.size()-1) {
-                columnQueryBuilder.append(", ");
+        return totalCounts;
+    }
+
+    String buildScalarColumnQuery(String tableName, String whereFilterString, StatAggregate aggregate) {
+        StringBuilder queryBuilder = new StringBuilder("(SELECT entity.");
+        queryBuilder.append(aggregate.getColumn()).append(" FROM ").append(tableName).append(" entity ");
+        if (!aggregate.getWhereClause().isEmpty()) {
+            queryBuilder.append((whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND "))
+                    .append(aggregate.getCondition());
+        } else if (!whereFilterString.trim().isEmpty()) {
+            queryBuilder.append(whereFilterString);
+        }
+        return queryBuilder.append(")").toString();
+    }
+
+    <T> void resolvePercentileQueries(Class<T> clazz,
+                                      ObjectNode stat,
+                                      String tableName,
+                                      String whereFilterString,
+                                      EntityManager entityManager,
+                                      MultiValuedMap<String, Object> requestFields,
+                                      Map<String, StatQuery.MedianQuery[]> medianQueries,
+                                      Map<String, StatQuery.PercentileQuery[]> percentileQueries) {
+
+        Map<List<String>, Map<String, Double>> scans = resolvePercentileScans(medianQueries, percentileQueries);
+        List<String> columnQueryList = new ArrayList<>();
+        for (Map.Entry<List<String>, Map<String, Double>> scan : scans.entrySet()) {
+            String columnName = scan.getKey().get(0);
+            String fromClause = buildPercentileFromClause(tableName, whereFilterString, columnName,
+                    scan.getKey().get(1));
+
+            Map<String, Double> streamedPercentiles = new LinkedHashMap<>();
+            for (Map.Entry<String, Double> percentile : scan.getValue().entrySet()) {
+                String percentileQuery = this.sqlInterface.percentileQuery(columnName, percentile.getValue(),
+                        null, fromClause);
+                if (percentileQuery == null) {
+                    streamedPercentiles.put(percentile.getKey(), percentile.getValue());
+                    continue;
+                }
+                columnQueryList.add(String.format("(%s) AS %s", percentileQuery, percentile.getKey()));
+            }
+            if (!streamedPercentiles.isEmpty()) {
+                streamPercentileQueries(clazz, stat, columnName, fromClause, entityManager, requestFields,
+                        streamedPercentiles);
             }
         }
-        Map<String, Object> columns = singleQueryResultAsMap(clazz, columnQueryBuilder.toString(), entityManager,
-                requestFields);
+        if (columnQueryList.isEmpty()) return;
+        Map<String, Object> columns = singleQueryResultAsMap(clazz, "SELECT " + String.join(", ", columnQueryList),
+                entityManager, requestFields);
         for (Map.Entry<String, Object> column : columns.entrySet()) {
             putStatField(stat, column.getKey(), column.getValue());
         }
-
     }
 
-    @SuppressWarnings("unchecked")
-    <T> void resolveMedianQueries(Class<T> clazz,
-                                         ObjectNode stat,
-                                         String tableName,
-                                         String whereFilterString,
-                                         EntityManager entityManager,
-                                         MultiValuedMap<String, Object> requestFields,
-                                         Map<String, StatQuery.MedianQuery[]> averageQueries) {
-
-        List<String> columnQueryList = new ArrayList<>();
-        for (Map.Entry<String, StatQuery.MedianQuery[]> entry : averageQueries.entrySet()) {
+    // name -> percentile for each column and where clause, a median is just the 50th percentile
+    Map<List<String>, Map<String, Double>> resolvePercentileScans(Map<String, StatQuery.MedianQuery[]> medianQueries,
+                                                                  Map<String, StatQuery.PercentileQuery[]> percentileQueries) {
+        Map<List<String>, Map<String, Double>> scans = new LinkedHashMap<>();
+        for (Map.Entry<String, StatQuery.MedianQuery[]> entry : medianQueries.entrySet()) {
             String columnName = entry.getKey();
-            for (StatQuery.MedianQuery averageQuery : entry.getValue()) {
-                String name = !averageQuery.name().isEmpty()
-                        ? String.format(averageQuery.name(), columnName)
+            for (StatQuery.MedianQuery medianQuery : entry.getValue()) {
+                String name = !medianQuery.name().isEmpty()
+                        ? String.format(medianQuery.name(), columnName)
                         : columnName;
-                StringBuilder queryBuilder = new StringBuilder("(SELECT entity.");
-                queryBuilder.append(columnName).append(" FROM ").append(tableName).append(" entity, ")
-                        .append(tableName).append(" entity2 ");
-                if (!averageQuery.whereClause().isEmpty()) {
-                    queryBuilder.append((whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND "))
-                            .append(String.format(averageQuery.whereClause(), columnName));
-                } else if (!whereFilterString.trim().isEmpty()) {
-                    queryBuilder.append(whereFilterString);
-                }
-                queryBuilder.append(" GROUP BY entity.").append(columnName).append(" HAVING SUM(SIGN(1-SIGN(entity2.")
-                        .append(columnName).append("-entity.").append(columnName).append(")))/COUNT(*) > .5 ")
-                        .append(this.sqlInterface.limit(1)).append(")") .append(" AS ").append(name);
-                columnQueryList.add(queryBuilder.toString());
+                scans.computeIfAbsent(Arrays.asList(columnName, medianQuery.whereClause()),
+                        k -> new LinkedHashMap<>()).put(name, 0.5);
             }
         }
-        StringBuilder columnQueryBuilder = new StringBuilder("SELECT ");
-        for (int index = 0; index < columnQueryList.size(); index++) {
-            String columnQuery = columnQueryList.get(index);
-            columnQueryBuilder.append(columnQuery);
-            if (index != columnQueryList.size()-1) {
-                columnQueryBuilder.append(", ");
+        for (Map.Entry<String, StatQuery.PercentileQuery[]> entry : percentileQueries.entrySet()) {
+            String columnName = entry.getKey();
+            for (StatQuery.PercentileQuery percentileQuery : entry.getValue()) {
+                for (double percentile : percentileQuery.value()) {
+                    String label = BigDecimal.valueOf(percentile).movePointRight(2).stripTrailingZeros()
+                            .toPlainString().replace('.', '_');
+                    String name = !percentileQuery.name().isEmpty()
+                            ? String.format(percentileQuery.name(), columnName, label)
+                            : columnName + "_p" + label;
+                    scans.computeIfAbsent(Arrays.asList(columnName, percentileQuery.whereClause()),
+                            k -> new LinkedHashMap<>()).put(name, percentile);
+                }
             }
         }
-        Map<String, Object> columns = singleQueryResultAsMap(clazz, columnQueryBuilder.toString(), entityManager,
-                requestFields);
-        for (Map.Entry<String, Object> column : columns.entrySet()) {
-            putStatField(stat, column.getKey(), column.getValue());
+        return scans;
+    }
+
+    String buildPercentileFromClause(String tableName, String whereFilterString, String columnName, String whereClause) {
+        StringBuilder fromBuilder = new StringBuilder(" FROM ").append(tableName).append(" entity ");
+        fromBuilder.append((whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND "));
+        if (!whereClause.isEmpty()) {
+            fromBuilder.append(String.format(whereClause, columnName)).append(" AND ");
         }
+        fromBuilder.append("entity.").append(columnName).append(" IS NOT NULL");
+        return fromBuilder.toString();
+    }
 
+    // single forward-only scan feeding every percentile of the column, for dialects without ordered-set aggregates
+    @SuppressWarnings("unchecked")
+    <T> void streamPercentileQueries(Class<T> clazz,
+                                     ObjectNode stat,
+                                     String columnName,
+                                     String fromClause,
+                                     EntityManager entityManager,
+                                     MultiValuedMap<String, Object> requestFields,
+                                     Map<String, Double> percentiles) {
+        Map<String, P2QuantileEstimator> estimators = new LinkedHashMap<>();
+        for (Map.Entry<String, Double> percentile : percentiles.entrySet()) {
+            estimators.put(percentile.getKey(), new P2QuantileEstimator(percentile.getValue()));
+        }
+        Query query = buildQueryObject(entityManager, String.format("SELECT entity.%s %s", columnName, fromClause),
+                clazz, requestFields, false);
+        try (ScrollableResults<Object> results = ((org.hibernate.query.Query<Object>) query
+                .unwrap(org.hibernate.query.Query.class))
+                .setFetchSize(this.sqlInterface.streamFetchSize(fetchSize))
+                .setReadOnly(true)
+                .scroll(ScrollMode.FORWARD_ONLY)) {
+            while (results.next()) {
+                if (!(results.get() instanceof Number value)) continue;
+                for (P2QuantileEstimator estimator : estimators.values()) estimator.add(value.doubleValue());
+            }
+        }
+        for (Map.Entry<String, P2QuantileEstimator> estimator : estimators.entrySet()) {
+            putStatField(stat, estimator.getKey(), estimator.getValue().estimate());
+        }
     }
 
     @SuppressWarnings("unchecked")
     <T> void resolveOccurrenceQueries(Class<T> clazz,
                                              ObjectNode stat,
                                              long totalCount,
+                                             double scale,
                                              String tableName,
                                              String whereFilterString,
                                              EntityManager entityManager,
                                              MultiValuedMap<String, Object> requestFields,
                                              Map<String, StatQuery.OccurrenceQuery[]> occurrenceQueries) {
 
+        OccurrenceGroups occurrenceGroups = new OccurrenceGroups(occurrenceQueries);
+        List<List<Object[]>> groupRows = queryOccurrenceGroups(clazz, occurrenceGroups, tableName, whereFilterString,
+                entityManager, requestFields);
         for (Map.Entry<String, StatQuery.OccurrenceQuery[]> entry : occurrenceQueries.entrySet()) {
             String columnName = entry.getKey();
-            for (StatQuery.OccurrenceQuery occurrenceQuery : entry.getValue()) {
-                StringBuilder queryBuilder = new StringBuilder("SELECT entity.").append(columnName).append(", ")
-                        .append("COUNT(entity.").append(columnName).append(") AS count")
-                        .append(" FROM ").append(tableName).append(" entity ");
+            for (int position = 0; position < entry.getValue().length; position++) {
+                StatQuery.OccurrenceQuery occurrenceQuery = entry.getValue()[position];
                 String name = (!occurrenceQuery.name().isEmpty()
                         ? String.format(occurrenceQuery.name(), columnName, occurrenceQuery.type().name().toLowerCase())
                         : String.format(columnName, occurrenceQuery.type().name().toLowerCase()));
-                if (!occurrenceQuery.whereClause().isEmpty()) {
-                    queryBuilder.append((whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND "))
-                            .append(String.format(occurrenceQuery.whereClause(), columnName));
-                } else if (!whereFilterString.trim().isEmpty()) {
-                    queryBuilder.append(whereFilterString);
-                }
-                queryBuilder.append(" GROUP BY entity.").append(columnName).append(" ORDER BY count DESC ")
-                        .append(this.sqlInterface.limit(occurrenceQuery.fetchCount()));
-                List<Map<String, Object>> rows = queryListResultAsMap(clazz, queryBuilder.toString(), entityManager,
-                        requestFields);
+                List<Object[]> rows = groupRows.get(occurrenceGroups.groupIndex(columnName, position));
                 ObjectNode occurrence = mapper.createObjectNode();
-                for (Map<String, Object> row : rows) {
-                    Long count = (Long) row.get("count");
-                    Object key = row.get(columnName);
+                for (Object[] row : rows.subList(0, (int) Math.min(rows.size(), occurrenceQuery.fetchCount()))) {
+                    long count = (Long) row[1];
+                    Object key = row[0];
                     if (key == null) continue;
                     // TODO convert 0 and 1 to boolean if nooleanToInt is true
                     if (occurrenceQuery.type() == StatQuery.OccurrenceQuery.Type.PERCENTAGE) {
                         putStatField(occurrence, key.toString(), ((count * 100) / (double) totalCount));
                     } else {
-                        putStatField(occurrence, key.toString(), count);
+                        putStatField(occurrence, key.toString(), Math.round(count * scale));
                     }
                 }
                 stat.set(name, occurrence);
@@ -890,43 +1800,43 @@ public class QueryArmoury {
 
     }
 
-    // percentage, say last month is 10 this month = 20
-    // ((20 - 10) / 10) * 100
-    @SuppressWarnings("unchecked")
-    <T> Map<String, Long> resolvePercentageChangeQueries(Class<T> clazz,
-                                                                String tableName,
-                                                                String whereFilterString,
-                                                                EntityManager entityManager,
-                                                                MultiValuedMap<String, Object> requestFields,
-                                                                Map<String, StatQuery.PercentageChangeQuery[]> percentageChangeQueries) {
-
-        Map<String, Long> percentageMap = new HashMap<>();
-        for (Map.Entry<String, StatQuery.PercentageChangeQuery[]> entry : percentageChangeQueries.entrySet()) {
-            String columnName = entry.getKey();
-            for (StatQuery.PercentageChangeQuery percentageQuery : entry.getValue()) {
-                String name = !percentageQuery.name().isEmpty()
-                        ? String.format(percentageQuery.name(), columnName)
-                        : columnName;
-                StringBuilder queryBuilder = new StringBuilder("SELECT ")
-                        .append(percentageQuery.sqlFunction()).append("(entity.").append(columnName)
-                        .append(") AS count").append(" FROM ").append(tableName).append(" entity ");
-                if (!percentageQuery.whereClause().isEmpty()) {
-                    queryBuilder.append((whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND "))
-                            .append(String.format(percentageQuery.whereClause(), columnName));
-                } else if (!whereFilterString.trim().isEmpty()) {
-                    queryBuilder.append(whereFilterString);
-                }
-                Map<String, Object> row = singleQueryResultAsMap(clazz, queryBuilder.toString(), entityManager,
-                        requestFields);
-                Object value = row.get("count");
-                if (row.get("count") instanceof BigDecimal) {
-                    value = ((BigDecimal) value).longValue();
-                }
-                percentageMap.put(name, value == null ? 0 : (Long) value);
+    // the rows of every occurrence group in one statement, one query per group when the dialect cannot
+    // read the groups together
+    <T> List<List<Object[]>> queryOccurrenceGroups(Class<T> clazz,
+                                                   OccurrenceGroups occurrenceGroups,
+                                                   String tableName,
+                                                   String whereFilterString,
+                                                   EntityManager entityManager,
+                                                   MultiValuedMap<String, Object> requestFields) {
+        if (this.sqlInterface.supportsGroupingSets() && this.sqlInterface.supportsWindowFunctions()) {
+            return occurrenceGroups.groupingSetsRows(queryListResultAsMap(clazz, occurrenceGroups.groupingSetsQuery(
+                    this.sqlInterface, tableName, whereFilterString), entityManager, requestFields));
+        }
+        if (occurrenceGroups.getGroups().size() > 1 && this.sqlInterface.supportsLimitedUnionBranches()) {
+            return occurrenceGroups.unionRows(queryListResultAsMap(clazz, occurrenceGroups.unionQuery(
+                    this.sqlInterface, tableName, whereFilterString), entityManager, requestFields));
+        }
+        List<List<Object[]>> groupRows = new ArrayList<>();
+        for (OccurrenceGroups.Group group : occurrenceGroups.getGroups()) {
+            StringBuilder queryBuilder = new StringBuilder("SELECT entity.").append(group.columnName()).append(", ")
+                    .append("COUNT(entity.").append(group.columnName()).append(") AS count")
+                    .append(" FROM ").append(tableName).append(" entity ");
+            if (!group.whereClause().isEmpty()) {
+                queryBuilder.append((whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND "))
+                        .append(String.format(group.whereClause(), group.columnName()));
+            } else if (!whereFilterString.trim().isEmpty()) {
+                queryBuilder.append(whereFilterString);
             }
-
+            queryBuilder.append(" GROUP BY entity.").append(group.columnName()).append(" ORDER BY count DESC ")
+                    .append(this.sqlInterface.limit(group.fetchCount()));
+            List<Object[]> rows = new ArrayList<>();
+            for (Map<String, Object> row : queryListResultAsMap(clazz, queryBuilder.toString(), entityManager,
+                    requestFields)) {
+                rows.add(new Object[]{ row.get(group.columnName()), ((Number) row.get("count")).longValue() });
+            }
+            groupRows.add(rows);
         }
-        return percentageMap;
+        return groupRows;
     }
 
     // percentage, say last month is 10 this month = 20
@@ -967,114 +1877,6 @@ public class QueryArmoury {
         throw new EntityNotFoundException(String.format("%s, %d", message, id));
     }
     
-    void resolveQueryForSingleField(MultiValuedMap<String, Object> requestFields,
-                                    RequestParamFilter requestParamFilter,
-                                    boolean resolveStatQueryAnnotations,
-                                    Map<String, JoinColumn> joinTables,
-                                    HttpServletRequest request,
-                                    Set<String> queryParams,
-                                    String columnName,
-                                    Field field) {
-        for (String queryParam : queryParams) {
-            String[] values = new String[]{null};
-            boolean isPresent = false;
-            boolean isEntity = !resolveStatQueryAnnotations && requestParamFilter.operator() == RequestParamFilter.Operator.ENTITY;
-            boolean objectFilter = (!resolveStatQueryAnnotations
-                    && (requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_EQ
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_NE
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_LIKE
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_STR_EQ
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_STR_NE
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_NOT_LIKE
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_CONTAINS
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_ENDS_WITH
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_STARTS_WITH
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_NOT_CONTAINS
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_STR_ENDS_WITH
-                    || requestParamFilter.operator() == RequestParamFilter.Operator.OBJECT_STR_STARTS_WITH));
-
-            if (!resolveStatQueryAnnotations) {
-                for (Map.Entry<String, String[]> entry : request.getParameterMap().entrySet()) {
-                    if ((entry.getKey().equals(queryParam) || (objectFilter && entry.getKey().startsWith(queryParam))
-                            || (isEntity && entry.getKey().startsWith(queryParam + ".")))) {
-                        boolean anyValuePresent = false;
-                        List<String> validValues = new ArrayList<>();
-                        for (String value : entry.getValue()) {
-                            if (value.isEmpty()) continue;
-                            if (requestParamFilter.booleanToInt() &&
-                                    FieldUtil.objectsHasAnyType(field.getType(), boolean.class, Boolean.class)) {
-                                value = value.equals("true") ? "1" : "0";
-                            }
-                            validValues.add(value);
-                            if (!anyValuePresent) anyValuePresent = true;
-                        }
-                        values = new String[validValues.size()];
-                        validValues.toArray(values);
-                        if (!anyValuePresent) continue;
-                        queryParam = (objectFilter && requestParamFilter.columnObjectFieldsIsSnakeCase()
-                                ? FieldUtil.toSnakeCase(entry.getKey())
-                                : entry.getKey());
-                        isPresent = true;
-                        break;
-                    }
-                }
-            }
-            if (!resolveStatQueryAnnotations && !isPresent && !requestParamFilter.alwaysQuery()) {
-                continue;
-            }
-            if (resolveStatQueryAnnotations) queryParam = field.getName();
-            if (requestFields.containsKey(queryParam)) {
-                continue;
-            }
-            Entity entity = null;
-            Class<?> fieldClass = null;
-            JoinColumn joinColumn = null;
-            if (isEntity) {
-                fieldClass = field.getType();
-                entity = fieldClass.getAnnotation(Entity.class);
-                if (entity != null) {
-                    columnName = String.format("%s_entity.%s", entity.name(),
-                            queryParam.substring(queryParam.indexOf(".")+1));
-                }
-                Field actualSubField = null;
-                String[] nameParts = queryParam.split("\\.");
-                joinColumn = field.getAnnotation(JoinColumn.class);
-                String actualFieldName = nameParts[nameParts.length-1];
-                actualSubField = FieldUtil.getDeclaredField(fieldClass, isSnakeCase
-                        ? FieldUtil.toCamelCase(actualFieldName)
-                        : actualFieldName);
-                if (actualSubField == null) {
-                    actualSubField = FieldUtil.getDeclaredField(fieldClass, actualFieldName);
-                }
-                if (actualSubField != null) {
-                    RequestParamFilter actualRequestParamFilter = actualSubField.getAnnotation(RequestParamFilter.class);
-                    if (actualRequestParamFilter != null) requestParamFilter = actualRequestParamFilter;
-                }
-            }
-
-            requestFields.put(queryParam, columnName);
-            requestFields.put(queryParam, isPresent);
-            requestFields.put(queryParam, requestParamFilter);
-            requestFields.put(queryParam, values);
-            if (!resolveStatQueryAnnotations && entity != null) {
-                requestFields.put(queryParam, fieldClass);
-                joinTables.put(entity.name(), joinColumn);
-            }
-            if (resolveStatQueryAnnotations) {
-                StatQuery.MedianQuery[] medianQueries = field.getAnnotationsByType(StatQuery.MedianQuery.class);
-                StatQuery.ColumnQuery[] columnQueries = field.getAnnotationsByType(StatQuery.ColumnQuery.class);
-                StatQuery.AverageQuery[] averageQueries = field.getAnnotationsByType(StatQuery.AverageQuery.class);
-                StatQuery.OccurrenceQuery[] occurrenceQueries = field.getAnnotationsByType(StatQuery.OccurrenceQuery.class);
-                StatQuery.PercentageChangeQuery[] percentageChangeQueries = field.getAnnotationsByType(StatQuery.PercentageChangeQuery.class);
-                requestFields.put(queryParam, medianQueries);
-                requestFields.put(queryParam, columnQueries);
-                requestFields.put(queryParam, averageQueries);
-                requestFields.put(queryParam, occurrenceQueries);
-                requestFields.put(queryParam, percentageChangeQueries);
-            }
-        }
-    }
-
     String buildWhereFilter(MultiValuedMap<String, Object> requestFields,
                             Map<String, JoinColumn> joinTables, String rawWhereQuery) {
         boolean virginQuery = true;
@@ -1213,21 +2015,101 @@ public class QueryArmoury {
     }
 
     String buildPageFilter(Pageable pageable) {
-        StringBuilder pagination = new StringBuilder();
-        Sort sort = pageable.getSort();
+        return buildPageFilter(pageable, pageable.getPageSize());
+    }
+
+    String buildPageFilter(Pageable pageable, int limit) {
+        return String.format("%s %s %s ", buildOrderBy(pageable.getSort()), this.sqlInterface.limit(limit),
+                this.sqlInterface.offset((long) pageable.getPageNumber() * pageable.getPageSize()));
+    }
+
+    String buildOrderBy(Sort sort) {
+        StringBuilder orderBy = new StringBuilder();
         List<Sort.Order> orders = sort.toList();
         int sortSize = orders.size();
-        if (sortSize > 0) { pagination.append("ORDER BY"); }
+        if (sortSize > 0) { orderBy.append("ORDER BY"); }
         for (int index = 0; index < sortSize; index++) {
             Sort.Order order = orders.get(index);
-            pagination.append(String.format(" %s %s", order.getProperty(), order.getDirection()));
+            orderBy.append(String.format(" %s %s", order.getProperty(), order.getDirection()));
             if (index < sortSize-1) {
-                pagination.append(",");
+                orderBy.append(",");
+            }
+        }
+        return orderBy.toString();
+    }
+
+    // the entities a page of the entity can embed as sub entities or collections, at any depth
+    Set<Class<?>> embeddedClasses(Class<?> clazz) {
+        Set<Class<?>> classes = embeddedClasses.get(clazz);
+        if (classes != null) return classes;
+        classes = new LinkedHashSet<>();
+        Deque<Class<?>> pending = new ArrayDeque<>(List.of(clazz));
+        while (!pending.isEmpty()) {
+            EntityRowMapper<?> rowMapper = getRowMapper(pending.poll());
+            List<Class<?>> embedded = new ArrayList<>();
+            for (EntityRowMapper.Slot joinSlot : rowMapper.getJoinSlotList()) {
+                if (joinSlot.getField().getAnnotation(OneToMany.class) == null) embedded.add(joinSlot.getField().getType());
+            }
+            for (EntityRowMapper.CollectionSlot collectionSlot : rowMapper.getCollectionSlots()) {
+                embedded.add(collectionSlot.getChildClass());
             }
+            for (Class<?> embeddedClass : embedded) {
+                if (embeddedClass != clazz && classes.add(embeddedClass)) pending.add(embeddedClass);
+            }
+        }
+        embeddedClasses.put(clazz, classes);
+        return classes;
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> EntityRowMapper<T> getRowMapper(Class<T> tClass) {
+        EntityRowMapper<?> rowMapper = rowMappers.get(tClass);
+        if (rowMapper == null || rowMapper.isSnakeCase() != isSnakeCase) {
+            rowMapper = EntityRowMapper.build(tClass, isSnakeCase, mapper, autowireCapableBeanFactory);
+            rowMappers.put(tClass, rowMapper);
+        }
+        return (EntityRowMapper<T>) rowMapper;
+    }
+
+    // the rows are mapped into the entity as they are read, without an intermediate map per row
+    @SuppressWarnings("unchecked")
+    <T> List<T> resolveTypedEntityList(Query query,
+                                       Class<T> tClass,
+                                       boolean resolveSubEntities,
+                                       boolean skipRecursiveSubEntities,
+                                       int maxCollectionDepth,
+                                       int maxCollectionSize,
+                                       PageProbe pageProbe) {
+        EntityRowMapper<T> rowMapper = getRowMapper(tClass);
+        if (!rowMapper.isSupported()) {
+            NativeQueryImpl<Map<String, Object>> nativeQuery = (NativeQueryImpl<Map<String, Object>>) query;
+            nativeQuery.setResultTransformer(AliasToEntityMapResultTransformer.INSTANCE);
+            List<Map<String, Object>> rows = new ArrayList<>(nativeQuery.getResultList());
+            for (int index = 0; pageProbe != null && index < rows.size(); index++) {
+                Map<String, Object> row = rows.get(index);
+                if (pageProbe.accept(row.values().toArray(), row.keySet().toArray(new String[0]), index)) continue;
+                rows.subList(index, rows.size()).clear();
+            }
+            return resolveEntityList(rows, tClass, resolveSubEntities, skipRecursiveSubEntities);
+        }
+        List<T> result = new ArrayList<>();
+        List<Object[]> joinValues = new ArrayList<>();
+        ((org.hibernate.query.Query<T>) query.unwrap(org.hibernate.query.Query.class))
+                .setTupleTransformer((tuple, aliases) -> {
+                    if (pageProbe != null && !pageProbe.accept(tuple, aliases, result.size())) return null;
+                    Object[] rowJoinValues = resolveSubEntities ? new Object[rowMapper.getJoinSlotList().size()] : null;
+                    T entity = mapRow(rowMapper, tuple, aliases, rowJoinValues);
+                    result.add(entity);
+                    joinValues.add(rowJoinValues);
+                    return entity;
+                })
+                .getResultList();
+        if (resolveSubEntities) {
+            Set<Class<?>> resolvedClasses = skipRecursiveSubEntities ? new HashSet<>() : null;
+            hydrateSubEntities(rowMapper, result, joinValues, resolvedClasses, 0);
+            hydrateCollections(rowMapper, result, resolvedClasses, 0, maxCollectionDepth, maxCollectionSize);
         }
-        pagination.append(String.format(" %s %s ", this.sqlInterface.limit(pageable.getPageSize()),
-                this.sqlInterface.offset((long) pageable.getPageNumber() * pageable.getPageSize())));
-        return pagination.toString();
+        return result;
     }
 
     public <T> List<T> resolveEntityList(List<Map<String, Object>> rows,
@@ -1236,16 +2118,267 @@ public class QueryArmoury {
                                          boolean skipRecursiveSubEntities) {
 
         List<T> result = new ArrayList<>();
+        EntityRowMapper<T> rowMapper = getRowMapper(tClass);
+        if (rowMapper.isSupported()) {
+            List<Object[]> joinValues = new ArrayList<>();
+            for (Map<String, Object> row : rows) {
+                Object[] rowJoinValues = resolveSubEntities ? new Object[rowMapper.getJoinSlotList().size()] : null;
+                result.add(mapRow(rowMapper, row.values().toArray(), row.keySet().toArray(new String[0]),
+                        rowJoinValues));
+                joinValues.add(rowJoinValues);
+            }
+            if (resolveSubEntities) {
+                Set<Class<?>> resolvedClasses = skipRecursiveSubEntities ? new HashSet<>() : null;
+                hydrateSubEntities(rowMapper, result, joinValues, resolvedClasses, 0);
+                hydrateCollections(rowMapper, result, resolvedClasses, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+            }
+            return result;
+        }
         Map<String, Object[]> joinColumnFields = resolveSubEntities ? FieldUtil.findJoinColumnFields(tClass) : null;
         for (Map<String, Object> row : rows) {
-            // TODO this is not efficient, should fetch typed directly and not convert with mapper
-            result.add(mapper
-                    .convertValue(processSingleRow(row, joinColumnFields, tClass, resolveSubEntities,
-                                    skipRecursiveSubEntities ? new HashSet<>() : null), tClass));
+            result.add(mapper.convertValue(processSingleRow(row, joinColumnFields, tClass, resolveSubEntities,
+                    skipRecursiveSubEntities ? new HashSet<>() : null), tClass));
         }
         return result;
     }
 
+    // the join column values are kept in joinValues for the sub entities to be loaded for the whole page
+    <T> T mapRow(EntityRowMapper<T> rowMapper,
+                 Object[] tuple,
+                 String[] aliases,
+                 Object[] joinValues) {
+        T entity = rowMapper.newInstance();
+        EntityRowMapper.Plan plan = rowMapper.plan(aliases);
+        for (int index = 0; index < tuple.length; index++) {
+            EntityRowMapper.Slot joinSlot = plan.getJoinSlots()[index];
+            if (joinValues != null && joinSlot != null) {
+                joinValues[joinSlot.getJoinIndex()] = tuple[index];
+                continue;
+            }
+            EntityRowMapper.Slot fieldSlot = plan.getFieldSlots()[index];
+            if (fieldSlot != null) rowMapper.set(entity, fieldSlot, tuple[index]);
+        }
+        return entity;
+    }
+
+    // every join column of the entities is loaded with one IN query per referenced table instead of a query
+    // per row, the classes already resolved on the way down are skipped if skipping recursive sub entities
+    <T> void hydrateSubEntities(EntityRowMapper<T> rowMapper,
+                                List<T> entities,
+                                List<Object[]> joinValues,
+                                Set<Class<?>> resolvedClasses,
+                                int depth) {
+        for (EntityRowMapper.Slot joinSlot : rowMapper.getJoinSlotList()) {
+            Field field = joinSlot.getField();
+            int joinIndex = joinSlot.getJoinIndex();
+            if (field.getAnnotation(OneToMany.class) != null) {
+                if (field.getAnnotation(CollectionFetch.class) != null) continue;
+                for (int index = 0; index < entities.size(); index++) {
+                    if (joinValues.get(index)[joinIndex] == null) continue;
+                    rowMapper.set(entities.get(index), joinSlot, new ArrayList<>());
+                }
+                continue;
+            }
+            Class<?> subClass = field.getType();
+            if (depth >= maxSubEntityDepth || (resolvedClasses != null && resolvedClasses.contains(subClass))) {
+                continue;
+            }
+            Map<String, Object> keys = new LinkedHashMap<>();
+            for (Object[] rowJoinValues : joinValues) {
+                Object value = rowJoinValues[joinIndex];
+                if (value != null) keys.putIfAbsent(subEntityKey(value), value);
+            }
+            if (keys.isEmpty()) continue;
+            if (resolvedClasses != null) resolvedClasses.add(subClass);
+            Map<String, Object> subEntities = loadSubEntities(subClass, joinSlot.getJoinColumn(), keys.values(),
+                    resolvedClasses, depth + 1);
+
+            NotFound notFound = joinSlot.getNotFound();
+            for (int index = 0; index < entities.size(); index++) {
+                Object value = joinValues.get(index)[joinIndex];
+                if (value == null) continue;
+                Object subEntity = subEntities.get(subEntityKey(value));
+                if (subEntity == null && (notFound == null || notFound.action() == NotFoundAction.EXCEPTION)) {
+                    throw new NoResultException(String.format("No %s found for %s = %s",
+                            subClass.getSimpleName(), joinSlot.getJoinColumn().name(), value));
+                }
+                rowMapper.set(entities.get(index), joinSlot, subEntity);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <S> Map<String, Object> loadSubEntities(Class<S> subClass,
+                                            JoinColumn joinColumn,
+                                            Collection<Object> values,
+                                            Set<Class<?>> resolvedClasses,
+                                            int depth) {
+        String tableName = joinColumn.table();
+        if (tableName.isEmpty()) {
+            tableName = FieldUtil.getTableName(subClass);
+        }
+        String referencedColumnName = joinColumn.referencedColumnName().isEmpty()
+                ? "id" : joinColumn.referencedColumnName();
+        String queryString = String.format("SELECT sub_entity.* FROM %s sub_entity WHERE %s IN (:values) ",
+                tableName, referencedColumnName);
+        EntityRowMapper<S> subRowMapper = getRowMapper(subClass);
+        Map<String, Object> subEntities = new HashMap<>();
+        List<S> entities = new ArrayList<>();
+        List<Object[]> joinValues = new ArrayList<>();
+        List<Object> chunk = new ArrayList<>();
+        Iterator<Object> iterator = values.iterator();
+        while (iterator.hasNext()) {
+            chunk.add(iterator.next());
+            if (chunk.size() < subEntityBatchSize && iterator.hasNext()) continue;
+            Query query = entityManager.createNativeQuery(queryString).setParameter("values", chunk);
+            if (!subRowMapper.isSupported()) {
+                NativeQueryImpl<Map<String, Object>> nativeQuery = (NativeQueryImpl<Map<String, Object>>) query;
+                nativeQuery.setResultTransformer(AliasToEntityMapResultTransformer.INSTANCE);
+                for (Map<String, Object> row : nativeQuery.getResultList()) {
+                    Object key = row.get(referencedColumnName);
+                    subEntities.put(subEntityKey(key), mapper.convertValue(processSingleRow(row,
+                            FieldUtil.findJoinColumnFields(subClass), subClass, true, resolvedClasses), subClass));
+                }
+            } else {
+                ((org.hibernate.query.Query<S>) query.unwrap(org.hibernate.query.Query.class))
+                        .setTupleTransformer((tuple, aliases) -> {
+                            Object[] rowJoinValues = new Object[subRowMapper.getJoinSlotList().size()];
+                            S entity = mapRow(subRowMapper, tuple, aliases, rowJoinValues);
+                            for (int index = 0; index < aliases.length; index++) {
+                                if (!aliases[index].equalsIgnoreCase(referencedColumnName)) continue;
+                                subEntities.put(subEntityKey(tuple[index]), entity);
+                                break;
+                            }
+                            entities.add(entity);
+                            joinValues.add(rowJoinValues);
+                            return entity;
+                        })
+                        .getResultList();
+            }
+            chunk = new ArrayList<>();
+        }
+        if (!entities.isEmpty()) hydrateSubEntities(subRowMapper, entities, joinValues, resolvedClasses, depth);
+        return subEntities;
+    }
+
+    // every CollectionFetch collection of the entities is loaded with one IN query on the child column
+    // referencing them, the children are grouped by that column and capped per parent
+    <T> void hydrateCollections(EntityRowMapper<T> rowMapper,
+                                List<T> entities,
+                                Set<Class<?>> resolvedClasses,
+                                int depth,
+                                int maxCollectionDepth,
+                                int maxCollectionSize) {
+        if (entities.isEmpty()) return;
+        for (EntityRowMapper.CollectionSlot collectionSlot : rowMapper.getCollectionSlots()) {
+            CollectionFetch collectionFetch = collectionSlot.getCollectionFetch();
+            if (depth >= maxSubEntityDepth || depth >= Math.min(collectionFetch.depth(), maxCollectionDepth)) continue;
+            int maxSize = Math.min(collectionFetch.maxSize(), maxCollectionSize);
+            Map<String, Object> keys = new LinkedHashMap<>();
+            for (T entity : entities) {
+                Object key = collectionSlot.parentKey(entity);
+                if (key != null) keys.putIfAbsent(subEntityKey(key), key);
+            }
+            // the children never resolve their parent again
+            Set<Class<?>> childResolvedClasses = resolvedClasses != null
+                    ? new HashSet<>(resolvedClasses) : new HashSet<>();
+            childResolvedClasses.add(rowMapper.getTClass());
+            childResolvedClasses.add(collectionSlot.getChildClass());
+            Map<String, List<Object>> children = maxSize > 0 && !keys.isEmpty()
+                    ? loadCollection(collectionSlot.getChildClass(), collectionSlot.getChildColumn(),
+                    collectionFetch.orderBy(), keys.values(), maxSize, childResolvedClasses, depth + 1,
+                    maxCollectionDepth, maxCollectionSize)
+                    : new HashMap<>();
+
+            boolean isSet = Set.class.isAssignableFrom(collectionSlot.getSlot().getField().getType());
+            for (T entity : entities) {
+                Object key = collectionSlot.parentKey(entity);
+                List<Object> entityChildren = key != null ? children.get(subEntityKey(key)) : null;
+                if (entityChildren == null) entityChildren = new ArrayList<>();
+                rowMapper.set(entity, collectionSlot.getSlot(), isSet
+                        ? new LinkedHashSet<>(entityChildren) : entityChildren);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    <S> Map<String, List<Object>> loadCollection(Class<S> childClass,
+                                                 String childColumn,
+                                                 String orderBy,
+                                                 Collection<Object> values,
+                                                 int maxSize,
+                                                 Set<Class<?>> resolvedClasses,
+                                                 int depth,
+                                                 int maxCollectionDepth,
+                                                 int maxCollectionSize) {
+        String tableName = FieldUtil.getTableName(childClass);
+        String orderClause = orderBy.isEmpty() ? "" : String.format(" ORDER BY %s", orderBy);
+        // without window functions every child is read and the collections are trimmed in memory
+        String queryString = sqlInterface.supportsWindowFunctions()
+                ? String.format("SELECT sub_entity.* FROM (SELECT child_entity.*, ROW_NUMBER() OVER " +
+                        "(PARTITION BY child_entity.%s%s) AS barmoury_row_number FROM %s child_entity " +
+                        "WHERE child_entity.%s IN (:values)) sub_entity WHERE sub_entity.barmoury_row_number <= %d%s",
+                childColumn, orderClause, tableName, childColumn, maxSize, orderClause)
+                : String.format("SELECT sub_entity.* FROM %s sub_entity WHERE %s IN (:values)%s",
+                tableName, childColumn, orderClause);
+        EntityRowMapper<S> childRowMapper = getRowMapper(childClass);
+        Map<String, List<Object>> children = new HashMap<>();
+        List<S> entities = new ArrayList<>();
+        List<Object[]> joinValues = new ArrayList<>();
+        List<Object> chunk = new ArrayList<>();
+        Iterator<Object> iterator = values.iterator();
+        while (iterator.hasNext()) {
+            chunk.add(iterator.next());
+            if (chunk.size() < subEntityBatchSize && iterator.hasNext()) continue;
+            Query query = entityManager.createNativeQuery(queryString).setParameter("values", chunk);
+            if (!childRowMapper.isSupported()) {
+                NativeQueryImpl<Map<String, Object>> nativeQuery = (NativeQueryImpl<Map<String, Object>>) query;
+                nativeQuery.setResultTransformer(AliasToEntityMapResultTransformer.INSTANCE);
+                for (Map<String, Object> row : nativeQuery.getResultList()) {
+                    row.remove("barmoury_row_number");
+                    List<Object> parentChildren = children.computeIfAbsent(subEntityKey(row.get(childColumn)),
+                            k -> new ArrayList<>());
+                    if (parentChildren.size() >= maxSize) continue;
+                    parentChildren.add(mapper.convertValue(processSingleRow(row,
+                            FieldUtil.findJoinColumnFields(childClass), childClass, true, resolvedClasses), childClass));
+                }
+            } else {
+                ((org.hibernate.query.Query<S>) query.unwrap(org.hibernate.query.Query.class))
+                        .setTupleTransformer((tuple, aliases) -> {
+                            for (int index = 0; index < aliases.length; index++) {
+                                if (!aliases[index].equalsIgnoreCase(childColumn)) continue;
+                                List<Object> parentChildren = children.computeIfAbsent(subEntityKey(tuple[index]),
+                                        k -> new ArrayList<>());
+                                if (parentChildren.size() >= maxSize) return null;
+                                Object[] rowJoinValues = new Object[childRowMapper.getJoinSlotList().size()];
+                                S entity = mapRow(childRowMapper, tuple, aliases, rowJoinValues);
+                                parentChildren.add(entity);
+                                entities.add(entity);
+                                joinValues.add(rowJoinValues);
+                                return entity;
+                            }
+                            return null;
+                        })
+                        .getResultList();
+            }
+            chunk = new ArrayList<>();
+        }
+        if (!entities.isEmpty()) {
+            hydrateSubEntities(childRowMapper, entities, joinValues, resolvedClasses, depth);
+            hydrateCollections(childRowMapper, entities, resolvedClasses, depth, maxCollectionDepth, maxCollectionSize);
+        }
+        return children;
+    }
+
+    // the join column value and the referenced column value can come back as different number types
+    String subEntityKey(Object value) {
+        if (value instanceof Number number && !(value instanceof Double || value instanceof Float
+                || value instanceof BigDecimal)) {
+            return String.valueOf(number.longValue());
+        }
+        return String.valueOf(value);
+    }
+
     @SuppressWarnings("unchecked")
     <T> Map<String, Object> processSingleRow(Map<String, Object> row,
                                              Map<String, Object[]> joinColumnFields,
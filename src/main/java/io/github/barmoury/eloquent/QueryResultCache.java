@@ -0,0 +1,137 @@
+package io.github.barmoury.eloquent;
+
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// the results of the page and stat queries of an entity kept for timeToLive, the least recently used entry is
+// evicted past maxEntries, an invalidation moves the entity to a new generation so a query that started before
+// a write can never be served after it, a result that embeds other entities is keyed by their generations too
+// so a write to any of them invalidates it, the cached results are shared and should be treated as read only
+public class QueryResultCache {
+
+    @Getter final int maxEntries;
+    @Getter final long timeToLive;
+    final Map<Class<?>, Long> timeToLives = new ConcurrentHashMap<>();
+    final Map<Class<?>, AtomicLong> generations = new ConcurrentHashMap<>();
+    final Map<Class<?>, Statistics> statistics = new ConcurrentHashMap<>();
+    final LinkedHashMap<Key, Entry> entries;
+
+    record Key(Class<?> entityClass, List<Class<?>> dependencies, List<Long> generations, String query) {}
+
+    record Entry(Object value, long expiresAt) {}
+
+    public QueryResultCache(int maxEntries, long timeToLive) {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() <= QueryResultCache.this.maxEntries) return false;
+                getStatistics(eldest.getKey().entityClass()).evictions.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    public <V> V get(Class<?> entityClass, String query, Supplier<V> loader) {
+        return get(entityClass, Collections.emptySet(), query, loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <V> V get(Class<?> entityClass, Set<Class<?>> dependencies, String query, Supplier<V> loader) {
+        long entityTimeToLive = timeToLives.getOrDefault(entityClass, timeToLive);
+        if (entityTimeToLive <= 0) return loader.get();
+        Statistics entityStatistics = getStatistics(entityClass);
+        List<Class<?>> dependencyList = new ArrayList<>(dependencies);
+        dependencyList.remove(entityClass);
+        Key key = new Key(entityClass, dependencyList, generations(entityClass, dependencyList), query);
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAt() > now) {
+                entityStatistics.hits.incrementAndGet();
+                return (V) entry.value();
+            }
+            if (entry != null) entries.remove(key);
+        }
+        entityStatistics.misses.incrementAndGet();
+        V value = loader.get();
+        if (value == null) return null;
+        synchronized (entries) {
+            if (!isStale(key)) {
+                entries.put(key, new Entry(value, now + entityTimeToLive));
+            }
+        }
+        return value;
+    }
+
+    public void invalidate(Class<?> entityClass) {
+        generation(entityClass).incrementAndGet();
+        getStatistics(entityClass).invalidations.incrementAndGet();
+        synchronized (entries) {
+            entries.keySet().removeIf(key -> (key.entityClass() == entityClass
+                    || key.dependencies().contains(entityClass)) && isStale(key));
+        }
+    }
+
+    public void clear() {
+        for (Class<?> entityClass : new ArrayList<>(generations.keySet())) generation(entityClass).incrementAndGet();
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    // 0 or less disables the cache for the entity
+    public void setTimeToLive(Class<?> entityClass, long timeToLive) {
+        timeToLives.put(entityClass, timeToLive);
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public Statistics getStatistics(Class<?> entityClass) {
+        return statistics.computeIfAbsent(entityClass, k -> new Statistics());
+    }
+
+    public Map<Class<?>, Statistics> getStatistics() {
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    List<Long> generations(Class<?> entityClass, List<Class<?>> dependencies) {
+        List<Long> entityGenerations = new ArrayList<>();
+        entityGenerations.add(generation(entityClass).get());
+        for (Class<?> dependency : dependencies) entityGenerations.add(generation(dependency).get());
+        return entityGenerations;
+    }
+
+    boolean isStale(Key key) {
+        return !key.generations().equals(generations(key.entityClass(), key.dependencies()));
+    }
+
+    AtomicLong generation(Class<?> entityClass) {
+        return generations.computeIfAbsent(entityClass, k -> new AtomicLong());
+    }
+
+    @Getter
+    public static class Statistics {
+
+        final AtomicLong hits = new AtomicLong();
+        final AtomicLong misses = new AtomicLong();
+        final AtomicLong evictions = new AtomicLong();
+        final AtomicLong invalidations = new AtomicLong();
+
+        public double getHitRatio() {
+            long lookups = hits.get() + misses.get();
+            return lookups == 0 ? 0 : (double) hits.get() / lookups;
+        }
+
+    }
+
+}
@@ -1,5 +1,7 @@
 package io.github.barmoury.eloquent;
 
+import java.time.temporal.ChronoUnit;
+
 public abstract class SqlInterface {
 
     public abstract String database();
@@ -12,4 +14,88 @@ public abstract class SqlInterface {
         return String.format("OFFSET %d", l);
     }
 
+    // aggregate of only the rows matching the condition, '*' counts the rows
+    public String conditionalAggregate(String function, String expression, String condition) {
+        if (condition == null || condition.isEmpty()) return String.format("%s(%s)", function, expression);
+        return String.format("%s(CASE WHEN %s THEN %s END)", function, condition,
+                expression.equals("*") ? "1" : expression);
+    }
+
+    // the start of the hour, day, month or year of the column formatted as yyyy-MM-dd HH:mm,
+    // null when the dialect cannot group by it and every bucket should be queried on its own
+    public String timeBucket(String column, ChronoUnit unit) {
+        return null;
+    }
+
+    // the start of the hour or day of the column as a timestamp, null when the dialect cannot truncate it
+    public String truncateTime(String column, ChronoUnit unit) {
+        return null;
+    }
+
+    // the expression as text of any length, null when the dialect has no cast for it
+    public String castAsText(String expression) {
+        return null;
+    }
+
+    // a query selecting the interpolated percentile of the column in the fromClause rows, per percentile_bucket
+    // as percentile_value if the bucket expression is given, null when the dialect cannot compute it natively
+    // and the values should be streamed instead
+    public String percentileQuery(String column, double percentile, String bucket, String fromClause) {
+        return null;
+    }
+
+    // the fetch size a forward only cursor is read with to hold only a window of its rows in memory
+    public int streamFetchSize(int fetchSize) {
+        return fetchSize;
+    }
+
+    // whether a streamed result set holds its connection until it is read to the end, no other query can
+    // then run on the connection while the rows are streamed
+    public boolean streamsHoldConnection() {
+        return false;
+    }
+
+    // whether ROW_NUMBER() OVER (PARTITION BY ...) can cap the rows of each group in the query
+    public boolean supportsWindowFunctions() {
+        return false;
+    }
+
+    // the clause after the table alias reading about the percentage of its rows, the same seed reads the same
+    // rows, null when the dialect cannot sample a table and the rows are sampled by id instead
+    public String tableSample(double percentage, long seed) {
+        return null;
+    }
+
+    // an integer hash of the column mixed with the seed, spread evenly whatever the column values are, null
+    // when the dialect has no hash function
+    public String sampleHash(String column, long seed) {
+        return null;
+    }
+
+    // whether GROUP BY GROUPING SETS can count several columns in a single scan
+    public boolean supportsGroupingSets() {
+        return false;
+    }
+
+    // whether parenthesized queries with their own ORDER BY and limit can be joined with UNION ALL
+    public boolean supportsLimitedUnionBranches() {
+        return false;
+    }
+
+    // a query selecting the planner row count of the table named by the :table parameter, null when the
+    // dialect keeps none
+    public String tableRowEstimateQuery() {
+        return null;
+    }
+
+    // the query prefixed to return its plan, null when the dialect cannot explain it
+    public String explainQuery(String query) {
+        return null;
+    }
+
+    // the rows the planner expects from the first row of the explain output, null if it has no estimate
+    public Long estimatedRows(String plan) {
+        return null;
+    }
+
 }
@@ -14,9 +14,22 @@ public @interface StatQuery {
     boolean fetchWeekDays() default false;
     boolean fetchPrevious() default false;
     boolean fetchMonthDays() default false;
+    boolean fetchPreviousInSingleScan() default true;
     boolean enableClientQuery() default false;
     boolean columnsAreSnakeCase() default true;
     String intervalColumn() default "updated_at";
+    // serve the last computed stat of a parameter set and refresh it in the background once it is older than
+    // snapshotMaxStaleness milliseconds
+    boolean snapshot() default false;
+    long snapshotMaxStaleness() default 60000;
+    // answer the interval breakdowns from hourly and daily rollup tables when the request only filters by the
+    // interval column and the rollupDimensions columns
+    boolean rollup() default false;
+    String[] rollupDimensions() default {};
+    // compute the stat over about approximateSampleRate of the rows and scale it, the stat.query.approximate
+    // request parameter overrides it
+    boolean approximate() default false;
+    double approximateSampleRate() default 0.01;
 
     @Retention(RetentionPolicy.RUNTIME) @Target(ElementType.FIELD)
     @Repeatable(ColumnQuery.QueryContainer.class)
@@ -82,6 +95,21 @@ public @interface StatQuery {
 
     }
 
+    @Retention(RetentionPolicy.RUNTIME) @Target(ElementType.FIELD)
+    @Repeatable(PercentileQuery.QueryContainer.class)
+    @interface PercentileQuery {
+
+        String whereClause() default "";
+        String name() default "%s_p%s";
+        double[] value() default {0.5, 0.9, 0.99};
+
+        @Retention(RetentionPolicy.RUNTIME) @Target(ElementType.FIELD)
+        @interface QueryContainer {
+            PercentileQuery[] value();
+        }
+
+    }
+
     @Retention(RetentionPolicy.RUNTIME) @Target(ElementType.FIELD)
     @Repeatable(PercentageChangeQuery.QueryContainer.class)
     @interface PercentageChangeQuery {
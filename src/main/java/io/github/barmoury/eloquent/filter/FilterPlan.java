@@ -0,0 +1,226 @@
+package io.github.barmoury.eloquent.filter;
+
+import io.github.barmoury.eloquent.RequestParamFilter;
+import io.github.barmoury.eloquent.StatQuery;
+import io.github.barmoury.eloquent.impl.RequestParamFilterOperatorImpl;
+import io.github.barmoury.util.FieldUtil;
+import jakarta.persistence.Entity;
+import jakarta.persistence.JoinColumn;
+import lombok.Getter;
+import org.apache.commons.collections4.MultiValuedMap;
+import org.apache.commons.collections4.MultiMapUtils;
+import org.apache.commons.collections4.multimap.ArrayListValuedHashMap;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+// the request parameters an entity can be filtered by, resolved once from its annotations so a request
+// only looks up its own parameters
+@Getter
+public class FilterPlan {
+
+    final boolean snakeCase;
+    final List<Entry> entries = new ArrayList<>();
+    final Map<String, List<Integer>> exactIndexes = new HashMap<>();
+    final Map<Integer, Map<String, List<Integer>>> prefixIndexes = new HashMap<>();
+    final List<Integer> alwaysQueryIndexes = new ArrayList<>();
+    MultiValuedMap<String, Object> statFields;
+
+    FilterPlan(boolean snakeCase) {
+        this.snakeCase = snakeCase;
+    }
+
+    public static FilterPlan build(Class<?> clazz, boolean snakeCase) {
+        FilterPlan filterPlan = new FilterPlan(snakeCase);
+        MultiValuedMap<String, Object> statFields = new ArrayListValuedHashMap<>();
+        for (Field field : FieldUtil.getAllFields(clazz)) {
+            String mainFieldName = field.getName();
+            String columnName = FieldUtil.getFieldColumnName(field);
+
+            RequestParamFilter[] requestParamFilters = field.getAnnotationsByType(RequestParamFilter.class);
+            int requestParamFiltersCount = requestParamFilters.length;
+            for (RequestParamFilter requestParamFilter : requestParamFilters) {
+                if (!requestParamFilter.column().isEmpty()) columnName = requestParamFilter.column();
+                if (requestParamFilter.columnIsSnakeCase()) columnName = FieldUtil.toSnakeCase(columnName);
+                putStatField(statFields, field, columnName, requestParamFilter);
+
+                String fieldName = mainFieldName;
+                if (requestParamFiltersCount > 1) {
+                    String operator = requestParamFilter.operator().name();
+                    fieldName = String.format("%s%s%c%s", fieldName,
+                            requestParamFilter.multiFilterSeparator().equals("__") && snakeCase
+                                    ? "_" : requestParamFilter.multiFilterSeparator(),
+                            operator.charAt(0),
+                            operator.substring(1).toLowerCase());
+                }
+                Set<String> extraFieldNames = new HashSet<>();
+                extraFieldNames.add(fieldName);
+                Collections.addAll(extraFieldNames, requestParamFilter.aliases());
+                if (requestParamFilter.acceptSnakeCase()) {
+                    for (String extraFieldName : new ArrayList<>(extraFieldNames))
+                        extraFieldNames.add(FieldUtil.toSnakeCase(extraFieldName));
+                }
+                if (requestParamFilter.operator() == RequestParamFilter.Operator.RANGE) {
+                    Set<String> fromExtraFieldNames = new HashSet<>();
+                    Set<String> toExtraFieldNames = new HashSet<>();
+                    for (String extraFieldName : extraFieldNames) {
+                        fromExtraFieldNames.add(extraFieldName + (extraFieldName.contains("_") ? "_from" : "From"));
+                        toExtraFieldNames.add(extraFieldName + (extraFieldName.contains("_") ? "_to" : "To"));
+                    }
+                    filterPlan.addEntries(fromExtraFieldNames, columnName, field, new RequestParamFilterOperatorImpl(
+                            requestParamFilter, RequestParamFilter.Operator.GT_EQ));
+                    filterPlan.addEntries(toExtraFieldNames, columnName, field, new RequestParamFilterOperatorImpl(
+                            requestParamFilter, RequestParamFilter.Operator.LT_EQ));
+                    continue;
+                }
+                filterPlan.addEntries(extraFieldNames, columnName, field, requestParamFilter);
+            }
+            if (requestParamFiltersCount == 0) {
+                putStatField(statFields, field, columnName, null);
+            }
+        }
+        filterPlan.statFields = MultiMapUtils.unmodifiableMultiValuedMap(statFields);
+        return filterPlan;
+    }
+
+    // the field queried by name, a stat query only needs the first filter of the field
+    static void putStatField(MultiValuedMap<String, Object> statFields,
+                             Field field,
+                             String columnName,
+                             RequestParamFilter requestParamFilter) {
+        String queryParam = field.getName();
+        if (statFields.containsKey(queryParam)) return;
+        statFields.put(queryParam, columnName);
+        statFields.put(queryParam, false);
+        statFields.put(queryParam, requestParamFilter);
+        statFields.put(queryParam, new String[]{null});
+        statFields.put(queryParam, field.getAnnotationsByType(StatQuery.MedianQuery.class));
+        statFields.put(queryParam, field.getAnnotationsByType(StatQuery.ColumnQuery.class));
+        statFields.put(queryParam, field.getAnnotationsByType(StatQuery.AverageQuery.class));
+        statFields.put(queryParam, field.getAnnotationsByType(StatQuery.OccurrenceQuery.class));
+        statFields.put(queryParam, field.getAnnotationsByType(StatQuery.PercentageChangeQuery.class));
+        statFields.put(queryParam, field.getAnnotationsByType(StatQuery.PercentileQuery.class));
+    }
+
+    void addEntries(Set<String> queryParams, String columnName, Field field, RequestParamFilter requestParamFilter) {
+        for (String queryParam : queryParams) {
+            Entry entry = new Entry(queryParam, columnName, field, requestParamFilter, snakeCase);
+            int index = entries.size();
+            entries.add(entry);
+            if (requestParamFilter.alwaysQuery()) alwaysQueryIndexes.add(index);
+            exactIndexes.computeIfAbsent(queryParam, k -> new ArrayList<>()).add(index);
+            String prefix = null;
+            if (entry.isObjectFilter()) prefix = queryParam;
+            else if (entry.isEntity()) prefix = queryParam + ".";
+            if (prefix == null) continue;
+            prefixIndexes.computeIfAbsent(prefix.length(), k -> new HashMap<>())
+                    .computeIfAbsent(prefix, k -> new ArrayList<>()).add(index);
+        }
+    }
+
+    // the first parameter with a value matched by each entry, in the order of the request parameters
+    public Map<Integer, Map.Entry<String, String[]>> match(Map<String, String[]> parameters) {
+        Map<Integer, Map.Entry<String, String[]>> matches = new HashMap<>();
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            if (!hasValue(parameter.getValue())) continue;
+            String key = parameter.getKey();
+            putMatches(matches, exactIndexes.get(key), parameter);
+            for (Map.Entry<Integer, Map<String, List<Integer>>> prefixIndex : prefixIndexes.entrySet()) {
+                if (key.length() < prefixIndex.getKey()) continue;
+                putMatches(matches, prefixIndex.getValue().get(key.substring(0, prefixIndex.getKey())), parameter);
+            }
+        }
+        return matches;
+    }
+
+    // the entries a request resolves in index order, the matched ones and the ones always queried
+    public SortedSet<Integer> resolvedIndexes(Map<Integer, Map.Entry<String, String[]>> matches) {
+        SortedSet<Integer> indexes = new TreeSet<>(matches.keySet());
+        indexes.addAll(alwaysQueryIndexes);
+        return indexes;
+    }
+
+    static void putMatches(Map<Integer, Map.Entry<String, String[]>> matches,
+                           List<Integer> indexes,
+                           Map.Entry<String, String[]> parameter) {
+        if (indexes == null) return;
+        for (Integer index : indexes) matches.putIfAbsent(index, parameter);
+    }
+
+    static boolean hasValue(String[] values) {
+        for (String value : values) {
+            if (!value.isEmpty()) return true;
+        }
+        return false;
+    }
+
+    @Getter
+    public static class Entry {
+
+        final String queryParam;
+        final String columnName;
+        final Field field;
+        final RequestParamFilter requestParamFilter;
+        final boolean entity;
+        final boolean objectFilter;
+        final boolean snakeCase;
+        final boolean booleanToInt;
+        Class<?> fieldClass;
+        Entity fieldEntity;
+        JoinColumn joinColumn;
+        final Map<String, RequestParamFilter> subFieldFilters = new HashMap<>();
+
+        Entry(String queryParam, String columnName, Field field, RequestParamFilter requestParamFilter,
+              boolean snakeCase) {
+            this.queryParam = queryParam;
+            this.columnName = columnName;
+            this.field = field;
+            this.requestParamFilter = requestParamFilter;
+            this.snakeCase = snakeCase;
+            RequestParamFilter.Operator operator = requestParamFilter.operator();
+            this.entity = operator == RequestParamFilter.Operator.ENTITY;
+            this.objectFilter = operator == RequestParamFilter.Operator.OBJECT_EQ
+                    || operator == RequestParamFilter.Operator.OBJECT_NE
+                    || operator == RequestParamFilter.Operator.OBJECT_LIKE
+                    || operator == RequestParamFilter.Operator.OBJECT_STR_EQ
+                    || operator == RequestParamFilter.Operator.OBJECT_STR_NE
+                    || operator == RequestParamFilter.Operator.OBJECT_NOT_LIKE
+                    || operator == RequestParamFilter.Operator.OBJECT_CONTAINS
+                    || operator == RequestParamFilter.Operator.OBJECT_ENDS_WITH
+                    || operator == RequestParamFilter.Operator.OBJECT_STARTS_WITH
+                    || operator == RequestParamFilter.Operator.OBJECT_NOT_CONTAINS
+                    || operator == RequestParamFilter.Operator.OBJECT_STR_ENDS_WITH
+                    || operator == RequestParamFilter.Operator.OBJECT_STR_STARTS_WITH;
+            this.booleanToInt = requestParamFilter.booleanToInt()
+                    && FieldUtil.objectsHasAnyType(field.getType(), boolean.class, Boolean.class);
+            if (!entity) return;
+            fieldClass = field.getType();
+            fieldEntity = fieldClass.getAnnotation(Entity.class);
+            joinColumn = field.getAnnotation(JoinColumn.class);
+            for (Field subField : FieldUtil.getAllFields(fieldClass)) {
+                if (subFieldFilters.containsKey(subField.getName())) continue;
+                subFieldFilters.put(subField.getName(), subField.getAnnotation(RequestParamFilter.class));
+            }
+        }
+
+        public String[] resolveValues(String[] parameterValues) {
+            List<String> validValues = new ArrayList<>();
+            for (String value : parameterValues) {
+                if (value.isEmpty()) continue;
+                if (booleanToInt) value = value.equals("true") ? "1" : "0";
+                validValues.add(value);
+            }
+            return validValues.toArray(new String[0]);
+        }
+
+        // the filter of the sub entity field the parameter is for, the entry filter if the field has none
+        public RequestParamFilter resolveSubFieldFilter(String actualFieldName) {
+            String subFieldName = snakeCase ? FieldUtil.toCamelCase(actualFieldName) : actualFieldName;
+            if (!subFieldFilters.containsKey(subFieldName)) subFieldName = actualFieldName;
+            RequestParamFilter subFieldFilter = subFieldFilters.get(subFieldName);
+            return subFieldFilter != null ? subFieldFilter : requestParamFilter;
+        }
+
+    }
+
+}
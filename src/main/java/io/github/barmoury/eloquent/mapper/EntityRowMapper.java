@@ -0,0 +1,320 @@
+package io.github.barmoury.eloquent.mapper;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.barmoury.eloquent.CollectionFetch;
+import io.github.barmoury.util.FieldUtil;
+import jakarta.persistence.AttributeConverter;
+import jakarta.persistence.Convert;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.OneToMany;
+import lombok.Getter;
+import org.hibernate.annotations.NotFound;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.*;
+
+// sets the columns of a native query row straight into the fields of a new entity, the slots of the
+// columns are resolved once per result aliases
+public class EntityRowMapper<T> {
+
+    @Getter final boolean snakeCase;
+    @Getter final Class<T> tClass;
+    final ObjectMapper mapper;
+    final MethodHandle constructor;
+    final Map<String, Slot> fieldSlots = new HashMap<>();
+    final Map<String, Slot> joinSlots = new HashMap<>();
+    @Getter final List<Slot> joinSlotList = new ArrayList<>();
+    @Getter final List<CollectionSlot> collectionSlots = new ArrayList<>();
+    volatile Plan lastPlan;
+
+    EntityRowMapper(Class<T> tClass, boolean snakeCase, ObjectMapper mapper, MethodHandle constructor) {
+        this.tClass = tClass;
+        this.mapper = mapper;
+        this.snakeCase = snakeCase;
+        this.constructor = constructor;
+    }
+
+    public static <T> EntityRowMapper<T> build(Class<T> tClass,
+                                               boolean snakeCase,
+                                               ObjectMapper mapper,
+                                               AutowireCapableBeanFactory autowireCapableBeanFactory) {
+        MethodHandle constructor = null;
+        try {
+            Constructor<T> declaredConstructor = tClass.getDeclaredConstructor();
+            declaredConstructor.setAccessible(true);
+            constructor = MethodHandles.lookup().unreflectConstructor(declaredConstructor);
+        } catch (NoSuchMethodException | IllegalAccessException | RuntimeException ignored) {}
+        EntityRowMapper<T> rowMapper = new EntityRowMapper<>(tClass, snakeCase, mapper, constructor);
+        if (constructor == null) return rowMapper;
+
+        Map<String, Field> fields = new HashMap<>();
+        for (Field field : FieldUtil.getAllFields(tClass)) {
+            if (Modifier.isStatic(field.getModifiers())) continue;
+            fields.putIfAbsent(field.getName(), field);
+            JoinColumn joinColumn = field.getAnnotation(JoinColumn.class);
+            if (joinColumn != null && !rowMapper.joinSlots.containsKey(joinColumn.name())) {
+                Slot joinSlot = rowMapper.newSlot(field, rowMapper.joinSlotList.size(), autowireCapableBeanFactory);
+                if (joinSlot == null) continue;
+                rowMapper.joinSlots.put(joinColumn.name(), joinSlot);
+                rowMapper.joinSlotList.add(joinSlot);
+            }
+        }
+        for (Field field : fields.values()) {
+            CollectionSlot collectionSlot = rowMapper.newCollectionSlot(field, fields, autowireCapableBeanFactory);
+            if (collectionSlot != null) rowMapper.collectionSlots.add(collectionSlot);
+            JsonProperty jsonProperty = field.getAnnotation(JsonProperty.class);
+            if (jsonProperty != null && jsonProperty.access() == JsonProperty.Access.WRITE_ONLY) continue;
+            rowMapper.fieldSlots.put(field.getName(), rowMapper.newSlot(field, -1, autowireCapableBeanFactory));
+        }
+        return rowMapper;
+    }
+
+    public boolean isSupported() {
+        return constructor != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T newInstance() {
+        try {
+            return (T) constructor.invoke();
+        } catch (Throwable ex) {
+            throw new IllegalStateException(String.format("Could not create an instance of %s", tClass.getName()), ex);
+        }
+    }
+
+    // the field and join slot of each column, the same aliases are returned for every row of a query, a column
+    // maps to its camel cased field whatever the naming of the response
+    public Plan plan(String[] aliases) {
+        Plan plan = lastPlan;
+        if (plan != null && Arrays.equals(plan.aliases, aliases)) return plan;
+        Slot[] columnFieldSlots = new Slot[aliases.length];
+        Slot[] columnJoinSlots = new Slot[aliases.length];
+        for (int index = 0; index < aliases.length; index++) {
+            String alias = aliases[index];
+            columnJoinSlots[index] = joinSlots.get(alias);
+            columnFieldSlots[index] = fieldSlots.get(FieldUtil.toCamelCase(alias));
+        }
+        lastPlan = plan = new Plan(aliases.clone(), columnFieldSlots, columnJoinSlots);
+        return plan;
+    }
+
+    Slot newSlot(Field field, int joinIndex, AutowireCapableBeanFactory autowireCapableBeanFactory) {
+        MethodHandle setter;
+        try {
+            field.setAccessible(true);
+            setter = MethodHandles.lookup().unreflectSetter(field);
+        } catch (IllegalAccessException | RuntimeException ex) {
+            return null;
+        }
+        AttributeConverter<?, Object> attributeConverter = null;
+        Convert convert = field.getAnnotation(Convert.class);
+        if (convert != null) attributeConverter = newConverter(convert, autowireCapableBeanFactory);
+        JoinColumn joinColumn = field.getAnnotation(JoinColumn.class);
+        return new Slot(field, setter, attributeConverter,
+                mapper.getTypeFactory().constructType(field.getGenericType()),
+                joinIndex, joinColumn, field.getAnnotation(NotFound.class));
+    }
+
+    // the child entity, its column referencing this entity and the getter of the referenced value
+    CollectionSlot newCollectionSlot(Field field,
+                                     Map<String, Field> fields,
+                                     AutowireCapableBeanFactory autowireCapableBeanFactory) {
+        OneToMany oneToMany = field.getAnnotation(OneToMany.class);
+        CollectionFetch collectionFetch = field.getAnnotation(CollectionFetch.class);
+        if (oneToMany == null || collectionFetch == null) return null;
+        Class<?> childClass = oneToMany.targetEntity();
+        if (childClass == void.class) {
+            if (!(field.getGenericType() instanceof ParameterizedType parameterizedType)
+                    || !(parameterizedType.getActualTypeArguments()[0] instanceof Class<?> typeArgument)) {
+                return null;
+            }
+            childClass = typeArgument;
+        }
+        JoinColumn joinColumn = field.getAnnotation(JoinColumn.class);
+        if (joinColumn == null && !oneToMany.mappedBy().isEmpty()) {
+            Field mappedByField = FieldUtil.getDeclaredField(childClass, oneToMany.mappedBy());
+            if (mappedByField != null) joinColumn = mappedByField.getAnnotation(JoinColumn.class);
+        }
+        if (joinColumn == null) return null;
+        String parentColumn = joinColumn.referencedColumnName().isEmpty() ? "id" : joinColumn.referencedColumnName();
+        Field parentField = null;
+        for (Field candidate : fields.values()) {
+            String columnName = FieldUtil.getFieldColumnName(candidate);
+            if (columnName.equals(parentColumn) || FieldUtil.toSnakeCase(columnName).equals(parentColumn)) {
+                parentField = candidate;
+                break;
+            }
+        }
+        Slot slot = newSlot(field, -1, autowireCapableBeanFactory);
+        if (parentField == null || slot == null) return null;
+        try {
+            parentField.setAccessible(true);
+            return new CollectionSlot(slot, childClass, joinColumn.name(),
+                    MethodHandles.lookup().unreflectGetter(parentField), collectionFetch);
+        } catch (IllegalAccessException | RuntimeException ex) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static AttributeConverter<?, Object> newConverter(Convert convert,
+                                                      AutowireCapableBeanFactory autowireCapableBeanFactory) {
+        try {
+            Constructor<?> converterConstructor = convert.converter().getDeclaredConstructor();
+            converterConstructor.setAccessible(true);
+            AttributeConverter<?, Object> attributeConverter =
+                    (AttributeConverter<?, Object>) converterConstructor.newInstance();
+            if (autowireCapableBeanFactory != null) {
+                autowireCapableBeanFactory.autowireBean(attributeConverter);
+            }
+            return attributeConverter;
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException(String.format("Could not create the converter %s",
+                    convert.converter().getName()), ex);
+        }
+    }
+
+    public void set(T entity, Slot slot, Object value) {
+        if (slot.getAttributeConverter() != null) value = slot.getAttributeConverter().convertToEntityAttribute(value);
+        value = coerce(value, slot.getField().getType(), slot.getJavaType());
+        if (value == null && slot.getField().getType().isPrimitive()) return;
+        try {
+            slot.getSetter().invoke(entity, value);
+        } catch (Throwable ex) {
+            throw new IllegalStateException(String.format("Could not set the field '%s' of %s",
+                    slot.getField().getName(), tClass.getName()), ex);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Object coerce(Object value, Class<?> type, JavaType javaType) {
+        if (value == null) return null;
+        Class<?> boxedType = box(type);
+        if (boxedType.isInstance(value)) return value;
+        if (value instanceof Number number) {
+            if (boxedType == Long.class) return number.longValue();
+            if (boxedType == Integer.class) return number.intValue();
+            if (boxedType == Double.class) return number.doubleValue();
+            if (boxedType == Float.class) return number.floatValue();
+            if (boxedType == Short.class) return number.shortValue();
+            if (boxedType == Byte.class) return number.byteValue();
+            if (boxedType == Boolean.class) return number.intValue() != 0;
+            if (boxedType == BigDecimal.class) return new BigDecimal(number.toString());
+            if (boxedType == BigInteger.class) return BigInteger.valueOf(number.longValue());
+            if (type.isEnum()) return type.getEnumConstants()[number.intValue()];
+        }
+        if (value instanceof String string) {
+            if (type.isEnum()) return Enum.valueOf((Class<? extends Enum>) type, string);
+            if (boxedType == UUID.class) return UUID.fromString(string);
+            if (boxedType == Character.class && string.length() == 1) return string.charAt(0);
+        }
+        if (value instanceof Timestamp timestamp) {
+            if (boxedType == LocalDateTime.class) return timestamp.toLocalDateTime();
+            if (boxedType == Instant.class) return timestamp.toInstant();
+        }
+        if (value instanceof java.sql.Date date && boxedType == LocalDate.class) return date.toLocalDate();
+        if (value instanceof LocalDateTime localDateTime && boxedType == Date.class) {
+            return Timestamp.valueOf(localDateTime);
+        }
+        if (boxedType == String.class && !(value instanceof Map || value instanceof Collection)) {
+            return value.toString();
+        }
+        return mapper.convertValue(value, javaType);
+    }
+
+    static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        if (type == long.class) return Long.class;
+        if (type == int.class) return Integer.class;
+        if (type == boolean.class) return Boolean.class;
+        if (type == double.class) return Double.class;
+        if (type == float.class) return Float.class;
+        if (type == short.class) return Short.class;
+        if (type == byte.class) return Byte.class;
+        if (type == char.class) return Character.class;
+        return type;
+    }
+
+    @Getter
+    public static class Plan {
+
+        final String[] aliases;
+        final Slot[] fieldSlots;
+        final Slot[] joinSlots;
+
+        Plan(String[] aliases, Slot[] fieldSlots, Slot[] joinSlots) {
+            this.aliases = aliases;
+            this.fieldSlots = fieldSlots;
+            this.joinSlots = joinSlots;
+        }
+
+    }
+
+    @Getter
+    public static class CollectionSlot {
+
+        final Slot slot;
+        final Class<?> childClass;
+        final String childColumn;
+        final MethodHandle parentKeyGetter;
+        final CollectionFetch collectionFetch;
+
+        CollectionSlot(Slot slot, Class<?> childClass, String childColumn,
+                       MethodHandle parentKeyGetter, CollectionFetch collectionFetch) {
+            this.slot = slot;
+            this.childClass = childClass;
+            this.childColumn = childColumn;
+            this.parentKeyGetter = parentKeyGetter;
+            this.collectionFetch = collectionFetch;
+        }
+
+        public Object parentKey(Object entity) {
+            try {
+                return parentKeyGetter.invoke(entity);
+            } catch (Throwable ex) {
+                throw new IllegalStateException(String.format("Could not read the key of the '%s' collection",
+                        slot.getField().getName()), ex);
+            }
+        }
+
+    }
+
+    @Getter
+    public static class Slot {
+
+        final Field field;
+        final MethodHandle setter;
+        final AttributeConverter<?, Object> attributeConverter;
+        final JavaType javaType;
+        final int joinIndex;
+        final JoinColumn joinColumn;
+        final NotFound notFound;
+
+        Slot(Field field, MethodHandle setter, AttributeConverter<?, Object> attributeConverter, JavaType javaType,
+             int joinIndex, JoinColumn joinColumn, NotFound notFound) {
+            this.field = field;
+            this.joinIndex = joinIndex;
+            this.setter = setter;
+            this.javaType = javaType;
+            this.notFound = notFound;
+            this.joinColumn = joinColumn;
+            this.attributeConverter = attributeConverter;
+        }
+
+    }
+
+}
@@ -0,0 +1,10 @@
+package io.github.barmoury.eloquent.page;
+
+// how the total of a page is resolved, the exact count scans every matching row
+public enum CountStrategy {
+    EXACT,
+    CAPPED,
+    ESTIMATED,
+    HAS_NEXT,
+    NONE
+}
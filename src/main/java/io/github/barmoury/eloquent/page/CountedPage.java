@@ -0,0 +1,25 @@
+package io.github.barmoury.eloquent.page;
+
+import lombok.Getter;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+
+// a page with the strategy that produced its total, the total is a lower bound when totalCapped
+@Getter
+public class CountedPage<T> extends PageImpl<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    final CountStrategy countStrategy;
+    final boolean totalCapped;
+
+    public CountedPage(List<T> content, Pageable pageable, long total, CountStrategy countStrategy,
+                       boolean totalCapped) {
+        super(content, pageable, total);
+        this.countStrategy = countStrategy;
+        this.totalCapped = totalCapped;
+    }
+
+}
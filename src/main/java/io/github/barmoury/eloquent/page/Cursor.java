@@ -0,0 +1,218 @@
+package io.github.barmoury.eloquent.page;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.Getter;
+import org.springframework.data.domain.Sort;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+// a keyset position, the sort key values of the last row of a page and the id as the tie-breaker,
+// encoded as an opaque token so the next page seeks past it instead of skipping an offset
+@Getter
+public class Cursor extends PageProbe {
+
+    public static final String TIE_BREAKER_COLUMN = "id";
+    static final String PARAMETER_PREFIX = "barmoury_cursor_";
+    static final Pattern COLUMN_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_.]*");
+
+    final String signature;
+    final List<Sort.Order> orders;
+    final Object[] values;
+    int[] columnIndexes;
+    Object[] nextValues;
+
+    Cursor(int pageSize, List<Sort.Order> orders, Object[] values) {
+        super(pageSize);
+        this.orders = orders;
+        this.values = values;
+        this.signature = signature(orders);
+    }
+
+    // the token is bound to the sort it was created with, a cursor from another sort is rejected
+    public static Cursor resolve(String token, Sort sort, int pageSize, ObjectMapper mapper) {
+        List<Sort.Order> orders = new ArrayList<>();
+        boolean hasTieBreaker = false;
+        for (Sort.Order order : sort) {
+            if (!COLUMN_PATTERN.matcher(order.getProperty()).matches()) {
+                throw new IllegalArgumentException(String.format("Invalid sort column '%s'", order.getProperty()));
+            }
+            hasTieBreaker |= order.getProperty().equals(TIE_BREAKER_COLUMN);
+            orders.add(order);
+        }
+        // the tie breaker follows the direction of the last order so a one way sort keeps its row value seek
+        if (!hasTieBreaker) {
+            orders.add(new Sort.Order(orders.isEmpty() ? Sort.Direction.ASC : orders.get(orders.size() - 1).getDirection(),
+                    TIE_BREAKER_COLUMN));
+        }
+        if (token == null || token.isBlank()) return new Cursor(pageSize, orders, null);
+
+        JsonNode node;
+        Object[] values;
+        try {
+            node = mapper.readTree(Base64.getUrlDecoder().decode(token.trim()));
+            ArrayNode encodedValues = (ArrayNode) node.get("v");
+            values = new Object[encodedValues.size()];
+            for (int index = 0; index < values.length; index++) {
+                values[index] = decodeValue(encodedValues.get(index));
+            }
+        } catch (IOException | RuntimeException ex) {
+            throw new IllegalArgumentException("Invalid cursor", ex);
+        }
+        Cursor cursor = new Cursor(pageSize, orders, values);
+        if (!cursor.signature.equals(node.path("s").asText()) || values.length != orders.size()) {
+            throw new IllegalArgumentException("The cursor was created with a different sort");
+        }
+        return cursor;
+    }
+
+    public String buildOrderBy() {
+        StringJoiner orderBy = new StringJoiner(", ", "ORDER BY ", " ");
+        for (Sort.Order order : orders) orderBy.add(String.format("%s %s", order.getProperty(), order.getDirection()));
+        return orderBy.toString();
+    }
+
+    // (a, id) > (:a, :id) when every column is sorted the same way, the expanded
+    // (a > :a) OR (a = :a AND id > :id) otherwise, null on the first page
+    public String buildPredicate() {
+        if (values == null) return null;
+        boolean sameDirection = true;
+        boolean hasNull = false;
+        for (int index = 0; index < orders.size(); index++) {
+            sameDirection &= orders.get(index).getDirection() == orders.get(0).getDirection();
+            hasNull |= values[index] == null;
+        }
+        if (sameDirection && !hasNull) {
+            StringJoiner columns = new StringJoiner(", ", "(", ")");
+            StringJoiner parameters = new StringJoiner(", ", "(", ")");
+            for (int index = 0; index < orders.size(); index++) {
+                columns.add(qualify(orders.get(index).getProperty()));
+                parameters.add(":" + PARAMETER_PREFIX + index);
+            }
+            return String.format("%s %s %s", columns, orders.get(0).isAscending() ? ">" : "<", parameters);
+        }
+        // a null sort value only matches as an equality, the sort columns are expected to be non null
+        StringJoiner predicate = new StringJoiner(" OR ");
+        for (int index = 0; index < orders.size(); index++) {
+            if (values[index] == null) continue;
+            StringJoiner branch = new StringJoiner(" AND ", "(", ")");
+            for (int previous = 0; previous < index; previous++) {
+                String column = qualify(orders.get(previous).getProperty());
+                branch.add(values[previous] == null
+                        ? String.format("%s IS NULL", column)
+                        : String.format("%s = :%s%d", column, PARAMETER_PREFIX, previous));
+            }
+            branch.add(String.format("%s %s :%s%d", qualify(orders.get(index).getProperty()),
+                    orders.get(index).isAscending() ? ">" : "<", PARAMETER_PREFIX, index));
+            predicate.add(branch.toString());
+        }
+        return predicate.length() == 0 ? "1 = 0" : predicate.toString();
+    }
+
+    public Map<String, Object> parameters() {
+        Map<String, Object> parameters = new HashMap<>();
+        if (values == null) return parameters;
+        for (int index = 0; index < values.length; index++) {
+            if (values[index] != null) parameters.put(PARAMETER_PREFIX + index, values[index]);
+        }
+        return parameters;
+    }
+
+    // keeps the sort key values of the last row of the page
+    @Override
+    public boolean accept(Object[] tuple, String[] aliases, int rowIndex) {
+        if (!super.accept(tuple, aliases, rowIndex)) return false;
+        if (columnIndexes == null) {
+            columnIndexes = new int[orders.size()];
+            for (int index = 0; index < columnIndexes.length; index++) {
+                columnIndexes[index] = indexOf(aliases, orders.get(index).getProperty());
+                if (columnIndexes[index] < 0) {
+                    throw new IllegalArgumentException(String.format("The sort column '%s' is not selected",
+                            orders.get(index).getProperty()));
+                }
+            }
+        }
+        nextValues = new Object[columnIndexes.length];
+        for (int index = 0; index < columnIndexes.length; index++) nextValues[index] = tuple[columnIndexes[index]];
+        return true;
+    }
+
+    public String nextToken(ObjectMapper mapper) {
+        if (!hasNext || nextValues == null) return null;
+        ObjectNode node = mapper.createObjectNode();
+        node.put("s", signature);
+        ArrayNode values = node.putArray("v");
+        for (Object value : nextValues) values.add(encodeValue(mapper, value));
+        try {
+            return Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(mapper.writeValueAsString(node).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not encode the cursor", ex);
+        }
+    }
+
+    static int indexOf(String[] aliases, String property) {
+        String column = property.substring(property.lastIndexOf('.') + 1);
+        for (int index = 0; index < aliases.length; index++) {
+            if (aliases[index].equalsIgnoreCase(column)) return index;
+        }
+        return -1;
+    }
+
+    static String qualify(String property) {
+        return property.contains(".") ? property : "entity." + property;
+    }
+
+    static String signature(List<Sort.Order> orders) {
+        StringJoiner signature = new StringJoiner(",");
+        for (Sort.Order order : orders) signature.add(order.getProperty() + ":" + order.getDirection());
+        return signature.toString();
+    }
+
+    // the value with its type so it binds as the column type again
+    static ArrayNode encodeValue(ObjectMapper mapper, Object value) {
+        ArrayNode node = mapper.createArrayNode();
+        if (value == null) return node.add("z").add("");
+        if (value instanceof Timestamp timestamp) return node.add("t").add(timestamp.toLocalDateTime().toString());
+        if (value instanceof LocalDateTime localDateTime) return node.add("t").add(localDateTime.toString());
+        if (value instanceof OffsetDateTime offsetDateTime) return node.add("o").add(offsetDateTime.toString());
+        if (value instanceof Instant instant) return node.add("i").add(instant.toString());
+        if (value instanceof java.sql.Date date) return node.add("d").add(date.toLocalDate().toString());
+        if (value instanceof LocalDate localDate) return node.add("d").add(localDate.toString());
+        if (value instanceof java.util.Date date) return node.add("i").add(date.toInstant().toString());
+        if (value instanceof BigDecimal || value instanceof Double || value instanceof Float) {
+            return node.add("f").add(value.toString());
+        }
+        if (value instanceof Number) return node.add("n").add(value.toString());
+        if (value instanceof Boolean) return node.add("b").add(value.toString());
+        if (value instanceof UUID) return node.add("u").add(value.toString());
+        return node.add("s").add(value.toString());
+    }
+
+    static Object decodeValue(JsonNode node) {
+        String value = node.get(1).asText();
+        return switch (node.get(0).asText()) {
+            case "z" -> null;
+            case "t" -> Timestamp.valueOf(LocalDateTime.parse(value));
+            case "o" -> OffsetDateTime.parse(value);
+            case "i" -> Timestamp.from(Instant.parse(value));
+            case "d" -> java.sql.Date.valueOf(LocalDate.parse(value));
+            case "f" -> new BigDecimal(value);
+            case "n" -> new BigInteger(value).longValueExact();
+            case "b" -> Boolean.parseBoolean(value);
+            case "u" -> UUID.fromString(value);
+            case "s" -> value;
+            default -> throw new IllegalArgumentException("Invalid cursor value");
+        };
+    }
+
+}
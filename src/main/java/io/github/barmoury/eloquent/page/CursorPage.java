@@ -0,0 +1,31 @@
+package io.github.barmoury.eloquent.page;
+
+import lombok.Getter;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+
+// a keyset page, the next page is requested with nextCursor and there is no page number to skip to
+@Getter
+public class CursorPage<T> extends CountedPage<T> {
+
+    private static final long serialVersionUID = 1L;
+
+    final String nextCursor;
+
+    public CursorPage(List<T> content, Pageable pageable, String nextCursor) {
+        super(content, pageable, content.size(), CountStrategy.NONE, false);
+        this.nextCursor = nextCursor;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    @Override
+    public boolean isLast() {
+        return nextCursor == null;
+    }
+
+}
@@ -0,0 +1,22 @@
+package io.github.barmoury.eloquent.page;
+
+import lombok.Getter;
+
+// a page read with one row more than its size, the extra row is not mapped and only tells there is a next page
+@Getter
+public class PageProbe {
+
+    final int pageSize;
+    boolean hasNext;
+
+    public PageProbe(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public boolean accept(Object[] tuple, String[] aliases, int rowIndex) {
+        if (rowIndex < pageSize) return true;
+        hasNext = true;
+        return false;
+    }
+
+}
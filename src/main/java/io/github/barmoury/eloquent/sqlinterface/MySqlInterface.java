@@ -1,12 +1,120 @@
 package io.github.barmoury.eloquent.sqlinterface;
 
 import io.github.barmoury.eloquent.SqlInterface;
+import lombok.Setter;
+
+import java.time.temporal.ChronoUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class MySqlInterface extends SqlInterface {
 
+    static final Pattern PLAN_ROWS_PATTERN = Pattern.compile("\"rows_produced_per_join\":\\s*\"?(\\d+)");
+
+    boolean supportsWindowFunctions;
+    // Connector/J only honours the fetch size with useCursorFetch=true in the JDBC url, without it the rows
+    // are streamed one at a time with Integer.MIN_VALUE and the connection is busy until they are all read
+    @Setter boolean cursorFetch;
+
+    public MySqlInterface() {
+        this(false);
+    }
+
+    // window functions are only available from MySQL 8, pass true to use them on a MySQL 8 server
+    public MySqlInterface(boolean supportsWindowFunctions) {
+        this.supportsWindowFunctions = supportsWindowFunctions;
+    }
+
     @Override
     public String database() {
         return "mysql";
     }
 
+    @Override
+    public int streamFetchSize(int fetchSize) {
+        return cursorFetch ? fetchSize : Integer.MIN_VALUE;
+    }
+
+    @Override
+    public boolean streamsHoldConnection() {
+        return !cursorFetch;
+    }
+
+    @Override
+    public String timeBucket(String column, ChronoUnit unit) {
+        String format;
+        if (unit == ChronoUnit.HOURS) format = "%Y-%m-%d %H:00";
+        else if (unit == ChronoUnit.DAYS) format = "%Y-%m-%d 00:00";
+        else if (unit == ChronoUnit.MONTHS) format = "%Y-%m-01 00:00";
+        else if (unit == ChronoUnit.YEARS) format = "%Y-01-01 00:00";
+        else return null;
+        return "DATE_FORMAT(entity." + column + ", '" + format + "')";
+    }
+
+    @Override
+    public String truncateTime(String column, ChronoUnit unit) {
+        if (unit == ChronoUnit.HOURS) return String.format("TIMESTAMP(DATE_FORMAT(entity.%s, '%%Y-%%m-%%d %%H:00:00'))", column);
+        if (unit == ChronoUnit.DAYS) return String.format("TIMESTAMP(DATE(entity.%s))", column);
+        return null;
+    }
+
+    @Override
+    public boolean supportsLimitedUnionBranches() {
+        return true;
+    }
+
+    @Override
+    public String sampleHash(String column, long seed) {
+        return String.format("CRC32(CONCAT(%s, ':', %d))", column, seed);
+    }
+
+    @Override
+    public String castAsText(String expression) {
+        return String.format("CAST(%s AS CHAR)", expression);
+    }
+
+    // interpolates between the two rows around the percentile position, same as PERCENTILE_CONT
+    @Override
+    public String percentileQuery(String column, double percentile, String bucket, String fromClause) {
+        if (!supportsWindowFunctions) return null;
+        String partition = bucket == null ? "" : String.format("PARTITION BY %s ", bucket);
+        return String.format("SELECT %sCAST(MIN(percentile_entity.percentile_value) + " +
+                        "(MAX(percentile_entity.percentile_position) - FLOOR(MAX(percentile_entity.percentile_position))) * " +
+                        "(MAX(percentile_entity.percentile_value) - MIN(percentile_entity.percentile_value)) AS DOUBLE)%s " +
+                        "FROM (SELECT %sentity.%s AS percentile_value, " +
+                        "ROW_NUMBER() OVER (%sORDER BY entity.%s) AS percentile_row, " +
+                        "(COUNT(*) OVER (%s) - 1) * %s AS percentile_position %s) percentile_entity " +
+                        "WHERE percentile_entity.percentile_row IN (FLOOR(percentile_entity.percentile_position) + 1, " +
+                        "CEIL(percentile_entity.percentile_position) + 1)%s",
+                bucket == null ? "" : "percentile_entity.percentile_bucket, ",
+                bucket == null ? "" : " AS percentile_value",
+                bucket == null ? "" : bucket + " AS percentile_bucket, ",
+                column, partition, column, partition.trim(), percentile, fromClause,
+                bucket == null ? "" : " GROUP BY percentile_entity.percentile_bucket");
+    }
+
+    @Override
+    public boolean supportsWindowFunctions() {
+        return supportsWindowFunctions;
+    }
+
+    @Override
+    public String tableRowEstimateQuery() {
+        return "SELECT TABLE_ROWS FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = :table";
+    }
+
+    @Override
+    public String explainQuery(String query) {
+        return String.format("EXPLAIN FORMAT=JSON %s", query);
+    }
+
+    // the rows produced by the last table of the join
+    @Override
+    public Long estimatedRows(String plan) {
+        Matcher matcher = PLAN_ROWS_PATTERN.matcher(plan);
+        Long rows = null;
+        while (matcher.find()) rows = Long.parseLong(matcher.group(1));
+        return rows;
+    }
+
 }
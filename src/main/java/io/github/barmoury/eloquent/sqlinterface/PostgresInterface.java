@@ -2,11 +2,96 @@ package io.github.barmoury.eloquent.sqlinterface;
 
 import io.github.barmoury.eloquent.SqlInterface;
 
+import java.math.BigDecimal;
+import java.time.temporal.ChronoUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 public class PostgresInterface extends SqlInterface {
 
+    static final Pattern PLAN_ROWS_PATTERN = Pattern.compile("rows=(\\d+)");
+
     @Override
     public String database() {
         return "postgres";
     }
 
+    @Override
+    public String conditionalAggregate(String function, String expression, String condition) {
+        if (condition == null || condition.isEmpty()) return String.format("%s(%s)", function, expression);
+        return String.format("%s(%s) FILTER (WHERE %s)", function, expression, condition);
+    }
+
+    @Override
+    public String timeBucket(String column, ChronoUnit unit) {
+        String field;
+        if (unit == ChronoUnit.HOURS) field = "hour";
+        else if (unit == ChronoUnit.DAYS) field = "day";
+        else if (unit == ChronoUnit.MONTHS) field = "month";
+        else if (unit == ChronoUnit.YEARS) field = "year";
+        else return null;
+        return String.format("TO_CHAR(DATE_TRUNC('%s', entity.%s), 'YYYY-MM-DD HH24:MI')", field, column);
+    }
+
+    @Override
+    public String truncateTime(String column, ChronoUnit unit) {
+        if (unit == ChronoUnit.HOURS) return String.format("DATE_TRUNC('hour', entity.%s)", column);
+        if (unit == ChronoUnit.DAYS) return String.format("DATE_TRUNC('day', entity.%s)", column);
+        return null;
+    }
+
+    @Override
+    public boolean supportsLimitedUnionBranches() {
+        return true;
+    }
+
+    @Override
+    public String castAsText(String expression) {
+        return String.format("CAST(%s AS VARCHAR)", expression);
+    }
+
+    @Override
+    public String percentileQuery(String column, double percentile, String bucket, String fromClause) {
+        if (bucket == null) {
+            return String.format("SELECT PERCENTILE_CONT(%s) WITHIN GROUP (ORDER BY entity.%s) %s",
+                    percentile, column, fromClause);
+        }
+        return String.format("SELECT %s AS percentile_bucket, " +
+                        "PERCENTILE_CONT(%s) WITHIN GROUP (ORDER BY entity.%s) AS percentile_value %s GROUP BY %s",
+                bucket, percentile, column, fromClause, bucket);
+    }
+
+    @Override
+    public boolean supportsWindowFunctions() {
+        return true;
+    }
+
+    @Override
+    public String tableSample(double percentage, long seed) {
+        return String.format("TABLESAMPLE SYSTEM (%s) REPEATABLE (%d)", BigDecimal.valueOf(percentage).toPlainString(),
+                seed);
+    }
+
+    @Override
+    public boolean supportsGroupingSets() {
+        return true;
+    }
+
+    // reltuples is -1 until the table is first analyzed
+    @Override
+    public String tableRowEstimateQuery() {
+        return "SELECT CAST(reltuples AS BIGINT) FROM pg_class WHERE oid = to_regclass(:table)";
+    }
+
+    @Override
+    public String explainQuery(String query) {
+        return String.format("EXPLAIN %s", query);
+    }
+
+    @Override
+    public Long estimatedRows(String plan) {
+        Matcher matcher = PLAN_ROWS_PATTERN.matcher(plan);
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : null;
+    }
+
 }
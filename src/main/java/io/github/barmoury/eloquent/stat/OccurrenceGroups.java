@@ -0,0 +1,156 @@
+package io.github.barmoury.eloquent.stat;
+
+import io.github.barmoury.eloquent.SqlInterface;
+import io.github.barmoury.eloquent.StatQuery;
+import lombok.Getter;
+
+import java.util.*;
+
+// the occurrence queries of an entity grouped by column and where clause, the queries of a group only differ in
+// their type or fetch count so the group is counted once for its largest fetch count and the percentages are
+// derived from the counts, every group is read in one statement, a single scan with GROUPING SETS where the
+// dialect has it and a UNION ALL of the top rows of each group otherwise
+public class OccurrenceGroups {
+
+    @Getter final List<Group> groups = new ArrayList<>();
+    final Map<String, List<Integer>> queryGroups = new HashMap<>();
+
+    public record Group(String columnName, String whereClause, long fetchCount) {
+
+        String condition() {
+            return whereClause.isEmpty() ? "" : String.format(whereClause, columnName);
+        }
+
+    }
+
+    public OccurrenceGroups(Map<String, StatQuery.OccurrenceQuery[]> occurrenceQueries) {
+        for (Map.Entry<String, StatQuery.OccurrenceQuery[]> entry : occurrenceQueries.entrySet()) {
+            List<Integer> indexes = new ArrayList<>();
+            for (StatQuery.OccurrenceQuery occurrenceQuery : entry.getValue()) {
+                int index = 0;
+                while (index < groups.size() && !(groups.get(index).columnName().equals(entry.getKey())
+                        && groups.get(index).whereClause().equals(occurrenceQuery.whereClause()))) index++;
+                if (index == groups.size()) {
+                    groups.add(new Group(entry.getKey(), occurrenceQuery.whereClause(), occurrenceQuery.fetchCount()));
+                } else if (groups.get(index).fetchCount() < occurrenceQuery.fetchCount()) {
+                    groups.set(index, new Group(entry.getKey(), occurrenceQuery.whereClause(),
+                            occurrenceQuery.fetchCount()));
+                }
+                indexes.add(index);
+            }
+            queryGroups.put(entry.getKey(), indexes);
+        }
+    }
+
+    // the group of the position-th occurrence query of the column
+    public int groupIndex(String columnName, int position) {
+        return queryGroups.get(columnName).get(position);
+    }
+
+    List<String> groupedColumns() {
+        List<String> columns = new ArrayList<>();
+        for (Group group : groups) {
+            if (!columns.contains(group.columnName())) columns.add(group.columnName());
+        }
+        return columns;
+    }
+
+    // the GROUPING value of the set of the column, a bit is set for every other column
+    int groupingSet(List<String> columns, String columnName) {
+        return ((1 << columns.size()) - 1) & ~(1 << (columns.size() - 1 - columns.indexOf(columnName)));
+    }
+
+    // one scan grouped by every column with a conditional count and a rank per group, only the top rows of a
+    // group are kept for the set of its column
+    public String groupingSetsQuery(SqlInterface sqlInterface, String tableName, String whereFilterString) {
+        List<String> columns = groupedColumns();
+        List<String> groupColumns = new ArrayList<>();
+        List<String> ranks = new ArrayList<>();
+        List<String> conditions = new ArrayList<>();
+        List<String> groupedColumns = new ArrayList<>();
+        List<String> sets = new ArrayList<>();
+        for (String column : columns) {
+            groupedColumns.add("entity." + column);
+            sets.add("(entity." + column + ")");
+        }
+        for (int index = 0; index < groups.size(); index++) {
+            Group group = groups.get(index);
+            groupColumns.add(String.format("%s AS count_%d", sqlInterface.conditionalAggregate("COUNT",
+                    "entity." + group.columnName(), group.condition()), index));
+            ranks.add(String.format("ROW_NUMBER() OVER (PARTITION BY grouped.occurrence_set " +
+                    "ORDER BY grouped.count_%d DESC) AS rank_%d", index, index));
+            conditions.add(String.format("(ranked.occurrence_set = %d AND ranked.rank_%d <= %d)",
+                    groupingSet(columns, group.columnName()), index, group.fetchCount()));
+        }
+        String grouped = String.join(", ", groupedColumns);
+        return String.format("SELECT ranked.* FROM (SELECT grouped.*, %s FROM (SELECT GROUPING(%s) AS " +
+                        "occurrence_set, %s, %s FROM %s entity %s GROUP BY GROUPING SETS (%s)) grouped) ranked " +
+                        "WHERE %s", String.join(", ", ranks), grouped, grouped, String.join(", ", groupColumns),
+                tableName, whereFilterString, String.join(", ", sets), String.join(" OR ", conditions));
+    }
+
+    // the top rows of every group, each still a scan of its own but all in one round trip, a group keeps its
+    // column type in an occurrence_value column of its own which is null in the rows of the other groups
+    public String unionQuery(SqlInterface sqlInterface, String tableName, String whereFilterString) {
+        List<String> branches = new ArrayList<>();
+        for (int index = 0; index < groups.size(); index++) {
+            Group group = groups.get(index);
+            List<String> values = new ArrayList<>();
+            for (int other = 0; other < groups.size(); other++) {
+                values.add(String.format("%s AS occurrence_value_%d", other == index
+                        ? "entity." + group.columnName()
+                        : "NULL", other));
+            }
+            branches.add(String.format("(SELECT %d AS occurrence_index, %s, COUNT(entity.%s) " +
+                            "AS count FROM %s entity %s GROUP BY entity.%s ORDER BY count DESC %s)", index,
+                    String.join(", ", values), group.columnName(), tableName,
+                    withCondition(whereFilterString, group.condition()), group.columnName(),
+                    sqlInterface.limit(group.fetchCount())));
+        }
+        return String.join(" UNION ALL ", branches);
+    }
+
+    // the rows of each group as [value, count] ordered by count
+    public List<List<Object[]>> groupingSetsRows(List<Map<String, Object>> rows) {
+        List<String> columns = groupedColumns();
+        List<List<Object[]>> groupRows = emptyGroupRows();
+        for (int index = 0; index < groups.size(); index++) {
+            Group group = groups.get(index);
+            int set = groupingSet(columns, group.columnName());
+            List<Object[]> ranked = new ArrayList<>();
+            for (Map<String, Object> row : rows) {
+                if (((Number) row.get("occurrence_set")).intValue() != set) continue;
+                long rank = ((Number) row.get("rank_" + index)).longValue();
+                long count = ((Number) row.get("count_" + index)).longValue();
+                if (rank > group.fetchCount() || count == 0) continue;
+                ranked.add(new Object[]{ row.get(group.columnName()), count, rank });
+            }
+            ranked.sort(Comparator.comparingLong(row -> (Long) row[2]));
+            for (Object[] row : ranked) groupRows.get(index).add(new Object[]{ row[0], row[1] });
+        }
+        return groupRows;
+    }
+
+    public List<List<Object[]>> unionRows(List<Map<String, Object>> rows) {
+        List<List<Object[]>> groupRows = emptyGroupRows();
+        for (Map<String, Object> row : rows) {
+            int index = ((Number) row.get("occurrence_index")).intValue();
+            groupRows.get(index).add(new Object[]{
+                    row.get("occurrence_value_" + index), ((Number) row.get("count")).longValue() });
+        }
+        for (List<Object[]> group : groupRows) group.sort((a, b) -> Long.compare((Long) b[1], (Long) a[1]));
+        return groupRows;
+    }
+
+    List<List<Object[]>> emptyGroupRows() {
+        List<List<Object[]>> groupRows = new ArrayList<>();
+        for (int index = 0; index < groups.size(); index++) groupRows.add(new ArrayList<>());
+        return groupRows;
+    }
+
+    static String withCondition(String whereFilterString, String condition) {
+        if (condition.isEmpty()) return whereFilterString;
+        return (whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND ") + condition;
+    }
+
+}
@@ -0,0 +1,104 @@
+package io.github.barmoury.eloquent.stat;
+
+import java.util.Arrays;
+
+// the P² algorithm (Jain & Chlamtac), estimates a quantile in one pass with five markers
+// instead of sorting or keeping the observed values
+public class P2QuantileEstimator {
+
+    long count;
+    final double quantile;
+    final int[] positions = new int[5];
+    final double[] heights = new double[5];
+    final double[] increments = new double[5];
+    final double[] desiredPositions = new double[5];
+
+    public P2QuantileEstimator(double quantile) {
+        if (quantile < 0 || quantile > 1) {
+            throw new IllegalArgumentException(String.format("Invalid quantile %s, expected a value between 0 and 1",
+                    quantile));
+        }
+        this.quantile = quantile;
+        for (int index = 0; index < 5; index++) positions[index] = index + 1;
+        desiredPositions[0] = 1;
+        desiredPositions[1] = 1 + 2 * quantile;
+        desiredPositions[2] = 1 + 4 * quantile;
+        desiredPositions[3] = 3 + 2 * quantile;
+        desiredPositions[4] = 5;
+        increments[0] = 0;
+        increments[1] = quantile / 2;
+        increments[2] = quantile;
+        increments[3] = (1 + quantile) / 2;
+        increments[4] = 1;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public void add(double value) {
+        if (count < 5) {
+            heights[(int) count++] = value;
+            if (count == 5) Arrays.sort(heights);
+            return;
+        }
+        count++;
+        int cell;
+        if (value < heights[0]) {
+            heights[0] = value;
+            cell = 0;
+        } else if (value >= heights[4]) {
+            heights[4] = value;
+            cell = 3;
+        } else {
+            cell = 0;
+            while (value >= heights[cell + 1]) cell++;
+        }
+        for (int index = cell + 1; index < 5; index++) positions[index]++;
+        for (int index = 0; index < 5; index++) desiredPositions[index] += increments[index];
+        for (int index = 1; index <= 3; index++) {
+            double difference = desiredPositions[index] - positions[index];
+            if ((difference >= 1 && positions[index + 1] - positions[index] > 1)
+                    || (difference <= -1 && positions[index - 1] - positions[index] < -1)) {
+                int direction = difference >= 0 ? 1 : -1;
+                double height = parabolic(index, direction);
+                if (heights[index - 1] < height && height < heights[index + 1]) {
+                    heights[index] = height;
+                } else {
+                    heights[index] = linear(index, direction);
+                }
+                positions[index] += direction;
+            }
+        }
+    }
+
+    // exact for the first five values, estimated afterwards
+    public Double estimate() {
+        if (count == 0) return null;
+        if (count <= 5) {
+            double[] values = Arrays.copyOf(heights, (int) count);
+            Arrays.sort(values);
+            double position = (count - 1) * quantile;
+            int lower = (int) Math.floor(position);
+            int upper = (int) Math.ceil(position);
+            return values[lower] + (position - lower) * (values[upper] - values[lower]);
+        }
+        if (quantile == 0) return heights[0];
+        if (quantile == 1) return heights[4];
+        return heights[2];
+    }
+
+    double parabolic(int index, int direction) {
+        return heights[index] + direction / (double) (positions[index + 1] - positions[index - 1])
+                * ((positions[index] - positions[index - 1] + direction)
+                * (heights[index + 1] - heights[index]) / (positions[index + 1] - positions[index])
+                + (positions[index + 1] - positions[index] - direction)
+                * (heights[index] - heights[index - 1]) / (positions[index] - positions[index - 1]));
+    }
+
+    double linear(int index, int direction) {
+        return heights[index] + direction * (heights[index + direction] - heights[index])
+                / (positions[index + direction] - positions[index]);
+    }
+
+}
@@ -0,0 +1,48 @@
+package io.github.barmoury.eloquent.stat;
+
+import io.github.barmoury.eloquent.SqlInterface;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class StatAggregate {
+
+    Type type;
+    String name;
+    String column;
+    String sqlFunction;
+    String whereClause;
+
+    // a column query without a sql function selects the raw column, it cannot be folded into the aggregate scan
+    public boolean isAggregate() {
+        return type != Type.COLUMN || !sqlFunction.isEmpty();
+    }
+
+    public String getCondition() {
+        return whereClause.isEmpty() ? "" : String.format(whereClause, column);
+    }
+
+    public String expression(SqlInterface sqlInterface, String extraCondition) {
+        String condition = getCondition();
+        if (extraCondition != null && !extraCondition.isEmpty()) {
+            condition = condition.isEmpty()
+                    ? extraCondition
+                    : String.format("(%s) AND (%s)", condition, extraCondition);
+        }
+        return switch (type) {
+            case COUNT -> sqlInterface.conditionalAggregate("COUNT", "*", condition);
+            case AVERAGE -> sqlInterface.conditionalAggregate("AVG", "entity." + column, condition);
+            case COLUMN, PERCENTAGE_CHANGE -> sqlInterface.conditionalAggregate(sqlFunction, "entity." + column,
+                    condition);
+        };
+    }
+
+    public enum Type {
+        COUNT,
+        COLUMN,
+        AVERAGE,
+        PERCENTAGE_CHANGE
+    }
+
+}
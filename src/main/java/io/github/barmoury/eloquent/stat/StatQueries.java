@@ -0,0 +1,45 @@
+package io.github.barmoury.eloquent.stat;
+
+import io.github.barmoury.eloquent.StatQuery;
+import io.github.barmoury.util.FieldUtil;
+import lombok.Getter;
+import org.apache.commons.collections4.MultiValuedMap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// the stat query annotations of an entity by their column name
+@Getter
+public class StatQueries {
+
+    Map<String, StatQuery.MedianQuery[]> medianQueries = new HashMap<>();
+    Map<String, StatQuery.ColumnQuery[]> columnQueries = new HashMap<>();
+    Map<String, StatQuery.AverageQuery[]> averageQueries = new HashMap<>();
+    Map<String, StatQuery.PercentileQuery[]> percentileQueries = new HashMap<>();
+    Map<String, StatQuery.OccurrenceQuery[]> occurrenceQueries = new HashMap<>();
+    Map<String, StatQuery.PercentageChangeQuery[]> percentageChangeQueries = new HashMap<>();
+
+    public static StatQueries resolve(MultiValuedMap<String, Object> statRequestFields, StatQuery statQuery) {
+        StatQueries statQueries = new StatQueries();
+        for (String fieldName : statRequestFields.keySet()) {
+            Object[] values = statRequestFields.get(fieldName).toArray();
+            String columnName = (String) values[0];
+            if (statQuery != null && statQuery.columnsAreSnakeCase()) columnName = FieldUtil.toSnakeCase(columnName);
+
+            if (((StatQuery.MedianQuery[]) values[4]).length > 0)
+                statQueries.medianQueries.put(columnName, (StatQuery.MedianQuery[]) values[4]);
+            if (((StatQuery.ColumnQuery[]) values[5]).length > 0)
+                statQueries.columnQueries.put(columnName, (StatQuery.ColumnQuery[]) values[5]);
+            if (((StatQuery.AverageQuery[]) values[6]).length > 0)
+                statQueries.averageQueries.put(columnName, (StatQuery.AverageQuery[]) values[6]);
+            if (((StatQuery.OccurrenceQuery[]) values[7]).length > 0)
+                statQueries.occurrenceQueries.put(columnName, (StatQuery.OccurrenceQuery[]) values[7]);
+            if (((StatQuery.PercentageChangeQuery[]) values[8]).length > 0)
+                statQueries.percentageChangeQueries.put(columnName, (StatQuery.PercentageChangeQuery[]) values[8]);
+            if (((StatQuery.PercentileQuery[]) values[9]).length > 0)
+                statQueries.percentileQueries.put(columnName, (StatQuery.PercentileQuery[]) values[9]);
+        }
+        return statQueries;
+    }
+
+}
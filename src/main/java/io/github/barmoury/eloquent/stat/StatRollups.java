@@ -0,0 +1,458 @@
+package io.github.barmoury.eloquent.stat;
+
+import io.github.barmoury.asynchronous.Threading;
+import io.github.barmoury.eloquent.SqlInterface;
+import io.github.barmoury.eloquent.StatQuery;
+import jakarta.persistence.EntityManager;
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.reflect.Field;
+import java.sql.Timestamp;
+import java.time.*;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// hourly and daily aggregates of a @StatQuery(rollup = true) entity kept in <table>_rollup and its occurrence
+// counts in <table>_rollup_occurrence, grouped by the rollup dimensions, a day is always re-aggregated from the
+// raw rows as a whole when a write touches it or a catch up covers it, the days are those of the JVM time zone
+// which should be the one of the database like for the other interval stats. The range the rollup is complete
+// for is kept in <table>_rollup_watermark, the first use backfills it from the first raw row and a periodic catch
+// up re-aggregates the last days for the rows written by other instances or outside the controllers, a stat over
+// a range the rollup does not cover is read from the raw rows
+public class StatRollups {
+
+    public static final int HOURLY = 0;
+    public static final int DAILY = 1;
+
+    final PlatformTransactionManager transactionManager;
+    final Map<Class<?>, Definition> definitions = new ConcurrentHashMap<>();
+    final Map<Class<?>, Set<Long>> dirtyDays = new ConcurrentHashMap<>();
+    final Map<Class<?>, Long> lastCatchUps = new ConcurrentHashMap<>();
+    @Setter long catchUpDelayMillis = 5 * 60 * 1000;
+    @Setter int catchUpDays = 1;
+
+    public StatRollups(PlatformTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    public Definition definition(Class<?> clazz, Supplier<Definition> builder) {
+        return definitions.computeIfAbsent(clazz, k -> builder.get());
+    }
+
+    // the day of the interval value is re-aggregated before the rollup of the entity is next read
+    public void recordWrite(Class<?> clazz, Object intervalValue) {
+        Date date = toDate(intervalValue);
+        if (date == null) return;
+        dirtyDays.computeIfAbsent(clazz, k -> ConcurrentHashMap.newKeySet()).add(dayStart(date).getTime());
+    }
+
+    // whether the rollup answers the range from from to to, it is backfilled on first use, its catch up is due
+    // every catchUpDelayMillis and the dirty days are refreshed first, a range ending in the future is only read up to now so the
+    // days since the covered range ended are re-aggregated when it reaches past them
+    public boolean covers(Class<?> clazz, Definition definition, SqlInterface sqlInterface,
+                          EntityManager entityManager, Date from, Date to) {
+        if (definition.coveredTo == null) backfill(definition, sqlInterface, entityManager);
+        catchUpIfDue(clazz, definition, sqlInterface, entityManager);
+        refreshDirty(clazz, definition, sqlInterface, entityManager);
+        if (from.before(definition.coveredFrom)) return false;
+        Date now = new Date();
+        if ((to.after(now) ? now : to).after(definition.coveredTo)) {
+            catchUp(definition, sqlInterface, entityManager, definition.coveredTo);
+        }
+        return true;
+    }
+
+    // each dirty day is claimed by one refresh and the refreshes of an entity run one at a time so a day is
+    // never deleted and inserted by two transactions at once
+    public void refreshDirty(Class<?> clazz, Definition definition, SqlInterface sqlInterface,
+                             EntityManager entityManager) {
+        Set<Long> days = dirtyDays.get(clazz);
+        if (days == null || days.isEmpty()) return;
+        synchronized (definition) {
+            List<Long> refreshedDays = new ArrayList<>();
+            for (Long day : new ArrayList<>(days)) {
+                if (days.remove(day)) refreshedDays.add(day);
+            }
+            if (refreshedDays.isEmpty()) return;
+            Date now = new Date();
+            boolean advances = definition.coveredTo != null;
+            for (Date day = dayStart(definition.coveredTo != null ? definition.coveredTo : now); advances
+                    && !day.after(now); day = nextDayStart(day)) {
+                advances = refreshedDays.contains(day.getTime());
+            }
+            boolean advancesCoveredTo = advances;
+            try {
+                createTables(definition, sqlInterface, entityManager);
+                newTransaction().executeWithoutResult(status -> {
+                    for (Long day : refreshedDays) {
+                        refreshRange(definition, sqlInterface, entityManager, new Date(day),
+                                nextDayStart(new Date(day)));
+                    }
+                    if (advancesCoveredTo) writeWatermark(definition, entityManager, definition.coveredFrom, now);
+                });
+            } catch (RuntimeException ex) {
+                days.addAll(refreshedDays);
+                throw ex;
+            }
+            // every day from the end of the covered range to today was re-aggregated so it now ends now
+            if (advancesCoveredTo) definition.coveredTo = now;
+        }
+    }
+
+    // the covered range is read from the watermark table, without one the rollup is aggregated from the day of
+    // the first raw row to now
+    void backfill(Definition definition, SqlInterface sqlInterface, EntityManager entityManager) {
+        synchronized (definition) {
+            if (definition.coveredTo != null) return;
+            createTables(definition, sqlInterface, entityManager);
+            Date[] covered = newTransaction().execute(status -> {
+                List<?> rows = entityManager.createNativeQuery(String.format("SELECT covered_from, covered_to FROM %s",
+                        definition.watermarkTable)).getResultList();
+                if (!rows.isEmpty()) {
+                    Object[] row = (Object[]) rows.get(0);
+                    return new Date[]{ toDate(row[0]), toDate(row[1]) };
+                }
+                Date now = new Date();
+                Object first = entityManager.createNativeQuery(String.format("SELECT MIN(%s) FROM %s",
+                        definition.intervalColumn, definition.tableName)).getSingleResult();
+                Date start = dayStart(first != null ? toDate(first) : now);
+                refreshRange(definition, sqlInterface, entityManager, start,
+                        nextDayStart(now));
+                writeWatermark(definition, entityManager, start, now);
+                return new Date[]{ start, now };
+            });
+            definition.coveredFrom = covered[0];
+            definition.coveredTo = covered[1];
+        }
+    }
+
+    // the last catchUpDays days and today are re-aggregated and the covered range then ends now
+    public void catchUp(Definition definition, SqlInterface sqlInterface, EntityManager entityManager) {
+        catchUp(definition, sqlInterface, entityManager, Date.from(LocalDate.now().minusDays(catchUpDays)
+                .atStartOfDay(ZoneId.systemDefault()).toInstant()));
+    }
+
+    // the days from the day of from to today are re-aggregated and the covered range then ends now
+    void catchUp(Definition definition, SqlInterface sqlInterface, EntityManager entityManager, Date from) {
+        if (definition.coveredTo == null) {
+            backfill(definition, sqlInterface, entityManager);
+            return;
+        }
+        synchronized (definition) {
+            Date now = new Date();
+            Date start = dayStart(from);
+            Date coveredFrom = start.before(definition.coveredFrom) ? start : definition.coveredFrom;
+            createTables(definition, sqlInterface, entityManager);
+            newTransaction().executeWithoutResult(status -> {
+                refreshRange(definition, sqlInterface, entityManager, start,
+                        nextDayStart(now));
+                writeWatermark(definition, entityManager, coveredFrom, now);
+            });
+            definition.coveredFrom = coveredFrom;
+            definition.coveredTo = now;
+        }
+    }
+
+    // the catch up runs on the managed executor of the background tasks when a read finds the last one older
+    // than catchUpDelayMillis, a failed catch up is retried when the next one is due
+    void catchUpIfDue(Class<?> clazz, Definition definition, SqlInterface sqlInterface, EntityManager entityManager) {
+        if (catchUpDelayMillis <= 0) return;
+        long now = System.currentTimeMillis();
+        Long lastCatchUp = lastCatchUps.putIfAbsent(clazz, now);
+        if (lastCatchUp == null || now - lastCatchUp < catchUpDelayMillis
+                || !lastCatchUps.replace(clazz, lastCatchUp, now)) return;
+        Threading.run(() -> catchUp(definition, sqlInterface, entityManager));
+    }
+
+    void writeWatermark(Definition definition, EntityManager entityManager, Date coveredFrom, Date coveredTo) {
+        entityManager.createNativeQuery(String.format("DELETE FROM %s", definition.watermarkTable)).executeUpdate();
+        entityManager.createNativeQuery(String.format("INSERT INTO %s (covered_from, covered_to) " +
+                        "VALUES (:covered_from, :covered_to)", definition.watermarkTable))
+                .setParameter("covered_from", new Timestamp(coveredFrom.getTime()))
+                .setParameter("covered_to", new Timestamp(coveredTo.getTime()))
+                .executeUpdate();
+    }
+
+    // the whole days from the day of from to the end of the day of to are re-aggregated in one transaction, the
+    // catch up for rows written outside the controllers or a rebuild after the stat queries changed
+    public void refresh(Definition definition, SqlInterface sqlInterface, EntityManager entityManager,
+                        Date from, Date to) {
+        Date start = dayStart(from);
+        Date end = nextDayStart(to);
+        synchronized (definition) {
+            createTables(definition, sqlInterface, entityManager);
+            newTransaction().executeWithoutResult(status -> {
+                refreshRange(definition, sqlInterface, entityManager, start, end);
+            });
+        }
+    }
+
+    // the tables are created in a transaction of their own before any refresh, CREATE TABLE commits the
+    // transaction it runs in on MySQL so it must never run inside the one of a stat or a refresh
+    void createTables(Definition definition, SqlInterface sqlInterface, EntityManager entityManager) {
+        if (definition.created) return;
+        newTransaction().executeWithoutResult(status -> createTableQueries(definition, sqlInterface)
+                .forEach(query -> entityManager.createNativeQuery(query).executeUpdate()));
+        definition.created = true;
+    }
+
+    // the rollup is written in transactions of its own, never in the one of the stat reading it
+    TransactionTemplate newTransaction() {
+        TransactionTemplate transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        return transactionTemplate;
+    }
+
+    List<String> createTableQueries(Definition definition, SqlInterface sqlInterface) {
+        List<String> queries = new ArrayList<>();
+        queries.add(String.format("CREATE TABLE IF NOT EXISTS %s AS %s",
+                definition.rollupTable, definition.aggregateSelect(sqlInterface, HOURLY, "1 = 0")));
+        if (!definition.occurrenceColumns.isEmpty()) {
+            queries.add(String.format("CREATE TABLE IF NOT EXISTS %s AS %s",
+                    definition.occurrenceTable, definition.occurrenceSelect(sqlInterface, HOURLY, 0, "1 = 0")));
+        }
+        queries.add(String.format("CREATE TABLE IF NOT EXISTS %s AS SELECT MIN(%s) AS " +
+                "covered_from, MAX(%s) AS covered_to FROM %s WHERE 1 = 0", definition.watermarkTable,
+                definition.intervalColumn, definition.intervalColumn, definition.tableName));
+        return queries;
+    }
+
+    void refreshRange(Definition definition, SqlInterface sqlInterface, EntityManager entityManager,
+                      Date start, Date end) {
+        String range = String.format("entity.%s >= :rollup_from AND entity.%s < :rollup_to",
+                definition.intervalColumn, definition.intervalColumn);
+        String bucketRange = String.format("%s >= :rollup_from AND %s < :rollup_to",
+                definition.intervalColumn, definition.intervalColumn);
+        List<String> queries = new ArrayList<>();
+        queries.add(String.format("DELETE FROM %s WHERE %s", definition.rollupTable, bucketRange));
+        if (!definition.occurrenceColumns.isEmpty()) {
+            queries.add(String.format("DELETE FROM %s WHERE %s", definition.occurrenceTable, bucketRange));
+        }
+        for (int unit : new int[]{ HOURLY, DAILY }) {
+            queries.add(String.format("INSERT INTO %s (%s) %s", definition.rollupTable,
+                    String.join(", ", definition.aggregateTableColumns()),
+                    definition.aggregateSelect(sqlInterface, unit, range)));
+            for (int index = 0; index < definition.occurrenceColumns.size(); index++) {
+                queries.add(String.format("INSERT INTO %s (%s) %s", definition.occurrenceTable,
+                        String.join(", ", definition.occurrenceTableColumns()),
+                        definition.occurrenceSelect(sqlInterface, unit, index, range)));
+            }
+        }
+        for (String query : queries) {
+            entityManager.createNativeQuery(query)
+                    .setParameter("rollup_from", new Timestamp(start.getTime()))
+                    .setParameter("rollup_to", new Timestamp(end.getTime()))
+                    .executeUpdate();
+        }
+    }
+
+    static Date dayStart(Date date) {
+        return Date.from(date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate()
+                .atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    // the start of the next calendar day, a day is 23 or 25 hours long when the clocks change
+    static Date nextDayStart(Date date) {
+        return Date.from(date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().plusDays(1)
+                .atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    static Date toDate(Object value) {
+        if (value instanceof Date date) return date;
+        if (value instanceof Instant instant) return Date.from(instant);
+        if (value instanceof LocalDateTime localDateTime) {
+            return Date.from(localDateTime.atZone(ZoneId.systemDefault()).toInstant());
+        }
+        if (value instanceof LocalDate localDate) {
+            return Date.from(localDate.atStartOfDay(ZoneId.systemDefault()).toInstant());
+        }
+        if (value instanceof OffsetDateTime offsetDateTime) return Date.from(offsetDateTime.toInstant());
+        if (value instanceof ZonedDateTime zonedDateTime) return Date.from(zonedDateTime.toInstant());
+        return null;
+    }
+
+    // the stat aggregates that can be merged from the buckets are kept, COUNT, SUM, MIN and MAX as they are and
+    // an average as its sum and count
+    @Getter
+    public static class Definition {
+
+        final String tableName;
+        final String rollupTable;
+        final String occurrenceTable;
+        final String watermarkTable;
+        final String intervalColumn;
+        final Field intervalField;
+        final List<String> dimensions;
+        final List<StatAggregate> measures = new ArrayList<>();
+        final List<String> occurrenceColumns = new ArrayList<>();
+        final List<StatQuery.OccurrenceQuery> occurrenceQueries = new ArrayList<>();
+        volatile boolean created;
+        volatile Date coveredFrom;
+        volatile Date coveredTo;
+
+        public Definition(String tableName, String intervalColumn, Field intervalField, List<String> dimensions,
+                          List<StatAggregate> aggregates, Map<String, StatQuery.OccurrenceQuery[]> occurrenceQueries) {
+            this.tableName = tableName;
+            this.rollupTable = tableName + "_rollup";
+            this.occurrenceTable = tableName + "_rollup_occurrence";
+            this.watermarkTable = tableName + "_rollup_watermark";
+            this.intervalColumn = intervalColumn;
+            this.intervalField = intervalField;
+            this.dimensions = dimensions;
+            for (StatAggregate aggregate : aggregates) {
+                if (isMergeable(aggregate) && measureIndex(aggregate.getName()) < 0) measures.add(aggregate);
+            }
+            for (Map.Entry<String, StatQuery.OccurrenceQuery[]> entry : occurrenceQueries.entrySet()) {
+                for (StatQuery.OccurrenceQuery occurrenceQuery : entry.getValue()) {
+                    occurrenceColumns.add(entry.getKey());
+                    this.occurrenceQueries.add(occurrenceQuery);
+                }
+            }
+        }
+
+        public static boolean isMergeable(StatAggregate aggregate) {
+            if (aggregate.getType() == StatAggregate.Type.COUNT || aggregate.getType() == StatAggregate.Type.AVERAGE) {
+                return true;
+            }
+            return switch (aggregate.getSqlFunction().toUpperCase()) {
+                case "COUNT", "SUM", "MIN", "MAX" -> true;
+                default -> false;
+            };
+        }
+
+        public int measureIndex(String name) {
+            for (int index = 0; index < measures.size(); index++) {
+                if (measures.get(index).getName().equals(name)) return index;
+            }
+            return -1;
+        }
+
+        public int occurrenceIndex(String columnName, StatQuery.OccurrenceQuery occurrenceQuery) {
+            for (int index = 0; index < occurrenceQueries.size(); index++) {
+                if (occurrenceColumns.get(index).equals(columnName)
+                        && occurrenceQueries.get(index).equals(occurrenceQuery)) return index;
+            }
+            return -1;
+        }
+
+        // the bucket aggregate of the measure over the rollup rows
+        public String mergeExpression(int index) {
+            StatAggregate measure = measures.get(index);
+            if (measure.getType() == StatAggregate.Type.AVERAGE) {
+                return String.format("SUM(entity.measure_%d) / NULLIF(SUM(entity.measure_%d_count), 0)", index, index);
+            }
+            String function = measure.getType() == StatAggregate.Type.COUNT
+                    ? "COUNT" : measure.getSqlFunction().toUpperCase();
+            return String.format("%s(entity.measure_%d)", function.equals("COUNT") ? "SUM" : function, index);
+        }
+
+        public String bucketAggregateQuery(SqlInterface sqlInterface, List<Integer> measureIndexes, ChronoUnit unit,
+                                           String whereFilterString) {
+            String bucket = sqlInterface.timeBucket(intervalColumn, unit);
+            List<String> columns = new ArrayList<>();
+            columns.add(bucket + " AS stat_bucket");
+            for (int index = 0; index < measureIndexes.size(); index++) {
+                columns.add(mergeExpression(measureIndexes.get(index)) + " AS stat_" + index);
+            }
+            return String.format("SELECT %s FROM %s entity %s GROUP BY %s", String.join(", ", columns), rollupTable,
+                    withBucketUnit(whereFilterString, unit, null), bucket);
+        }
+
+        public String bucketOccurrenceQuery(SqlInterface sqlInterface, int occurrenceIndex, String columnName,
+                                            ChronoUnit unit, String whereFilterString) {
+            String bucket = sqlInterface.timeBucket(intervalColumn, unit);
+            return String.format("SELECT %s AS stat_bucket, entity.occurrence_value AS %s, " +
+                            "SUM(entity.occurrence_count) AS count FROM %s entity %s " +
+                            "GROUP BY %s, entity.occurrence_value", bucket, columnName,
+                    occurrenceTable, withBucketUnit(whereFilterString, unit, occurrenceIndex), bucket);
+        }
+
+        String withBucketUnit(String whereFilterString, ChronoUnit unit, Integer occurrenceIndex) {
+            String condition = String.format("entity.bucket_unit = %d", unit == ChronoUnit.HOURS ? HOURLY : DAILY);
+            if (occurrenceIndex != null) {
+                condition += String.format(" AND entity.occurrence_index = %d", occurrenceIndex);
+            }
+            return (whereFilterString.trim().isEmpty() ? " WHERE " : whereFilterString + " AND ") + condition;
+        }
+
+        List<String> aggregateTableColumns() {
+            List<String> columns = new ArrayList<>();
+            columns.add(intervalColumn);
+            columns.add("bucket_unit");
+            columns.addAll(dimensions);
+            for (int index = 0; index < measures.size(); index++) {
+                columns.add("measure_" + index);
+                if (measures.get(index).getType() == StatAggregate.Type.AVERAGE) columns.add("measure_" + index + "_count");
+            }
+            return columns;
+        }
+
+        List<String> occurrenceTableColumns() {
+            List<String> columns = new ArrayList<>();
+            columns.add(intervalColumn);
+            columns.add("bucket_unit");
+            columns.addAll(dimensions);
+            columns.add("occurrence_index");
+            columns.add("occurrence_value");
+            columns.add("occurrence_count");
+            return columns;
+        }
+
+        String aggregateSelect(SqlInterface sqlInterface, int unit, String condition) {
+            String truncated = sqlInterface.truncateTime(intervalColumn, unit == HOURLY ? ChronoUnit.HOURS : ChronoUnit.DAYS);
+            List<String> columns = new ArrayList<>();
+            columns.add(truncated + " AS " + intervalColumn);
+            columns.add(unit + " AS bucket_unit");
+            for (String dimension : dimensions) columns.add("entity." + dimension);
+            for (int index = 0; index < measures.size(); index++) {
+                StatAggregate measure = measures.get(index);
+                if (measure.getType() == StatAggregate.Type.AVERAGE) {
+                    String column = "entity." + measure.getColumn();
+                    columns.add(sqlInterface.conditionalAggregate("SUM", column, measure.getCondition())
+                            + " AS measure_" + index);
+                    columns.add(sqlInterface.conditionalAggregate("COUNT", column, measure.getCondition())
+                            + " AS measure_" + index + "_count");
+                    continue;
+                }
+                columns.add(measure.expression(sqlInterface, null) + " AS measure_" + index);
+            }
+            return String.format("SELECT %s FROM %s entity WHERE %s GROUP BY %s", String.join(", ", columns),
+                    tableName, condition, groupBy(truncated, null));
+        }
+
+        String occurrenceSelect(SqlInterface sqlInterface, int unit, int index, String condition) {
+            String truncated = sqlInterface.truncateTime(intervalColumn, unit == HOURLY ? ChronoUnit.HOURS : ChronoUnit.DAYS);
+            String column = "entity." + occurrenceColumns.get(index);
+            StatQuery.OccurrenceQuery occurrenceQuery = occurrenceQueries.get(index);
+            if (!occurrenceQuery.whereClause().isEmpty()) {
+                condition = String.format("(%s) AND (%s)", condition,
+                        String.format(occurrenceQuery.whereClause(), occurrenceColumns.get(index)));
+            }
+            List<String> columns = new ArrayList<>();
+            columns.add(truncated + " AS " + intervalColumn);
+            columns.add(unit + " AS bucket_unit");
+            for (String dimension : dimensions) columns.add("entity." + dimension);
+            columns.add(index + " AS occurrence_index");
+            columns.add(sqlInterface.castAsText(column) + " AS occurrence_value");
+            columns.add(String.format("COUNT(%s) AS occurrence_count", column));
+            return String.format("SELECT %s FROM %s entity WHERE %s GROUP BY %s", String.join(", ", columns),
+                    tableName, condition, groupBy(truncated, column));
+        }
+
+        String groupBy(String truncated, String column) {
+            List<String> columns = new ArrayList<>();
+            columns.add(truncated);
+            for (String dimension : dimensions) columns.add("entity." + dimension);
+            if (column != null) columns.add(column);
+            return String.join(", ", columns);
+        }
+
+    }
+
+}
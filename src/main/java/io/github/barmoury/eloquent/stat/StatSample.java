@@ -0,0 +1,119 @@
+package io.github.barmoury.eloquent.stat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.github.barmoury.eloquent.SqlInterface;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// an approximate stat over a sample of the rows, TABLESAMPLE SYSTEM where the dialect has it, the rows whose
+// seeded id hash is a multiple of k otherwise and every k-th id as the last resort, the counts and sums are
+// scaled by the inverse of the rate and the counts and averages get the half width of their 95% confidence
+// interval, which assumes the rows are sampled independently, every query of a stat reads the same sample
+// through one seed
+@Getter
+public class StatSample {
+
+    public static final double CONFIDENCE_LEVEL = 0.95;
+    static final double Z_SCORE = 1.96;
+    static final String DEVIATION_PREFIX = "___sample_deviation_";
+    static final String COUNT_PREFIX = "___sample_count_";
+
+    final double rate;
+    final long seed;
+    final String method;
+    final String sampleFilter;
+
+    public StatSample(SqlInterface sqlInterface, double rate) {
+        this(sqlInterface, rate, ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE));
+    }
+
+    public StatSample(SqlInterface sqlInterface, double rate, long seed) {
+        this.seed = seed;
+        String tableSample = sqlInterface.tableSample(rate * 100, seed);
+        if (tableSample != null) {
+            this.rate = rate;
+            this.method = "tablesample";
+            this.sampleFilter = tableSample;
+        } else {
+            long modulus = Math.max(1, Math.round(1 / rate));
+            String hash = sqlInterface.sampleHash("entity.id", seed);
+            this.rate = 1.0 / modulus;
+            if (hash != null) {
+                this.method = "hash";
+                this.sampleFilter = String.format("MOD(%s, %d) = 0", hash, modulus);
+            } else {
+                // the ids are taken as they are, the error bounds only hold when they are spread evenly over the
+                // rows, ids allocated in strides or filtered by type bias the sample
+                this.method = "modulo";
+                this.sampleFilter = String.format("MOD(entity.id, %d) = 0", modulus);
+            }
+        }
+    }
+
+    // the where filter reading only the sampled rows, it always ends in a where clause so the other stat
+    // queries can keep appending their conditions to it
+    public String whereFilterString(String whereFilterString) {
+        boolean hasWhere = whereFilterString.contains(" WHERE ");
+        if (method.equals("tablesample")) {
+            return " " + sampleFilter + whereFilterString + (hasWhere ? "" : " WHERE 1 = 1");
+        }
+        return whereFilterString + (hasWhere ? " AND " : " WHERE ") + sampleFilter;
+    }
+
+    public double getScale() {
+        return 1 / rate;
+    }
+
+    // the extra aggregates the error bounds of the averages are computed from
+    public List<StatAggregate> errorAggregates(List<StatAggregate> aggregates) {
+        List<StatAggregate> errorAggregates = new ArrayList<>();
+        for (StatAggregate aggregate : aggregates) {
+            if (aggregate.getType() != StatAggregate.Type.AVERAGE) continue;
+            errorAggregates.add(new StatAggregate(StatAggregate.Type.COLUMN, DEVIATION_PREFIX + aggregate.getName(),
+                    aggregate.getColumn(), "STDDEV_SAMP", aggregate.getWhereClause()));
+            errorAggregates.add(new StatAggregate(StatAggregate.Type.COLUMN, COUNT_PREFIX + aggregate.getName(),
+                    aggregate.getColumn(), "COUNT", aggregate.getWhereClause()));
+        }
+        return errorAggregates;
+    }
+
+    // scales the sampled aggregates of the stat in place and reports the sample and the error bounds
+    public void apply(ObjectNode stat, List<StatAggregate> aggregates, boolean isSnakeCase) {
+        ObjectNode approximation = stat.putObject("approximation");
+        approximation.put(isSnakeCase ? "sample_rate" : "sampleRate", rate);
+        approximation.put("method", method);
+        if (!method.equals("modulo")) approximation.put("seed", seed);
+        approximation.put(isSnakeCase ? "confidence_level" : "confidenceLevel", CONFIDENCE_LEVEL);
+        ObjectNode errorBounds = approximation.putObject(isSnakeCase ? "error_bounds" : "errorBounds");
+        for (StatAggregate aggregate : aggregates) {
+            String name = aggregate.getName();
+            JsonNode value = stat.get(name);
+            String function = aggregate.getType() == StatAggregate.Type.COUNT ? "COUNT"
+                    : aggregate.getSqlFunction().toUpperCase();
+            if (aggregate.getType() == StatAggregate.Type.AVERAGE) {
+                JsonNode deviation = stat.remove(DEVIATION_PREFIX + name);
+                JsonNode count = stat.remove(COUNT_PREFIX + name);
+                if (deviation == null || deviation.isNull() || count == null || count.asLong() < 2) continue;
+                errorBounds.put(name, Z_SCORE * new BigDecimal(deviation.asText()).doubleValue()
+                        / Math.sqrt(count.asLong()));
+            } else if (value == null || value.isNull() || aggregate.getType() == StatAggregate.Type.PERCENTAGE_CHANGE) {
+                continue;
+            } else if (function.equals("COUNT")) {
+                long count = value.asLong();
+                stat.put(name, Math.round(count * getScale()));
+                errorBounds.put(name, Z_SCORE * Math.sqrt(count * (1 - rate)) / rate);
+            } else if (function.equals("SUM")) {
+                BigDecimal sum = new BigDecimal(value.asText()).multiply(BigDecimal.valueOf(getScale()));
+                if (value.isTextual()) stat.put(name, sum.toPlainString());
+                else if (value.isIntegralNumber()) stat.put(name, sum.longValue());
+                else stat.put(name, sum.doubleValue());
+            }
+        }
+    }
+
+}
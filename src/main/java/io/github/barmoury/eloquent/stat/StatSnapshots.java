@@ -0,0 +1,141 @@
+package io.github.barmoury.eloquent.stat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.github.barmoury.asynchronous.Threading;
+import jakarta.servlet.http.HttpServletRequest;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// the latest stat of each entity and parameter set, served at once and refreshed in the background when it is
+// older than its maximum staleness, at most refreshConcurrency refreshes run at a time and a stale snapshot
+// that cannot get a slot is served as it is until a later request gets one
+public class StatSnapshots {
+
+    @Getter final int maxEntries;
+    @Getter final int refreshConcurrency;
+    final Semaphore refreshSlots;
+    final LinkedHashMap<Key, Snapshot> snapshots;
+    @Getter final AtomicLong refreshes = new AtomicLong();
+    @Getter final AtomicLong failedRefreshes = new AtomicLong();
+    @Getter final AtomicLong staleServes = new AtomicLong();
+    @Setter Runner runner = Threading::run;
+
+    public interface Runner {
+        void run(Runnable task);
+    }
+
+    record Key(Class<?> entityClass, String parameters) {}
+
+    static class Snapshot {
+        volatile JsonNode value;
+        volatile long computedAt;
+        volatile boolean invalidated;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+    }
+
+    public StatSnapshots(int maxEntries, int refreshConcurrency) {
+        this.maxEntries = maxEntries;
+        this.refreshConcurrency = refreshConcurrency;
+        this.refreshSlots = new Semaphore(refreshConcurrency);
+        this.snapshots = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Snapshot> eldest) {
+                return size() > StatSnapshots.this.maxEntries;
+            }
+        };
+    }
+
+    // only the first request of a parameter set waits for the stat, the loader of a background refresh runs
+    // after the request is gone so it should only use the parameters from detachedRequest
+    public JsonNode get(Class<?> entityClass, String parameters, long maxStaleness, Supplier<JsonNode> loader) {
+        Key key = new Key(entityClass, parameters);
+        Snapshot snapshot;
+        synchronized (snapshots) {
+            snapshot = snapshots.computeIfAbsent(key, k -> new Snapshot());
+        }
+        if (snapshot.value == null) {
+            synchronized (snapshot) {
+                if (snapshot.value == null) refresh(snapshot, loader);
+            }
+            return snapshot.value;
+        }
+        boolean stale = snapshot.invalidated || System.currentTimeMillis() - snapshot.computedAt > maxStaleness;
+        if (stale) {
+            staleServes.incrementAndGet();
+            if (snapshot.refreshing.compareAndSet(false, true)) {
+                if (!refreshSlots.tryAcquire()) {
+                    snapshot.refreshing.set(false);
+                } else {
+                    try {
+                        runner.run(() -> {
+                            try {
+                                refresh(snapshot, loader);
+                            } catch (RuntimeException ignored) {
+                                failedRefreshes.incrementAndGet();
+                            } finally {
+                                refreshSlots.release();
+                                snapshot.refreshing.set(false);
+                            }
+                        });
+                    } catch (RuntimeException ex) {
+                        refreshSlots.release();
+                        snapshot.refreshing.set(false);
+                    }
+                }
+            }
+        }
+        return snapshot.value;
+    }
+
+    void refresh(Snapshot snapshot, Supplier<JsonNode> loader) {
+        long startedAt = System.currentTimeMillis();
+        snapshot.invalidated = false;
+        JsonNode value = loader.get();
+        refreshes.incrementAndGet();
+        snapshot.value = value;
+        snapshot.computedAt = startedAt;
+    }
+
+    // the snapshots of the entity are refreshed on their next request, which is still served the old value
+    public void invalidate(Class<?> entityClass) {
+        synchronized (snapshots) {
+            for (Map.Entry<Key, Snapshot> snapshot : snapshots.entrySet()) {
+                if (snapshot.getKey().entityClass() == entityClass) snapshot.getValue().invalidated = true;
+            }
+        }
+    }
+
+    public int size() {
+        synchronized (snapshots) {
+            return snapshots.size();
+        }
+    }
+
+    // a request that only answers the parameter methods, safe to read after the original request completed
+    public static HttpServletRequest detachedRequest(Map<String, String[]> parameters) {
+        Map<String, String[]> detachedParameters = Collections.unmodifiableMap(new HashMap<>(parameters));
+        return (HttpServletRequest) Proxy.newProxyInstance(StatSnapshots.class.getClassLoader(),
+                new Class<?>[]{ HttpServletRequest.class }, (proxy, method, args) -> switch (method.getName()) {
+                    case "getParameterMap" -> detachedParameters;
+                    case "getParameterNames" -> Collections.enumeration(detachedParameters.keySet());
+                    case "getParameterValues" -> detachedParameters.get((String) args[0]);
+                    case "getParameter" -> {
+                        String[] values = detachedParameters.get((String) args[0]);
+                        yield values != null && values.length > 0 ? values[0] : null;
+                    }
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "equals" -> proxy == args[0];
+                    case "toString" -> "DetachedRequest" + detachedParameters.keySet();
+                    default -> throw new UnsupportedOperationException(String.format(
+                            "The detached stat request does not support %s", method.getName()));
+                });
+    }
+
+}
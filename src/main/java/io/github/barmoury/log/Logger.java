@@ -1,5 +1,6 @@
 package io.github.barmoury.log;
 
+import io.github.barmoury.asynchronous.Threading;
 import io.github.barmoury.cache.Cache;
 import io.github.barmoury.util.Util;
 import io.micrometer.tracing.Span;
@@ -34,7 +35,7 @@ public abstract class Logger {
         if (Util.cacheWriteAlong(bufferSize, dateLastFlushed, getCache(), log)) {
             bufferSize = 0;
             dateLastFlushed = new Date();
-            new Thread(this::flush).start();
+            Threading.run(this::flush);
         }
     }
 
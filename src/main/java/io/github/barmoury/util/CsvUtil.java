@@ -0,0 +1,68 @@
+package io.github.barmoury.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CsvUtil {
+
+    // quoted only if it has a separator, quote or line break, RFC 4180
+    public static String escape(String value) {
+        if (value == null) return "";
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return String.format("\"%s\"", value.replace("\"", "\"\""));
+    }
+
+    public static void writeRow(Writer writer, List<String> values) throws IOException {
+        for (int index = 0; index < values.size(); index++) {
+            if (index > 0) writer.write(',');
+            writer.write(escape(values.get(index)));
+        }
+        writer.write("\r\n");
+    }
+
+    // the next record of the reader, quoted values can hold separators and line breaks, null at the end
+    public static List<String> readRow(BufferedReader reader) throws IOException {
+        int read = reader.read();
+        if (read < 0) return null;
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        while (read >= 0) {
+            char character = (char) read;
+            if (quoted) {
+                if (character != '"') {
+                    value.append(character);
+                } else {
+                    reader.mark(1);
+                    if (reader.read() == '"') value.append('"');
+                    else {
+                        quoted = false;
+                        reader.reset();
+                    }
+                }
+            } else if (character == '"') {
+                quoted = true;
+            } else if (character == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else if (character == '\n' || character == '\r') {
+                if (character == '\r') {
+                    reader.mark(1);
+                    if (reader.read() != '\n') reader.reset();
+                }
+                break;
+            } else {
+                value.append(character);
+            }
+            read = reader.read();
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+}
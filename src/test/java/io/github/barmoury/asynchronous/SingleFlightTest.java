@@ -0,0 +1,65 @@
+package io.github.barmoury.asynchronous;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    @Test
+    void shareTheResultOfConcurrentCalls() throws Exception {
+        SingleFlight<String, Integer> singleFlight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        Assertions.assertEquals(List.of(1, 1, 1, 1), executeConcurrently(singleFlight, () -> calls.incrementAndGet()));
+        Assertions.assertEquals(1, calls.get());
+        Assertions.assertEquals(0, singleFlight.getInFlightCount());
+
+        Assertions.assertEquals(List.of("failed", "failed", "failed", "failed"),
+                executeConcurrently(singleFlight, () -> {
+                    calls.incrementAndGet();
+                    throw new IllegalStateException("failed");
+                }));
+        Assertions.assertEquals(2, calls.get());
+        Assertions.assertEquals(0, singleFlight.getInFlightCount());
+    }
+
+    // the first caller holds the call until every other caller waits on it, each result is the value or the
+    // exception message
+    List<Object> executeConcurrently(SingleFlight<String, Integer> singleFlight, Callable<Integer> callable)
+            throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Object> results = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> threads = new ArrayList<>();
+        for (int index = 0; index < 4; index++) {
+            boolean first = index == 0;
+            threads.add(new Thread(() -> {
+                try {
+                    results.add(singleFlight.execute("key", () -> {
+                        started.countDown();
+                        release.await();
+                        return callable.call();
+                    }));
+                } catch (Exception ex) {
+                    results.add(ex.getMessage());
+                }
+            }));
+            threads.get(index).start();
+            if (first) started.await();
+        }
+        for (Thread thread : threads.subList(1, threads.size())) {
+            while (thread.getState() != Thread.State.WAITING) Thread.sleep(1);
+        }
+        Assertions.assertEquals(1, singleFlight.getInFlightCount());
+        release.countDown();
+        for (Thread thread : threads) thread.join();
+        return results;
+    }
+
+}
@@ -0,0 +1,71 @@
+package io.github.barmoury.asynchronous;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class WriteBehindQueueTest {
+
+    @Test
+    void coalescePendingWritesOfAKey() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+        List<Object> results = Collections.synchronizedList(new ArrayList<>());
+        WriteBehindQueue.BatchWriter<String> writer = values -> {
+            started.countDown();
+            release.await();
+            batches.add(new ArrayList<>(values));
+            return values;
+        };
+        WriteBehindQueue writeBehindQueue = new WriteBehindQueue(1, 10, 10, WriteBehindQueue.RejectionPolicy.BLOCK);
+        writeBehindQueue.submit(new WriteBehindQueue.Write<>("a", writer, "a1", String::concat, results::add, null));
+        started.await();
+        writeBehindQueue.submit(new WriteBehindQueue.Write<>("b", writer, "b1", String::concat, results::add, null));
+        writeBehindQueue.submit(new WriteBehindQueue.Write<>("a", writer, "a2", String::concat, results::add, null));
+        writeBehindQueue.submit(new WriteBehindQueue.Write<>("b", writer, "b2", String::concat, results::add, null));
+        Assertions.assertEquals(2, writeBehindQueue.getPendingCount());
+        release.countDown();
+        writeBehindQueue.close();
+
+        Assertions.assertEquals(List.of(List.of("a1"), List.of("b1b2", "a2")), batches);
+        Assertions.assertEquals(List.of("a1", "b1b2", "b1b2", "a2"), results);
+    }
+
+    @Test
+    void callerRunsOnlyWritesOfIdleKeys() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        WriteBehindQueue.BatchWriter<String> writer = values -> {
+            if (values.contains("a1")) {
+                started.countDown();
+                release.await();
+            }
+            written.addAll(values);
+            return values;
+        };
+        WriteBehindQueue writeBehindQueue = new WriteBehindQueue(1, 1, 1,
+                WriteBehindQueue.RejectionPolicy.CALLER_RUNS);
+        writeBehindQueue.submit(new WriteBehindQueue.Write<>("a", writer, "a1", null, null, null));
+        started.await();
+        writeBehindQueue.submit(new WriteBehindQueue.Write<>("a", writer, "a2", null, null, null));
+        writeBehindQueue.submit(new WriteBehindQueue.Write<>("b", writer, "b1", null, null, null));
+        Assertions.assertEquals(List.of("b1"), written);
+
+        Thread producer = new Thread(() -> writeBehindQueue.submit(
+                new WriteBehindQueue.Write<>("a", writer, "a3", null, null, null)));
+        producer.start();
+        while (producer.getState() != Thread.State.WAITING) Thread.sleep(1);
+        release.countDown();
+        producer.join();
+        writeBehindQueue.close();
+
+        Assertions.assertEquals(List.of("b1", "a1", "a2", "a3"), written);
+    }
+
+}
@@ -174,4 +174,17 @@ public class CopierTest {
         Assertions.assertNotEquals(obj.id, obj2.id);
     }
 
+    @Test
+    public void testChangedFields() throws CopierException {
+        AnObject previous = new AnObject();
+        previous.name = "barmoury";
+        previous.socialProfiles = List.of("a");
+        AnObject current = new AnObject();
+        Copier.copyBlindly(current, previous);
+        Assertions.assertTrue(Copier.changedFields(previous, current).isEmpty());
+        current.email = "barmoury@example.com";
+        current.deleted = 1;
+        Assertions.assertEquals(List.of("email", "deleted"), Copier.changedFields(previous, current));
+    }
+
 }
@@ -0,0 +1,36 @@
+package io.github.barmoury.eloquent;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueryResultCacheTest {
+
+    @Test
+    void serveUntilInvalidatedOrEvicted() {
+        QueryResultCache queryResultCache = new QueryResultCache(2, 60000);
+        AtomicInteger loads = new AtomicInteger();
+        Assertions.assertEquals(1, queryResultCache.get(String.class, "a", loads::incrementAndGet));
+        Assertions.assertEquals(1, queryResultCache.get(String.class, "a", loads::incrementAndGet));
+
+        queryResultCache.invalidate(String.class);
+        Assertions.assertEquals(2, queryResultCache.get(String.class, "a", loads::incrementAndGet));
+        queryResultCache.get(String.class, "b", loads::incrementAndGet);
+        queryResultCache.get(Integer.class, "a", loads::incrementAndGet);
+        Assertions.assertEquals(2, queryResultCache.size());
+        Assertions.assertEquals(5, queryResultCache.get(String.class, "a", loads::incrementAndGet));
+
+        QueryResultCache.Statistics statistics = queryResultCache.getStatistics(String.class);
+        Assertions.assertEquals(1, statistics.getHits().get());
+        Assertions.assertEquals(4, statistics.getMisses().get());
+        Assertions.assertEquals(2, statistics.getEvictions().get());
+
+        Assertions.assertEquals(6, queryResultCache.get(String.class, Set.of(Long.class), "c", loads::incrementAndGet));
+        Assertions.assertEquals(6, queryResultCache.get(String.class, Set.of(Long.class), "c", loads::incrementAndGet));
+        queryResultCache.invalidate(Long.class);
+        Assertions.assertEquals(7, queryResultCache.get(String.class, Set.of(Long.class), "c", loads::incrementAndGet));
+    }
+
+}
@@ -0,0 +1,47 @@
+package io.github.barmoury.eloquent.filter;
+
+import io.github.barmoury.eloquent.RequestParamFilter;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class FilterPlanTest {
+
+    static class Report {
+        @RequestParamFilter(operator = RequestParamFilter.Operator.RANGE)
+        String createdAt;
+        @RequestParamFilter(operator = RequestParamFilter.Operator.OBJECT_EQ)
+        String metadata;
+        @RequestParamFilter(aliases = {"title"})
+        String name;
+    }
+
+    @Test
+    void rangeFilterIsSplitIntoBounds() {
+        FilterPlan filterPlan = FilterPlan.build(Report.class, true);
+        Map<String, RequestParamFilter.Operator> operators = new LinkedHashMap<>();
+        for (FilterPlan.Entry entry : filterPlan.getEntries()) {
+            operators.put(entry.getQueryParam(), entry.getRequestParamFilter().operator());
+        }
+        Assertions.assertEquals(RequestParamFilter.Operator.GT_EQ, operators.get("created_at_from"));
+        Assertions.assertEquals(RequestParamFilter.Operator.LT_EQ, operators.get("createdAtTo"));
+        Assertions.assertTrue(filterPlan.getStatFields().containsKey("createdAt"));
+    }
+
+    @Test
+    void matchOnlyTheRequestParametersWithValues() {
+        FilterPlan filterPlan = FilterPlan.build(Report.class, true);
+        Map<String, String[]> parameters = new LinkedHashMap<>();
+        parameters.put("title", new String[]{""});
+        parameters.put("metadata.owner", new String[]{"1"});
+        parameters.put("unknown", new String[]{"1"});
+        Map<Integer, Map.Entry<String, String[]>> matches = filterPlan.match(parameters);
+        Assertions.assertEquals(1, matches.size());
+        FilterPlan.Entry entry = filterPlan.getEntries().get(matches.keySet().iterator().next());
+        Assertions.assertEquals("metadata", entry.getQueryParam());
+        Assertions.assertEquals("metadata.owner", matches.values().iterator().next().getKey());
+    }
+
+}
@@ -0,0 +1,88 @@
+package io.github.barmoury.eloquent.mapper;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.barmoury.eloquent.CollectionFetch;
+import jakarta.persistence.JoinColumn;
+import jakarta.persistence.ManyToOne;
+import jakarta.persistence.OneToMany;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.List;
+
+public class EntityRowMapperTest {
+
+    enum Status { ACTIVE, BLOCKED }
+
+    static class Account {
+        long id;
+        Status status;
+        boolean verified;
+        LocalDateTime createdAt;
+        @JsonProperty(access = JsonProperty.Access.WRITE_ONLY)
+        String password;
+    }
+
+    static class Order {
+        long id;
+        @ManyToOne @JoinColumn(name = "account_id")
+        Account account;
+    }
+
+    static class Customer {
+        long id;
+        @CollectionFetch(maxSize = 5)
+        @OneToMany(mappedBy = "account")
+        List<Order> orders;
+    }
+
+    @Test
+    void resolveCollectionFromMappedBy() {
+        EntityRowMapper<Customer> rowMapper = EntityRowMapper.build(Customer.class, true, new ObjectMapper(), null);
+        Assertions.assertEquals(1, rowMapper.getCollectionSlots().size());
+        EntityRowMapper.CollectionSlot collectionSlot = rowMapper.getCollectionSlots().get(0);
+        Assertions.assertEquals(Order.class, collectionSlot.getChildClass());
+        Assertions.assertEquals("account_id", collectionSlot.getChildColumn());
+
+        Customer customer = rowMapper.newInstance();
+        customer.id = 3;
+        Assertions.assertEquals(3L, collectionSlot.parentKey(customer));
+        rowMapper.set(customer, collectionSlot.getSlot(), List.of(new Order()));
+        Assertions.assertEquals(1, customer.orders.size());
+    }
+
+    @Test
+    void mapColumnsIntoFields() {
+        EntityRowMapper<Account> rowMapper = EntityRowMapper.build(Account.class, true, new ObjectMapper(), null);
+        Assertions.assertTrue(rowMapper.isSupported());
+        String[] aliases = new String[]{"id", "status", "verified", "created_at", "password", "unknown"};
+        Object[] tuple = new Object[]{7, "BLOCKED", 1, Timestamp.valueOf("2024-02-01 10:30:00"), "secret", "x"};
+
+        Account account = rowMapper.newInstance();
+        EntityRowMapper.Plan plan = rowMapper.plan(aliases);
+        for (int index = 0; index < tuple.length; index++) {
+            if (plan.getFieldSlots()[index] != null) rowMapper.set(account, plan.getFieldSlots()[index], tuple[index]);
+        }
+        Assertions.assertSame(plan, rowMapper.plan(aliases.clone()));
+        Assertions.assertEquals(7L, account.id);
+        Assertions.assertEquals(Status.BLOCKED, account.status);
+        Assertions.assertTrue(account.verified);
+        Assertions.assertEquals(LocalDateTime.of(2024, 2, 1, 10, 30), account.createdAt);
+        Assertions.assertNull(account.password);
+    }
+
+    @Test
+    void mapSnakeCaseColumnsInCamelCaseMode() {
+        EntityRowMapper<Account> rowMapper = EntityRowMapper.build(Account.class, false, new ObjectMapper(), null);
+        EntityRowMapper.Plan plan = rowMapper.plan(new String[]{"id", "created_at"});
+        Account account = rowMapper.newInstance();
+        rowMapper.set(account, plan.getFieldSlots()[0], 9L);
+        rowMapper.set(account, plan.getFieldSlots()[1], Timestamp.valueOf("2024-02-01 10:30:00"));
+        Assertions.assertEquals(9L, account.id);
+        Assertions.assertEquals(LocalDateTime.of(2024, 2, 1, 10, 30), account.createdAt);
+    }
+
+}
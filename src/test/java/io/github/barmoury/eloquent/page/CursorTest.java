@@ -0,0 +1,41 @@
+package io.github.barmoury.eloquent.page;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Sort;
+
+import java.sql.Timestamp;
+
+public class CursorTest {
+
+    ObjectMapper mapper = new ObjectMapper();
+
+    @Test
+    void encodeLastRowAndSeekPastIt() {
+        Sort sort = Sort.by(Sort.Order.desc("created_at"));
+        Cursor firstPage = Cursor.resolve("", sort, 2, mapper);
+        Assertions.assertNull(firstPage.buildPredicate());
+        Assertions.assertEquals("ORDER BY created_at DESC, id DESC ", firstPage.buildOrderBy());
+
+        String[] aliases = new String[]{"id", "name", "created_at"};
+        Timestamp createdAt = Timestamp.valueOf("2024-03-01 08:15:00");
+        Assertions.assertTrue(firstPage.accept(new Object[]{9, "a", createdAt}, aliases, 0));
+        Assertions.assertTrue(firstPage.accept(new Object[]{4, "b", createdAt}, aliases, 1));
+        Assertions.assertFalse(firstPage.accept(new Object[]{2, "c", createdAt}, aliases, 2));
+
+        Cursor nextPage = Cursor.resolve(firstPage.nextToken(mapper), sort, 2, mapper);
+        Assertions.assertEquals("(entity.created_at, entity.id) < (:barmoury_cursor_0, :barmoury_cursor_1)",
+                nextPage.buildPredicate());
+        Assertions.assertEquals(createdAt, nextPage.parameters().get("barmoury_cursor_0"));
+        Assertions.assertEquals(4L, nextPage.parameters().get("barmoury_cursor_1"));
+        Assertions.assertNull(nextPage.nextToken(mapper));
+
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> Cursor.resolve(firstPage.nextToken(mapper), Sort.by("name"), 2, mapper));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> Cursor.resolve("not a cursor", sort, 2, mapper));
+        Assertions.assertEquals("ORDER BY name ASC, created_at DESC, id DESC ", Cursor.resolve("",
+                Sort.by(Sort.Order.asc("name"), Sort.Order.desc("created_at")), 2, mapper).buildOrderBy());
+    }
+
+}
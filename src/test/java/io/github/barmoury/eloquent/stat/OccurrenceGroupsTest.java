@@ -0,0 +1,71 @@
+package io.github.barmoury.eloquent.stat;
+
+import io.github.barmoury.eloquent.StatQuery;
+import io.github.barmoury.eloquent.sqlinterface.MySqlInterface;
+import io.github.barmoury.eloquent.sqlinterface.PostgresInterface;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+public class OccurrenceGroupsTest {
+
+    static class Audit {
+
+        @StatQuery.OccurrenceQuery(fetchCount = 5)
+        @StatQuery.OccurrenceQuery(type = StatQuery.OccurrenceQuery.Type.PERCENTAGE)
+        String type;
+
+        @StatQuery.OccurrenceQuery(whereClause = "%s IS NOT NULL")
+        String ip;
+
+    }
+
+    @Test
+    void countEveryGroupInOneScan() throws NoSuchFieldException {
+        Map<String, StatQuery.OccurrenceQuery[]> occurrenceQueries = new LinkedHashMap<>();
+        occurrenceQueries.put("type", Audit.class.getDeclaredField("type")
+                .getAnnotationsByType(StatQuery.OccurrenceQuery.class));
+        occurrenceQueries.put("ip", Audit.class.getDeclaredField("ip")
+                .getAnnotationsByType(StatQuery.OccurrenceQuery.class));
+        OccurrenceGroups occurrenceGroups = new OccurrenceGroups(occurrenceQueries);
+
+        Assertions.assertEquals(2, occurrenceGroups.getGroups().size());
+        Assertions.assertEquals(10, occurrenceGroups.getGroups().get(0).fetchCount());
+        Assertions.assertEquals(0, occurrenceGroups.groupIndex("type", 1));
+        Assertions.assertEquals(1, occurrenceGroups.groupIndex("ip", 0));
+
+        String query = occurrenceGroups.groupingSetsQuery(new PostgresInterface(), "audit", "");
+        Assertions.assertTrue(query.contains("GROUP BY GROUPING SETS ((entity.type), (entity.ip))"));
+        Assertions.assertTrue(query.contains("COUNT(entity.ip) FILTER (WHERE ip IS NOT NULL) AS count_1"));
+        Assertions.assertTrue(query.contains("(ranked.occurrence_set = 1 AND ranked.rank_0 <= 10)"));
+        Assertions.assertTrue(query.contains("(ranked.occurrence_set = 2 AND ranked.rank_1 <= 10)"));
+
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.add(Map.of("occurrence_set", 1, "type", "LOGIN", "count_0", 4L, "rank_0", 2L, "count_1", 0L,
+                "rank_1", 2L));
+        rows.add(Map.of("occurrence_set", 1, "type", "LOGOUT", "count_0", 6L, "rank_0", 1L, "count_1", 0L,
+                "rank_1", 1L));
+        rows.add(Map.of("occurrence_set", 2, "ip", "::1", "count_0", 0L, "rank_0", 1L, "count_1", 3L,
+                "rank_1", 1L));
+        List<List<Object[]>> groupRows = occurrenceGroups.groupingSetsRows(rows);
+        Assertions.assertEquals("LOGOUT", groupRows.get(0).get(0)[0]);
+        Assertions.assertEquals(4L, groupRows.get(0).get(1)[1]);
+        Assertions.assertEquals(1, groupRows.get(1).size());
+        Assertions.assertEquals("::1", groupRows.get(1).get(0)[0]);
+
+        query = occurrenceGroups.unionQuery(new MySqlInterface(), "audit", "");
+        Assertions.assertTrue(query.contains("SELECT 0 AS occurrence_index, entity.type AS occurrence_value_0, " +
+                "NULL AS occurrence_value_1"));
+        Assertions.assertTrue(query.contains("SELECT 1 AS occurrence_index, NULL AS occurrence_value_0, " +
+                "entity.ip AS occurrence_value_1"));
+
+        rows.clear();
+        rows.add(Map.of("occurrence_index", 0, "occurrence_value_0", true, "count", 2L));
+        rows.add(Map.of("occurrence_index", 1, "occurrence_value_1", "::1", "count", 3L));
+        groupRows = occurrenceGroups.unionRows(rows);
+        Assertions.assertEquals(true, groupRows.get(0).get(0)[0]);
+        Assertions.assertEquals("::1", groupRows.get(1).get(0)[0]);
+    }
+
+}
@@ -0,0 +1,43 @@
+package io.github.barmoury.eloquent.stat;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class P2QuantileEstimatorTest {
+
+    @Test
+    void estimateIsExactForFewValues() {
+        P2QuantileEstimator estimator = new P2QuantileEstimator(0.5);
+        Assertions.assertNull(estimator.estimate());
+        estimator.add(4);
+        estimator.add(1);
+        estimator.add(3);
+        estimator.add(2);
+        Assertions.assertEquals(2.5, estimator.estimate());
+    }
+
+    @Test
+    void estimateQuantilesOfShuffledValues() {
+        List<Integer> values = new ArrayList<>();
+        for (int value = 1; value <= 10000; value++) values.add(value);
+        Collections.shuffle(values, new Random(1199));
+        P2QuantileEstimator median = new P2QuantileEstimator(0.5);
+        P2QuantileEstimator p90 = new P2QuantileEstimator(0.9);
+        P2QuantileEstimator p99 = new P2QuantileEstimator(0.99);
+        for (int value : values) {
+            median.add(value);
+            p90.add(value);
+            p99.add(value);
+        }
+        Assertions.assertEquals(10000, median.getCount());
+        Assertions.assertEquals(5000, median.estimate(), 100);
+        Assertions.assertEquals(9000, p90.estimate(), 100);
+        Assertions.assertEquals(9900, p99.estimate(), 100);
+    }
+
+}
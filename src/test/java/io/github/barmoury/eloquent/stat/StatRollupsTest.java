@@ -0,0 +1,38 @@
+package io.github.barmoury.eloquent.stat;
+
+import io.github.barmoury.eloquent.sqlinterface.PostgresInterface;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.List;
+
+public class StatRollupsTest {
+
+    @Test
+    void mergeBucketsFromRollupRows() {
+        StatRollups.Definition definition = new StatRollups.Definition("payment", "created_at", null,
+                List.of("status"), List.of(
+                        new StatAggregate(StatAggregate.Type.COUNT, "total_count", "", "", ""),
+                        new StatAggregate(StatAggregate.Type.AVERAGE, "average_amount", "amount", "", ""),
+                        new StatAggregate(StatAggregate.Type.COLUMN, "amount_stddev", "amount", "STDDEV", "")),
+                Collections.emptyMap());
+
+        Assertions.assertEquals(2, definition.getMeasures().size());
+        Assertions.assertEquals(-1, definition.measureIndex("amount_stddev"));
+        Assertions.assertEquals("payment_rollup_watermark", definition.getWatermarkTable());
+        Assertions.assertEquals("SUM(entity.measure_0)", definition.mergeExpression(0));
+        Assertions.assertEquals("SUM(entity.measure_1) / NULLIF(SUM(entity.measure_1_count), 0)",
+                definition.mergeExpression(1));
+        Assertions.assertEquals(List.of("created_at", "bucket_unit", "status", "measure_0", "measure_1",
+                "measure_1_count"), definition.aggregateTableColumns());
+
+        String query = definition.bucketAggregateQuery(new PostgresInterface(), List.of(1, 0), ChronoUnit.DAYS,
+                " WHERE entity.status = :status ");
+        Assertions.assertTrue(query.contains("FROM payment_rollup entity"));
+        Assertions.assertTrue(query.contains("AS stat_0, SUM(entity.measure_0) AS stat_1"));
+        Assertions.assertTrue(query.contains("entity.status = :status  AND entity.bucket_unit = 1"));
+    }
+
+}
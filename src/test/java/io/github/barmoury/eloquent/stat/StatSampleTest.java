@@ -0,0 +1,45 @@
+package io.github.barmoury.eloquent.stat;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.github.barmoury.eloquent.sqlinterface.MySqlInterface;
+import io.github.barmoury.eloquent.sqlinterface.PostgresInterface;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class StatSampleTest {
+
+    @Test
+    void scaleSampledAggregates() {
+        StatSample tableSample = new StatSample(new PostgresInterface(), 0.0001, 42);
+        Assertions.assertEquals(" TABLESAMPLE SYSTEM (0.01) REPEATABLE (42) WHERE 1 = 1",
+                tableSample.whereFilterString(""));
+
+        StatSample sample = new StatSample(new MySqlInterface(), 0.01, 7);
+        Assertions.assertEquals("hash", sample.getMethod());
+        Assertions.assertEquals(" WHERE  (entity.type = :type) AND MOD(CRC32(CONCAT(entity.id, ':', 7)), 100) = 0",
+                sample.whereFilterString(" WHERE  (entity.type = :type)"));
+
+        List<StatAggregate> aggregates = List.of(
+                new StatAggregate(StatAggregate.Type.COUNT, "total_count", "", "", ""),
+                new StatAggregate(StatAggregate.Type.AVERAGE, "average_amount", "amount", "", ""));
+        Assertions.assertEquals(2, sample.errorAggregates(aggregates).size());
+
+        ObjectNode stat = new ObjectMapper().createObjectNode();
+        stat.put("total_count", 400L);
+        stat.put("average_amount", 12.5);
+        stat.put("___sample_deviation_average_amount", 2.0);
+        stat.put("___sample_count_average_amount", 400L);
+        sample.apply(stat, aggregates, true);
+
+        Assertions.assertEquals(40000L, stat.get("total_count").asLong());
+        Assertions.assertEquals(12.5, stat.get("average_amount").asDouble());
+        Assertions.assertFalse(stat.has("___sample_count_average_amount"));
+        Assertions.assertEquals(0.196, stat.at("/approximation/error_bounds/average_amount").asDouble(), 1e-9);
+        Assertions.assertEquals(1.96 * Math.sqrt(400 * 0.99) / 0.01,
+                stat.at("/approximation/error_bounds/total_count").asDouble(), 1e-9);
+    }
+
+}
@@ -0,0 +1,38 @@
+package io.github.barmoury.eloquent.stat;
+
+import com.fasterxml.jackson.databind.node.IntNode;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StatSnapshotsTest {
+
+    @Test
+    void serveStaleWhileRefreshing() {
+        List<Runnable> tasks = new ArrayList<>();
+        StatSnapshots statSnapshots = new StatSnapshots(10, 1);
+        statSnapshots.setRunner(tasks::add);
+        AtomicInteger loads = new AtomicInteger();
+
+        Assertions.assertEquals(1, statSnapshots.get(String.class, "a", 60000,
+                () -> IntNode.valueOf(loads.incrementAndGet())).intValue());
+        Assertions.assertEquals(1, statSnapshots.get(String.class, "a", 60000,
+                () -> IntNode.valueOf(loads.incrementAndGet())).intValue());
+        Assertions.assertTrue(tasks.isEmpty());
+
+        statSnapshots.invalidate(String.class);
+        Assertions.assertEquals(1, statSnapshots.get(String.class, "a", 60000,
+                () -> IntNode.valueOf(loads.incrementAndGet())).intValue());
+        Assertions.assertEquals(1, statSnapshots.get(String.class, "a", 60000,
+                () -> IntNode.valueOf(loads.incrementAndGet())).intValue());
+        Assertions.assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        Assertions.assertEquals(2, statSnapshots.get(String.class, "a", 60000,
+                () -> IntNode.valueOf(loads.incrementAndGet())).intValue());
+        Assertions.assertEquals(1, tasks.size());
+    }
+
+}
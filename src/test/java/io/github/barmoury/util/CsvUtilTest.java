@@ -0,0 +1,31 @@
+package io.github.barmoury.util;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+public class CsvUtilTest {
+
+    @Test
+    void quoteOnlyValuesThatNeedIt() throws IOException {
+        StringWriter writer = new StringWriter();
+        CsvUtil.writeRow(writer, Arrays.asList("plain", "a,b", "say \"hi\"", null, "two\nlines"));
+        Assertions.assertEquals("plain,\"a,b\",\"say \"\"hi\"\"\",,\"two\nlines\"\r\n", writer.toString());
+    }
+
+    @Test
+    void readQuotedRecords() throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader("id,name\r\n1,\"a \"\"b\"\", c\"\n2,\"x\ny\""));
+        Assertions.assertEquals(List.of("id", "name"), CsvUtil.readRow(reader));
+        Assertions.assertEquals(List.of("1", "a \"b\", c"), CsvUtil.readRow(reader));
+        Assertions.assertEquals(List.of("2", "x\ny"), CsvUtil.readRow(reader));
+        Assertions.assertNull(CsvUtil.readRow(reader));
+    }
+
+}